@@ -0,0 +1,124 @@
+package ca.ubc.cs.cs317.dnslookup.bench;
+
+import ca.ubc.cs.cs317.dnslookup.DNSCache;
+import ca.ubc.cs.cs317.dnslookup.DNSNode;
+import ca.ubc.cs.cs317.dnslookup.RecordType;
+import ca.ubc.cs.cs317.dnslookup.ResourceRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Reads and writes of the DNS cache once it holds a given number of nodes: a read of a cached
+ * node, the same read followed by a use of its records (compact nodes only build the records
+ * when they are iterated over), a read of a node that is not cached, a record added again to a
+ * cached node (as when a response repeats known records), and a record added to a new node,
+ * which makes the cache evict a node since it is full. Nodes are picked uniformly at random, so
+ * the larger caches mostly miss the CPU caches.
+ *
+ * Run with several threads (the -t option of JMH) to measure contention; all threads share
+ * the cache. The 10M-node cache needs a large heap, which the fork is given.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CacheBenchmark {
+
+    private static final long TTL = 86400;
+    private static final int ADDRESSES = 256;
+
+    @Param({"1000", "100000", "10000000"})
+    public int entries;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final AtomicInteger threads = new AtomicInteger();
+    private final InetAddress[] addresses = new InetAddress[ADDRESSES];
+    private String[] hostNames;
+    private DNSNode[] nodes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnknownHostException {
+        for (int i = 0; i < ADDRESSES; i++)
+            addresses[i] = InetAddress.getByAddress(new byte[] {10, 1, 2, (byte) i});
+        cache.flushCache();
+        cache.setMaximumSize(entries, Long.MAX_VALUE);
+        hostNames = new String[entries];
+        nodes = new DNSNode[entries];
+        for (int i = 0; i < entries; i++) {
+            hostNames[i] = "host" + i + ".zone" + (i % 1000) + ".example.com";
+            nodes[i] = new DNSNode(hostNames[i], RecordType.A);
+            cache.addResult(new ResourceRecord(hostNames[i], RecordType.A, TTL, addresses[i % ADDRESSES]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.flushCache();
+    }
+
+    /** The names of the new nodes added by one thread, so threads never add the same node.
+     */
+    @State(Scope.Thread)
+    public static class NewNames {
+        private String prefix;
+        private int next;
+
+        @Setup
+        public void setUp(CacheBenchmark benchmark) {
+            prefix = "new" + benchmark.threads.incrementAndGet() + "-";
+        }
+
+        String next() {
+            return prefix + next++ + ".example.org";
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getHit() {
+        return cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(entries)]);
+    }
+
+    @Benchmark
+    public void readHit(Blackhole blackhole) {
+        for (ResourceRecord record : cache.getCachedResults(nodes[ThreadLocalRandom.current().nextInt(entries)]))
+            blackhole.consume(record.getInetResult());
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getMiss() {
+        int i = ThreadLocalRandom.current().nextInt(entries);
+        return cache.getCachedResults(new DNSNode(hostNames[i], RecordType.AAAA));
+    }
+
+    @Benchmark
+    public void addExisting() {
+        int i = ThreadLocalRandom.current().nextInt(entries);
+        cache.addResult(new ResourceRecord(hostNames[i], RecordType.A, TTL, addresses[i % ADDRESSES]));
+    }
+
+    @Benchmark
+    public void addNew(NewNames names) {
+        int i = ThreadLocalRandom.current().nextInt(ADDRESSES);
+        cache.addResult(new ResourceRecord(names.next(), RecordType.A, TTL, addresses[i]));
+    }
+}
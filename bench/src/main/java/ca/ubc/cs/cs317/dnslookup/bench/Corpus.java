@@ -0,0 +1,232 @@
+package ca.ubc.cs.cs317.dnslookup.bench;
+
+import ca.ubc.cs.cs317.dnslookup.RecordType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** The packets the parser benchmarks are run on. They are built to match what the resolver
+ * receives from real servers, section by section: a root referral to a TLD (13 nameservers with
+ * IPv4 and IPv6 glue), a TLD referral to a zone, an authoritative answer, an answer with a
+ * CNAME chain, an NXDOMAIN with its SOA record, and an answer too large for 512 bytes. Names
+ * are compressed the way servers compress them: each name ends with a pointer to the longest
+ * suffix already written. Each response carries an EDNS0 OPT record, as replies to the
+ * resolver's queries do.
+ */
+public final class Corpus {
+
+    public static final String ROOT_REFERRAL = "rootReferral";
+    public static final String TLD_REFERRAL = "tldReferral";
+    public static final String ANSWER = "answer";
+    public static final String CNAME_ANSWER = "cnameAnswer";
+    public static final String NXDOMAIN = "nxdomain";
+    public static final String LARGE_ANSWER = "largeAnswer";
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_AA = 0x0400;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int CLASS_IN = 1;
+
+    private Corpus() {
+    }
+
+    /** Returns a packet of the corpus.
+     *
+     * @param name Name of the packet, one of the constants of this class.
+     * @return A copy of the packet, in wire format.
+     */
+    public static byte[] get(String name) {
+        switch (name) {
+            case ROOT_REFERRAL:
+                return rootReferral();
+            case TLD_REFERRAL:
+                return tldReferral();
+            case ANSWER:
+                return answer();
+            case CNAME_ANSWER:
+                return cnameAnswer();
+            case NXDOMAIN:
+                return nxdomain();
+            case LARGE_ANSWER:
+                return largeAnswer();
+            default:
+                throw new IllegalArgumentException("Unknown packet " + name);
+        }
+    }
+
+    private static byte[] rootReferral() {
+        Message m = new Message(0, "www.example.com", RecordType.A);
+        m.counts(0, 13, 26);
+        for (char c = 'a'; c <= 'm'; c++)
+            m.name("com", RecordType.NS, 172800, c + ".gtld-servers.net");
+        for (int i = 0; i < 13; i++)
+            m.address((char) ('a' + i) + ".gtld-servers.net", 172800, 192, 5, 6, 30 + i);
+        for (int i = 0; i < 13; i++)
+            m.address6((char) ('a' + i) + ".gtld-servers.net", 172800, 0x2001, 0x503, 0xa83e + i, 0, 0, 0, 0x2, 0x30);
+        return m.opt().bytes();
+    }
+
+    private static byte[] tldReferral() {
+        Message m = new Message(0, "www.cs.ubc.ca", RecordType.A);
+        m.counts(0, 4, 2);
+        m.name("ubc.ca", RecordType.NS, 86400, "ns1.ubc.ca");
+        m.name("ubc.ca", RecordType.NS, 86400, "ns2.ubc.ca");
+        m.name("ubc.ca", RecordType.NS, 86400, "ns3.ubc.ca");
+        m.name("ubc.ca", RecordType.NS, 86400, "dns.cs.ubc.ca");
+        m.address("ns1.ubc.ca", 86400, 137, 82, 1, 1);
+        m.address("ns2.ubc.ca", 86400, 142, 103, 1, 1);
+        return m.opt().bytes();
+    }
+
+    private static byte[] answer() {
+        Message m = new Message(FLAG_AA, "www.cs.ubc.ca", RecordType.A);
+        m.counts(1, 2, 1);
+        m.address("www.cs.ubc.ca", 3600, 142, 103, 6, 5);
+        m.name("cs.ubc.ca", RecordType.NS, 3600, "ns1.cs.ubc.ca");
+        m.name("cs.ubc.ca", RecordType.NS, 3600, "ns2.cs.ubc.ca");
+        return m.opt().bytes();
+    }
+
+    private static byte[] cnameAnswer() {
+        Message m = new Message(FLAG_AA, "www.example.com", RecordType.A);
+        m.counts(6, 0, 1);
+        m.name("www.example.com", RecordType.CNAME, 300, "www.example.com.cdn.example.net");
+        m.name("www.example.com.cdn.example.net", RecordType.CNAME, 60, "e1234.a.cdn.example.net");
+        for (int i = 0; i < 4; i++)
+            m.address("e1234.a.cdn.example.net", 20, 23, 45, 67, 10 + i);
+        return m.opt().bytes();
+    }
+
+    private static byte[] nxdomain() {
+        Message m = new Message(FLAG_AA | RCODE_NXDOMAIN, "nope.cs.ubc.ca", RecordType.A);
+        m.counts(0, 1, 1);
+        m.soa("cs.ubc.ca", 3600, "ns1.cs.ubc.ca", "hostmaster.cs.ubc.ca", 2024010101, 3600, 600, 604800, 300);
+        return m.opt().bytes();
+    }
+
+    private static byte[] largeAnswer() {
+        Message m = new Message(FLAG_AA, "pool.cs.ubc.ca", RecordType.A);
+        m.counts(60, 0, 1);
+        for (int i = 0; i < 60; i++)
+            m.address("pool.cs.ubc.ca", 300, 10, 0, i / 250, i % 250);
+        return m.opt().bytes();
+    }
+
+    /** A response being written, with the offsets of the names already written so later names
+     * can be compressed.
+     */
+    private static final class Message {
+
+        private final ByteBuffer out = ByteBuffer.allocate(65535);
+        private final Map<String, Integer> suffixes = new HashMap<>();
+        private int arCount;
+
+        Message(int flags, String qName, RecordType qType) {
+            out.putShort((short) 0x1234);
+            out.putShort((short) (FLAG_QR | flags));
+            out.putShort((short) 1);
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            writeName(qName);
+            out.putShort((short) qType.getCode());
+            out.putShort((short) CLASS_IN);
+        }
+
+        /** Sets the number of records of each section. The OPT record is counted by opt.
+         */
+        void counts(int anCount, int nsCount, int arCount) {
+            out.putShort(6, (short) anCount);
+            out.putShort(8, (short) nsCount);
+            this.arCount = arCount;
+            out.putShort(10, (short) arCount);
+        }
+
+        void address(String owner, int ttl, int a, int b, int c, int d) {
+            int rdata = header(owner, RecordType.A, ttl);
+            out.put((byte) a).put((byte) b).put((byte) c).put((byte) d);
+            endRecord(rdata);
+        }
+
+        /** Adds an AAAA record, whose address is given as its eight 16-bit groups.
+         */
+        void address6(String owner, int ttl, int... groups) {
+            int rdata = header(owner, RecordType.AAAA, ttl);
+            for (int group : groups)
+                out.putShort((short) group);
+            endRecord(rdata);
+        }
+
+        void name(String owner, RecordType type, int ttl, String target) {
+            int rdata = header(owner, type, ttl);
+            writeName(target);
+            endRecord(rdata);
+        }
+
+        void soa(String owner, int ttl, String mName, String rName, int... fields) {
+            int rdata = header(owner, RecordType.SOA, ttl);
+            writeName(mName);
+            writeName(rName);
+            for (int field : fields)
+                out.putInt(field);
+            endRecord(rdata);
+        }
+
+        /** Adds an OPT record to the additional section.
+         */
+        Message opt() {
+            out.put((byte) 0);
+            out.putShort((short) RecordType.OPT.getCode());
+            out.putShort((short) 1232);
+            out.putInt(0);
+            out.putShort((short) 0);
+            out.putShort(10, (short) (arCount + 1));
+            return this;
+        }
+
+        byte[] bytes() {
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        /** Writes the owner name, type, class and TTL of a record.
+         *
+         * @return The offset of the RDLENGTH field.
+         */
+        private int header(String owner, RecordType type, int ttl) {
+            writeName(owner);
+            out.putShort((short) type.getCode());
+            out.putShort((short) CLASS_IN);
+            out.putInt(ttl);
+            int rdata = out.position();
+            out.putShort((short) 0);
+            return rdata;
+        }
+
+        private void endRecord(int rdLengthOffset) {
+            out.putShort(rdLengthOffset, (short) (out.position() - rdLengthOffset - 2));
+        }
+
+        /** Writes a name, ending with a pointer to the longest suffix already written.
+         */
+        private void writeName(String name) {
+            String rest = name;
+            while (!rest.isEmpty()) {
+                Integer offset = suffixes.get(rest.toLowerCase());
+                if (offset != null) {
+                    out.putShort((short) (0xC000 | offset));
+                    return;
+                }
+                suffixes.put(rest.toLowerCase(), out.position());
+                int dot = rest.indexOf('.');
+                String label = dot < 0 ? rest : rest.substring(0, dot);
+                out.put((byte) label.length());
+                for (int i = 0; i < label.length(); i++)
+                    out.put((byte) label.charAt(i));
+                rest = dot < 0 ? "" : rest.substring(dot + 1);
+            }
+            out.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup.bench;
+
+import ca.ubc.cs.cs317.dnslookup.DNSNode;
+import ca.ubc.cs.cs317.dnslookup.DNSQuery;
+import ca.ubc.cs.cs317.dnslookup.RecordType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Encoding of the queries sent to servers: a new query for each transmission, as the resolver
+ * builds them, a query encoded again with a new ID, and a query written into a reused buffer,
+ * as the transport does. Each is run with and without an EDNS0 OPT record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({"0", "1232"})
+    public int payloadSize;
+
+    private final DNSNode node = new DNSNode("www.cs.ubc.ca", RecordType.A);
+    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+    private DNSQuery query;
+    private int queryID;
+
+    @Setup
+    public void setUp() {
+        query = new DNSQuery(node, payloadSize);
+    }
+
+    @Benchmark
+    public byte[] newQuery() {
+        DNSQuery query = new DNSQuery(node, payloadSize);
+        query.setQueryID(++queryID & 0xFFFF);
+        return query.getQueryInBytes();
+    }
+
+    @Benchmark
+    public byte[] reusedQuery() {
+        query.setQueryID(++queryID & 0xFFFF);
+        return query.getQueryInBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo() {
+        buffer.clear();
+        query.writeTo(buffer, ++queryID & 0xFFFF);
+        return buffer;
+    }
+}
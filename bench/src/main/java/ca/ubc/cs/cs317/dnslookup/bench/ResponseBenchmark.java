@@ -0,0 +1,61 @@
+package ca.ubc.cs.cs317.dnslookup.bench;
+
+import ca.ubc.cs.cs317.dnslookup.DNSResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of the responses received from servers, on each packet of the corpus: building a
+ * DNSResponse (header, question and record index), decoding every section, and caching the
+ * answer and authority records as the resolver does for each response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @Param({Corpus.ROOT_REFERRAL, Corpus.TLD_REFERRAL, Corpus.ANSWER, Corpus.CNAME_ANSWER,
+            Corpus.NXDOMAIN, Corpus.LARGE_ANSWER})
+    public String packet;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        bytes = Corpus.get(packet);
+    }
+
+    @Benchmark
+    public DNSResponse parse() {
+        return new DNSResponse(bytes);
+    }
+
+    @Benchmark
+    public void parseAndDecode(Blackhole blackhole) {
+        DNSResponse response = new DNSResponse(bytes);
+        blackhole.consume(response.getAnswers());
+        blackhole.consume(response.getNameServers());
+        blackhole.consume(response.getAdditional());
+    }
+
+    @Benchmark
+    public DNSResponse parseAndCache() {
+        DNSResponse response = new DNSResponse(bytes);
+        response.cacheResourceRecords();
+        return response;
+    }
+}
@@ -0,0 +1,45 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/** A bounded pool of direct byte buffers of a fixed size. Buffers are handed out cleared, and
+ * buffers returned when the pool is full are left to the garbage collector. The pool is backed
+ * by an array, so acquiring and releasing a buffer does not allocate once the pool is warm.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    /** Constructor for a BufferPool.
+     *
+     * @param bufferSize    Capacity of each buffer, in bytes.
+     * @param maxPooled     Maximum number of idle buffers kept in the pool.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /** Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return A cleared buffer of the pool's buffer size.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer Buffer previously obtained from acquire.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize)
+            free.offer(buffer);
+    }
+}
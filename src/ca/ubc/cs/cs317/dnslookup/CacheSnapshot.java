@@ -0,0 +1,407 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A binary snapshot of the DNS cache, saved to a file so that a restarted process starts with
+ * a warm cache. Records are saved with their absolute expiration time, and records that expired
+ * by the time the snapshot is loaded are skipped. The snapshot is loaded through a memory-mapped
+ * file and does not use Java serialization.
+ *
+ * Adding a node to the cache costs several microseconds (the node goes into the map, the name
+ * index, the expiry index and the eviction policy), so loading does not add any node up front:
+ * it maps the file and checks its header. A node is restored from the file the first time it is
+ * read (see DNSCache.setMissHandler), found through a hash index saved at the end of the file,
+ * so the first queries are answered from the snapshot instead of going to the root servers. The
+ * nodes never read are restored later by restoreRemaining, after which the file is no longer
+ * used.
+ *
+ * The file starts with a header (magic number, format version, time written, number of nodes,
+ * and the offset and number of slots of the index), followed by each node: its host name,
+ * record type and number of records, then each record as its expiration time and its data. The
+ * data of an A or AAAA record is its address; the data of any other record is its text. The
+ * index is an open-addressing table of the offsets of the nodes, keyed by a hash of their name,
+ * without regard to case, and type; empty slots hold 0. All numbers are big-endian, and names
+ * and texts are stored one byte per character, as they appear in DNS messages.
+ */
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343;   // "DNSC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 28;
+
+    private final DNSCache cache;
+    private final Path file;
+    private volatile Index index;
+
+    /** Constructor for a CacheSnapshot.
+     *
+     * @param cache The cache to be saved and restored.
+     * @param file  Path of the snapshot file.
+     */
+    public CacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    /** Loads the snapshot file. Its nodes are added to the cache when they are first read, or by
+     * restoreRemaining; records that have expired by then are skipped. A missing file is not an
+     * error.
+     *
+     * @return The number of nodes in the snapshot.
+     * @throws IOException If the file could not be read, is not a cache snapshot or is truncated.
+     */
+    public int load() throws IOException {
+        if (!Files.exists(file))
+            return 0;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IOException(file + " is not a cache snapshot");
+        buffer.getLong();   // time written
+        int nodeCount = buffer.getInt();
+        int indexOffset = buffer.getInt();
+        int slots = buffer.getInt();
+        if (Integer.bitCount(slots) != 1 || indexOffset < HEADER_SIZE
+                || indexOffset + 4L * slots != buffer.capacity())
+            throw new IOException(file + " is truncated");
+
+        index = new Index(buffer, indexOffset, slots);
+        cache.setMissHandler(this::restore);
+        return nodeCount;
+    }
+
+    /** Adds to the cache the nodes of the loaded snapshot that were not read yet, then stops
+     * using the snapshot file.
+     */
+    public void restoreRemaining() {
+        Index current = index;
+        if (current == null)
+            return;
+        long now = CoarseClock.currentTimeMillis();
+        for (int slot = 0; slot < current.slots; slot++) {
+            int offset = current.offset(slot);
+            if (offset != 0 && !current.isRestored(slot)) {
+                restore(current.buffer, offset, now);
+                current.setRestored(slot);
+            }
+        }
+        cache.setMissHandler(null);
+        index = null;
+    }
+
+    /** Adds a node of the loaded snapshot to the cache, unless it was added already. Used as the
+     * miss handler of the cache.
+     *
+     * @param node DNS node (host name and record type) missing from the cache.
+     * @return true if the snapshot had the node.
+     */
+    private boolean restore(DNSNode node) {
+        Index current = index;
+        if (current == null)
+            return false;
+        int slot = current.find(node);
+        if (slot < 0 || current.isRestored(slot))
+            return false;
+        // readers racing for the same node may both add it, which only merges equal records
+        restore(current.buffer, current.offset(slot), CoarseClock.currentTimeMillis());
+        current.setRestored(slot);
+        return true;
+    }
+
+    /** Reads a node and its records from the snapshot, and adds the unexpired records to the
+     * cache.
+     */
+    private void restore(ByteBuffer snapshot, int offset, long now) {
+        ByteBuffer buffer = snapshot.duplicate();
+        buffer.position(offset);
+        DNSNode node = new DNSNode(readString(buffer, buffer.getShort() & 0xFFFF),
+                RecordType.getByCode(buffer.getShort() & 0xFFFF));
+        int recordCount = buffer.getInt();
+        boolean address = node.getType() == RecordType.A || node.getType() == RecordType.AAAA;
+        List<ResourceRecord> records = new ArrayList<>(recordCount);
+        for (int r = 0; r < recordCount; r++) {
+            long expiration = buffer.getLong();
+            if (address) {
+                byte[] raw = new byte[buffer.get() & 0xFF];
+                buffer.get(raw);
+                if (expiration <= now)
+                    continue;
+                try {
+                    InetAddress inet = InetAddress.getByAddress(raw);
+                    records.add(new ResourceRecord(node, expiration, inet.getHostAddress(), inet));
+                } catch (UnknownHostException e) {
+                    // not an IPv4 or IPv6 address, skip the record
+                }
+            } else {
+                String text = readString(buffer, buffer.getShort() & 0xFFFF);
+                if (expiration > now)
+                    records.add(new ResourceRecord(node, expiration, text, null));
+            }
+        }
+        if (!records.isEmpty())
+            cache.restoreResults(node, records);
+    }
+
+    /** Saves the unexpired records of the cache to the snapshot file. The snapshot is written to
+     * a temporary file first, which then replaces the snapshot file, so a crash while saving
+     * leaves the previous snapshot intact.
+     *
+     * @return The number of records saved.
+     * @throws IOException If the file could not be written.
+     */
+    public int save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        NodeWriter writer;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            writer = new NodeWriter(out);
+            cache.forEachNodeUnsorted(writer::write);
+            if (writer.error != null)
+                throw writer.error;
+            int indexOffset = writer.offset();
+            int[] table = writer.buildIndex();
+            for (int offset : table)
+                out.writeInt(offset);
+            out.flush();
+            if (out.size() == Integer.MAX_VALUE)
+                throw new IOException("cache snapshot larger than 2 GB");
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putInt(writer.nodes)
+                    .putInt(indexOffset).putInt(table.length).flip();
+            channel.write(header, 0);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return writer.records;
+    }
+
+    /** Starts a daemon thread that saves the snapshot periodically, and saves it once more when
+     * the process shuts down.
+     *
+     * @param interval Time between two saves, in milliseconds.
+     */
+    public void schedule(long interval) {
+        Thread saver = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                saveQuietly();
+            }
+        }, "cache-snapshot");
+        saver.setDaemon(true);
+        saver.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveQuietly, "cache-snapshot-shutdown"));
+    }
+
+    private synchronized void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /** Writes nodes to a snapshot and counts them, keeping the hash and offset of each node for
+     * the index. The first error stops the writing, and is kept to be thrown once the cache has
+     * been visited.
+     */
+    private static final class NodeWriter {
+
+        private final DataOutputStream out;
+        private int nodes;
+        private int records;
+        private int[] hashes = new int[1024];
+        private int[] offsets = new int[1024];
+        private int indexed;
+        private IOException error;
+
+        NodeWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        /** Returns the offset in the file of the next byte written.
+         */
+        int offset() {
+            return HEADER_SIZE + out.size();
+        }
+
+        void write(DNSNode node, Set<ResourceRecord> nodeRecords) {
+            if (error != null)
+                return;
+            try {
+                int offset = offset();
+                int written = writeNode(out, node, nodeRecords);
+                if (written == 0)
+                    return;
+                nodes++;
+                records += written;
+                if (indexed == hashes.length) {
+                    hashes = Arrays.copyOf(hashes, indexed * 2);
+                    offsets = Arrays.copyOf(offsets, indexed * 2);
+                }
+                hashes[indexed] = hash(node.getHostName(), node.getType().getCode());
+                offsets[indexed++] = offset;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /** Returns the index of the nodes written, with at least twice as many slots as nodes.
+         */
+        int[] buildIndex() {
+            int bits = 33 - Integer.numberOfLeadingZeros(Math.max(1, indexed));
+            int[] table = new int[1 << bits];
+            for (int i = 0; i < indexed; i++) {
+                int slot = slotOf(hashes[i], bits);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (table.length - 1);
+                table[slot] = offsets[i];
+            }
+            return table;
+        }
+    }
+
+    /** Writes one node and its records.
+     *
+     * @return The number of records written.
+     */
+    private static int writeNode(DataOutputStream out, DNSNode node, Set<ResourceRecord> records) throws IOException {
+        boolean address = node.getType() == RecordType.A || node.getType() == RecordType.AAAA;
+        int count = 0;
+        for (ResourceRecord record : records)
+            if (!address || record.getInetResult() != null)
+                count++;
+        if (count == 0)
+            return 0;
+
+        writeString(out, node.getHostName());
+        out.writeShort(node.getType().getCode());
+        out.writeInt(count);
+        for (ResourceRecord record : records) {
+            if (address) {
+                if (record.getInetResult() == null)
+                    continue;
+                byte[] raw = record.getInetResult().getAddress();
+                out.writeLong(record.getExpirationTime());
+                out.writeByte(raw.length);
+                out.write(raw);
+            } else {
+                out.writeLong(record.getExpirationTime());
+                writeString(out, record.getTextResult());
+            }
+        }
+        return count;
+    }
+
+    private static int nodeType(ByteBuffer buffer, int offset) {
+        return buffer.getShort(offset + 2 + (buffer.getShort(offset) & 0xFFFF)) & 0xFFFF;
+    }
+
+    /** Returns the hash of a node in the index: of its name, without regard to case, and type.
+     */
+    private static int hash(String hostName, int type) {
+        int hash = 0;
+        for (int i = 0; i < hostName.length(); i++)
+            hash = 31 * hash + Character.toLowerCase(hostName.charAt(i));
+        return 31 * hash + type;
+    }
+
+    /** Returns the first slot of a hash in an index of 2^bits slots. The slot is taken from the
+     * high bits of the mixed hash, since names that differ in a few characters have close hashes.
+     */
+    private static int slotOf(int hash, int bits) {
+        return (hash * 0x9E3779B9) >>> (32 - bits);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /** The index of a loaded snapshot, read from the mapped file, with a flag per slot set once
+     * the node of the slot is added to the cache, so it is not added again.
+     */
+    private static final class Index {
+
+        final ByteBuffer buffer;
+        final int slots;
+        private final int indexOffset;
+        private final int bits;
+        private final AtomicLongArray restored;
+
+        Index(ByteBuffer buffer, int indexOffset, int slots) {
+            this.buffer = buffer;
+            this.indexOffset = indexOffset;
+            this.slots = slots;
+            this.bits = Integer.numberOfTrailingZeros(slots);
+            this.restored = new AtomicLongArray((slots + 63) / 64);
+        }
+
+        int offset(int slot) {
+            return buffer.getInt(indexOffset + 4 * slot);
+        }
+
+        /** Returns the slot of a node, or -1 if the index does not have the node.
+         */
+        int find(DNSNode node) {
+            String name = node.getHostName();
+            int type = node.getType().getCode();
+            int slot = slotOf(hash(name, type), bits);
+            for (int offset; (offset = offset(slot)) != 0; slot = (slot + 1) & (slots - 1))
+                if (matches(offset, name, type))
+                    return slot;
+            return -1;
+        }
+
+        boolean isRestored(int slot) {
+            return (restored.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        void setRestored(int slot) {
+            restored.getAndAccumulate(slot >>> 6, 1L << slot, (word, bit) -> word | bit);
+        }
+
+        private boolean matches(int offset, String name, int type) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            if (length != name.length() || nodeType(buffer, offset) != type)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (Character.toLowerCase((char) (buffer.get(offset + 2 + i) & 0xFF))
+                        != Character.toLowerCase(name.charAt(i)))
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A clock with a resolution of a few milliseconds, meant for the hot paths of the cache. The
+ * current time is read by a background thread and published in a volatile field, so reading
+ * the clock is a single memory load.
+ */
+public final class CoarseClock {
+
+    private static final long RESOLUTION = 5;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = System.currentTimeMillis();
+                try {
+                    Thread.sleep(RESOLUTION);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /** Returns the current time, at most a few milliseconds behind System.currentTimeMillis.
+     *
+     * @return The current time, in milliseconds since the epoch.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
@@ -0,0 +1,143 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Encodes the response to a query received from a client. The response repeats the ID, the
+ * RD flag and the question of the query, and carries the given records in its answer section.
+ * Owner names equal to the name in the question are compressed to a pointer to the question;
+ * other names are written as they are, without going through the cache of query names.
+ * If the records do not fit in the buffer, the response is sent with the TC flag set and no
+ * records, so the client can retry over TCP.
+ */
+public class DNSAnswer {
+
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_FORMERR = 1;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    public static final int RCODE_NOTIMP = 4;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_RA = 0x0080;
+    private static final int QUESTION_POINTER = 0xC000 | HEADER_SIZE;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private DNSAnswer() {
+    }
+
+    /** Writes the response to a query into a buffer, at its position.
+     *
+     * @param out     Buffer the response is written to; its position is advanced past the response.
+     * @param query   Query the response is for.
+     * @param rcode   Response code.
+     * @param answers Records of the answer section, in order.
+     */
+    public static void encode(ByteBuffer out, DNSResponse query, int rcode, List<ResourceRecord> answers) {
+        encode(out, query, rcode, answers, null);
+    }
+
+    /** Writes the response to a query into a buffer, at its position, and records where the TTL
+     * of each record was written.
+     *
+     * @param out        Buffer the response is written to; its position is advanced past the response.
+     * @param query      Query the response is for.
+     * @param rcode      Response code.
+     * @param answers    Records of the answer section, in order.
+     * @param ttlOffsets Array filled with the offset of the TTL field of each record, from the
+     *                   start of the response, or null; must hold at least one entry per record.
+     * @return true if all the records were written, false if the response was truncated.
+     */
+    public static boolean encode(ByteBuffer out, DNSResponse query, int rcode, List<ResourceRecord> answers, int[] ttlOffsets) {
+        int start = out.position();
+        try {
+            writeHeader(out, query, rcode, 0, answers.size());
+            query.writeQuestionTo(out);
+            for (int i = 0; i < answers.size(); i++) {
+                int ttlOffset = writeRecord(out, query, answers.get(i));
+                if (ttlOffsets != null)
+                    ttlOffsets[i] = ttlOffset - start;
+            }
+            return true;
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            writeHeader(out, query, rcode, FLAG_TC, 0);
+            query.writeQuestionTo(out);
+            return false;
+        }
+    }
+
+    /** Writes the response to a query that has no question or cannot be answered at all: only
+     * its header, with the given response code.
+     *
+     * @param out   Buffer the response is written to; its position is advanced past the response.
+     * @param query Query the response is for.
+     * @param rcode Response code.
+     */
+    public static void encodeError(ByteBuffer out, DNSResponse query, int rcode) {
+        out.putShort((short) query.qID);
+        out.putShort((short) (FLAG_QR | (query.flags & FLAG_RD) | FLAG_RA | (query.getOpcode() << 11) | rcode));
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+    }
+
+    private static void writeHeader(ByteBuffer out, DNSResponse query, int rcode, int extraFlags, int anCount) {
+        out.putShort((short) query.qID);
+        out.putShort((short) (FLAG_QR | (query.flags & FLAG_RD) | FLAG_RA | extraFlags | rcode));
+        out.putShort((short) 1);        // QDCOUNT
+        out.putShort((short) anCount);  // ANCOUNT
+        out.putShort((short) 0);        // NSCOUNT
+        out.putShort((short) 0);        // ARCOUNT
+    }
+
+    /** Writes a record of the answer section.
+     *
+     * @return The position of the TTL field of the record in the buffer.
+     */
+    private static int writeRecord(ByteBuffer out, DNSResponse query, ResourceRecord record) {
+        if (record.getHostName().equalsIgnoreCase(query.qName))
+            out.putShort((short) QUESTION_POINTER);
+        else
+            writeName(out, record.getHostName());
+        out.putShort((short) record.getType().getCode());
+        out.putShort((short) CLASS_IN);
+        int ttlOffset = out.position();
+        out.putInt((int) Math.max(0, record.getTTL()));
+        int lengthOffset = out.position();
+        out.putShort((short) 0);
+        if (record.getInetResult() != null)
+            out.put(record.getInetResult().getAddress());
+        else
+            writeName(out, record.getTextResult());
+        out.putShort(lengthOffset, (short) (out.position() - lengthOffset - 2));
+        return ttlOffset;
+    }
+
+    /** Writes a name as a sequence of labels, each preceded by its length octet, followed by
+     * the 0 byte. The case of the name is kept.
+     */
+    private static void writeName(ByteBuffer out, String name) {
+        int labelStart = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            if (i == name.length() || name.charAt(i) == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength > MAX_LABEL_LENGTH)
+                    throw new IllegalArgumentException("Label too long in " + name);
+                if (labelLength > 0) {
+                    out.put((byte) labelLength);
+                    for (int c = labelStart; c < i; c++)
+                        out.put((byte) name.charAt(c));
+                }
+                labelStart = i + 1;
+            }
+        }
+        out.put((byte) 0);
+    }
+}
@@ -1,20 +1,97 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import com.sun.org.apache.regexp.internal.RE;
-
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server: a background thread removes records shortly
+ * after they expire, and expired records are never returned to the user.
+ *
+ * The cache is safe to share between concurrent lookups. It is based on a concurrent hash map,
+ * so lookups do not lock and updates only lock the bin of the node being changed. The records
+ * of each node are kept in an immutable entry that is replaced as a whole on every change, so
+ * a read never changes the structure of the cache. The names of the cached nodes are also
+ * indexed in a trie of reversed labels, so all the records of a name, the closest cached
+ * ancestor of a name and the names below a zone are found without scanning the cache.
+ *
+ * The cache is bounded both in number of nodes and in approximate memory used. When it is over
+ * either limit, nodes are evicted following a W-TinyLFU policy, which favours nodes that are used
+ * often (such as TLD nameservers) over nodes that were only used once. The limits default to the
+ * values of the dnslookup.cache.maxEntries and dnslookup.cache.maxBytes system properties.
+ *
+ * The cache also remembers negative results (RFC 2308): names that do not exist (NXDOMAIN) and
+ * names that exist but have no record of a given type (NODATA), for the negative TTL given by
+ * the SOA record of the response. Negative results are bounded separately, by the
+ * dnslookup.cache.maxNegativeEntries system property.
+ *
+ * Unless the dnslookup.cache.compact system property is false, A, AAAA, NS and CNAME records
+ * are stored in compact form: flat arrays of primitive addresses, interned target names and
+ * expiration times, from which ResourceRecord objects are only built when they are read. The
+ * records themselves then take 12 bytes per A record and 24 per AAAA record, but each node
+ * still costs about 480 bytes on a 64-bit JVM with compressed references, besides its name: the
+ * map entry and key, the name trie, the eviction policy and the expiry index each keep their own
+ * objects per node. A name with a single A record thus takes about half a kilobyte, well above
+ * the 40 bytes of the record data; getting there would need one flat table shared by all these
+ * indexes. NS and CNAME records keep a reference to the target name in a shared name table, so
+ * a nameserver named by many zones is stored once and a record only adds its reference.
+ *
+ * If a refresh handler is set, nodes that clients read often are refreshed ahead of their
+ * expiry: once a node has been read by clients dnslookup.prefetch.minHits times and a fraction
+ * (dnslookup.prefetch.fraction) of the TTL of its earliest record has passed, the next read asks
+ * the handler to resolve the node again, so frequent readers never see it expire.
+ *
+ * Expired records are not returned by the usual methods, but are kept for a stale window
+ * (dnslookup.cache.staleWindow seconds) after they expire, so that they can be served stale
+ * (RFC 8767) when a fresh resolution fails or takes too long. Stale records of a node are
+ * dropped as soon as a fresh record is added to the node. Stale nodes still count against the
+ * size of the cache, so the window is kept short by default: long enough to ride out a failed
+ * or slow resolution, not to keep a day of expired names.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_INTERVAL = 1000;
+    private static final long DEFAULT_MAXIMUM_ENTRIES = Long.getLong("dnslookup.cache.maxEntries", 1000000L);
+    private static final long DEFAULT_MAXIMUM_BYTES = Long.getLong("dnslookup.cache.maxBytes", 256L << 20);
+    private static final long DEFAULT_MAXIMUM_NEGATIVE_ENTRIES = Long.getLong("dnslookup.cache.maxNegativeEntries", 100000L);
+    private static final boolean COMPACT_STORAGE = !"false".equals(System.getProperty("dnslookup.cache.compact"));
+    private static final double REFRESH_FRACTION = Double.parseDouble(System.getProperty("dnslookup.prefetch.fraction", "0.9"));
+    private static final int REFRESH_MINIMUM_HITS = Integer.getInteger("dnslookup.prefetch.minHits", 3);
+    private static final long STALE_WINDOW = Long.getLong("dnslookup.cache.staleWindow", 300) * 1000;
+    private static final long STALE_TTL = 30;
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final ConcurrentHashMap<DNSNode, CachedNode> cachedResults = new ConcurrentHashMap<>();
+    private final ExpiryIndex<DNSNode> expiryIndex = new ExpiryIndex<>(EXPIRY_INTERVAL);
+    private final NameTrie names = new NameTrie();
+    private final NameTable targets = new NameTable();
+    private final TinyLfuPolicy<DNSNode> policy =
+            new TinyLfuPolicy<>(DEFAULT_MAXIMUM_ENTRIES, DEFAULT_MAXIMUM_BYTES, this::removeNode);
+
+    private final ConcurrentHashMap<NegativeKey, Long> negativeResults = new ConcurrentHashMap<>();
+    private final ExpiryIndex<NegativeKey> negativeExpiryIndex = new ExpiryIndex<>(EXPIRY_INTERVAL);
+    private final TinyLfuPolicy<NegativeKey> negativePolicy =
+            new TinyLfuPolicy<>(DEFAULT_MAXIMUM_NEGATIVE_ENTRIES, Long.MAX_VALUE, negativeResults::remove);
+
+    private volatile Predicate<DNSNode> refreshHandler;
+    private volatile Predicate<DNSNode> missHandler;
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+    private DNSCache() {
+        Thread expiry = new Thread(this::runExpiry, "dnscache-expiry");
+        expiry.setDaemon(true);
+        expiry.start();
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -26,37 +103,213 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are left out of
+     * the returned set. This method does not perform the query itself, it only returns
+     * previously cached results. The returned set is immutable.
+     *
+     * The read counts for eviction, but not for refreshing the node: reads made by the resolver
+     * itself would make every node it touches look popular. Reads made on behalf of a client
+     * use getClientResults instead.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
+        CachedNode results = getNode(node);
         if (results == null)
             return Collections.emptySet();
+        policy.recordRead(node);
+        return results.getValidRecords(CoarseClock.currentTimeMillis());
+    }
+
+    /** Returns the records cached for a query read on behalf of a client, as getCachedResults
+     * does. The read also counts for refreshing the node ahead of its expiry.
+     *
+     * @param node DNS query (host name and record type) asked by a client.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public Set<ResourceRecord> getClientResults(DNSNode node) {
+        CachedNode results = getNode(node);
+        if (results == null)
+            return Collections.emptySet();
+        long now = CoarseClock.currentTimeMillis();
+        recordHit(node, results, now);
+        return results.getValidRecords(now);
+    }
+
+    /** Returns the entry of a node, asking the miss handler for the node if it is not cached.
+     *
+     * @param node DNS query (host name and record type) to be looked up.
+     * @return The entry of the node, or null if the node is not cached.
+     */
+    private CachedNode getNode(DNSNode node) {
+        CachedNode results = cachedResults.get(node);
+        if (results != null)
+            return results;
+        Predicate<DNSNode> handler = missHandler;
+        if (handler == null || !handler.test(node))
+            return null;
+        return cachedResults.get(node);
+    }
+
+    /** Returns true if the cache holds unexpired records for a query. The check builds no set
+     * of records, and does not count as a read of the node.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if some records of the query have not expired.
+     */
+    public boolean hasResults(DNSNode node) {
+        CachedNode results = getNode(node);
+        return results != null && results.hasValidRecords(CoarseClock.currentTimeMillis());
+    }
+
+    /** Records a read of a node by a client that is answered without its records, for example
+     * from an answer encoded earlier, or before the node is looked up. The read counts for
+     * eviction and for refreshing the node as if its records had been obtained with
+     * getClientResults.
+     *
+     * @param node DNS query (host name and record type) asked by a client.
+     */
+    public void recordHit(DNSNode node) {
+        CachedNode results = cachedResults.get(node);
+        if (results != null)
+            recordHit(node, results, CoarseClock.currentTimeMillis());
+    }
+
+    private void recordHit(DNSNode node, CachedNode results, long now) {
+        policy.recordRead(node);
+        Predicate<DNSNode> handler = refreshHandler;
+        if (handler != null && results.hit(now) && !handler.test(node))
+            results.cancelRefresh();
+    }
+
+    /** Returns the records of a query that expired less than the stale window ago, as copies
+     * with a short TTL. The copies are not added to the cache. Records that have not expired are
+     * not returned; those are obtained with getCachedResults.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        CachedNode results = cachedResults.get(node);
+        if (results == null)
+            return Collections.emptySet();
+        long now = CoarseClock.currentTimeMillis();
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (ResourceRecord record : results.getRecords())
+            if (record.getExpirationTime() <= now && record.getExpirationTime() + STALE_WINDOW > now)
+                stale.add(new ResourceRecord(record.getNode(), now + STALE_TTL * 1000,
+                        record.getTextResult(), record.getInetResult()));
+        return stale;
+    }
+
+    /** Sets the handler asked to refresh nodes that are read often and are about to expire. The
+     * handler is called on the reading thread, at most once per cached entry unless it declines
+     * the refresh, and should only start the refresh, not wait for it.
+     *
+     * @param handler Function that starts resolving a node again, and returns false if it
+     *                could not (for example because too many refreshes are in progress), or
+     *                null to disable refreshing.
+     */
+    public void setRefreshHandler(Predicate<DNSNode> handler) {
+        this.refreshHandler = handler;
+    }
+
+    /** Sets the handler asked for the records of nodes that are not cached, such as a snapshot
+     * of the cache that is not fully restored yet. The handler is called on the reading thread
+     * for each read of a node missing from the cache, and should return quickly.
+     *
+     * @param handler Function that adds the records of a node to the cache (with
+     *                restoreResults), and returns true if it did, or null to disable it.
+     */
+    public void setMissHandler(Predicate<DNSNode> handler) {
+        this.missHandler = handler;
+    }
+
+    /** Adds a listener told about every change to the cache, such as a cache of encoded answers
+     * built from the cached records. The listener is called on the changing thread, after the
+     * change, with the host name of the changed node; it should return quickly. Adding a record
+     * or a negative result that the cache already holds is not a change.
+     *
+     * @param listener Function called with the host name of each added, updated, expired or
+     *                 removed node, and of each name given a negative result.
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+    private void fireChanged(String hostName) {
+        for (Consumer<String> listener : changeListeners)
+            listener.accept(hostName);
     }
 
+    /** Returns the unexpired records cached for a host name, of any record type.
+     *
+     * @param host Fully qualified domain name.
+     * @return A potentially empty set of resources associated to the host name.
+     */
     public Set<ResourceRecord> getCacheFromQuery(String host) {
         Set<ResourceRecord> res = new HashSet<>();
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry: cachedResults.entrySet()) {
-            DNSNode n = entry.getKey();
-            Map<ResourceRecord, ResourceRecord> rrMap = entry.getValue();
-            if (n.getHostName().equalsIgnoreCase(host)) {
-                for (ResourceRecord rr: rrMap.keySet()) {
-                    res.add(rr);
-                }
-            }
+        long now = CoarseClock.currentTimeMillis();
+        for (DNSNode node : names.getNodes(host)) {
+            CachedNode results = cachedResults.get(node);
+            if (results != null)
+                res.addAll(results.getValidRecords(now));
         }
 
         return res;
     }
 
+    /** Returns the deepest zone cut above (or at) a host name for which the cache holds both the
+     * NS records of the zone and at least one IPv4 address of one of its nameservers. The root
+     * zone is never returned, since its servers are not taken from the cache.
+     *
+     * @param hostName Fully qualified domain name to be resolved.
+     * @return The closest usable delegation, or null if none is cached.
+     */
+    public Delegation findClosestDelegation(String hostName) {
+        // nodes the miss handler can still add are not in the name index yet, so every ancestor
+        // of the name is tried until the handler is removed
+        List<DNSNode> zones = missHandler == null ? names.getAncestors(hostName, RecordType.NS)
+                : getAncestors(hostName, RecordType.NS);
+        for (DNSNode zone : zones) {
+            List<InetAddress> servers = getNameServerAddresses(zone.getHostName());
+            if (!servers.isEmpty())
+                return new Delegation(zone.getHostName(), servers);
+        }
+        return null;
+    }
+
+    /** Returns the nodes of a given type for a host name and each of its ancestors, deepest
+     * first, whether they are cached or not. The root is left out.
+     */
+    private static List<DNSNode> getAncestors(String hostName, RecordType type) {
+        List<DNSNode> ancestors = new ArrayList<>();
+        for (int start = 0; start < hostName.length(); start = hostName.indexOf('.', start) + 1) {
+            ancestors.add(new DNSNode(hostName.substring(start), type));
+            if (hostName.indexOf('.', start) < 0)
+                break;
+        }
+        return ancestors;
+    }
+
+    /** Returns the cached IPv4 addresses of the cached nameservers of a zone.
+     *
+     * @param zone Name of the zone.
+     * @return A potentially empty list of nameserver addresses.
+     */
+    private List<InetAddress> getNameServerAddresses(String zone) {
+        Set<ResourceRecord> nameServers = getCachedResults(new DNSNode(zone, RecordType.NS));
+        if (nameServers.isEmpty())
+            return Collections.emptyList();
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord ns : nameServers)
+            for (ResourceRecord address : getCachedResults(new DNSNode(ns.getTextResult(), RecordType.A)))
+                if (address.getInetResult() != null)
+                    servers.add(address.getInetResult());
+        return servers;
+    }
+
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
      * record, otherwise the existing record is maintained.
@@ -68,48 +321,925 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        boolean[] changed = new boolean[1];
+        CachedNode updated = cachedResults.compute(sharedKey(record.getNode()), (node, results) -> {
+            if (results == null) {
+                names.add(node);
+                changed[0] = true;
+                return newNode(node, record);
+            }
+            CachedNode merged = results.with(record, CoarseClock.currentTimeMillis());
+            // an equivalent record that does not expire later leaves the node as it is
+            changed[0] = merged != results;
+            if (changed[0])
+                results.release();
+            return merged;
+        });
+        expiryIndex.schedule(record.getNode(), updated.earliestExpiration + STALE_WINDOW);
+        policy.recordWrite(record.getNode(), this::currentWeight);
+        if (changed[0])
+            fireChanged(record.getHostName());
+
+        // a positive result supersedes any negative result for the same name and type
+        if (!negativeResults.isEmpty()) {
+            removeNegativeResult(NegativeKey.noData(record.getNode()));
+            removeNegativeResult(NegativeKey.nxDomain(record.getHostName()));
         }
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Adds the records of a node restored from a snapshot. The records are merged into the
+     * entry of the node in a single update, so restoring a node costs about as much as adding
+     * one record. Expired records are skipped, and negative results are left unchanged.
+     *
+     * @param node    DNS node (host name and record type) of the records.
+     * @param records Records of the node, possibly expired.
+     */
+    public void restoreResults(DNSNode node, List<ResourceRecord> records) {
+        long now = CoarseClock.currentTimeMillis();
+        boolean[] changed = new boolean[1];
+        CachedNode updated = cachedResults.compute(sharedKey(node), (n, results) -> {
+            changed[0] = false;
+            CachedNode merged = results;
+            for (ResourceRecord record : records) {
+                if (record.getExpirationTime() <= now)
+                    continue;
+                if (merged == null) {
+                    names.add(n);
+                    merged = newNode(n, record);
+                } else {
+                    CachedNode next = merged.with(record, now);
+                    if (next != merged)
+                        merged.release();
+                    merged = next;
+                }
+            }
+            changed[0] = merged != results;
+            return merged;
+        });
+        if (updated == null)
+            return;
+        expiryIndex.schedule(node, updated.earliestExpiration + STALE_WINDOW);
+        policy.recordWrite(node, this::currentWeight);
+        if (changed[0])
+            fireChanged(node.getHostName());
+    }
+
+    /** Returns the key a node is added to the cache with: the node itself, or an equal node
+     * whose host name is the interned copy of the name if the name table holds one. The
+     * address nodes of a nameserver then share the name of the NS records pointing to it.
+     *
+     * @param node DNS node (host name and record type) being added.
+     * @return A node equal to the given one.
+     */
+    private DNSNode sharedKey(DNSNode node) {
+        String hostName = targets.share(node.getHostName());
+        return hostName == node.getHostName() ? node : new DNSNode(hostName, node.getType());
+    }
+
+    /** Creates the entry of a node holding a single record, in compact form if possible.
+     *
+     * @param node   Key of the node in the cache.
+     * @param record First record of the node.
+     * @return A new entry.
+     */
+    private CachedNode newNode(DNSNode node, ResourceRecord record) {
+        if (COMPACT_STORAGE && CompactNode.fits(record))
+            return CompactNode.of(node, record, targets);
+        return new ObjectNode(new ResourceRecord[] { record });
+    }
+
+    /** Adds a negative result to the cache: either the name of a node does not exist at all
+     * (NXDOMAIN), or it exists but has no record of the node's type (NODATA).
+     *
+     * @param node     DNS query (host name and record type) that had no result.
+     * @param nxDomain true if the name does not exist, false if only the record type is missing.
+     * @param ttl      Negative TTL, in seconds, usually the minimum of the SOA record's TTL and
+     *                 its MINIMUM field.
+     */
+    public void addNegativeResult(DNSNode node, boolean nxDomain, long ttl) {
+        if (ttl <= 0) return;
+
+        NegativeKey key = nxDomain ? NegativeKey.nxDomain(node.getHostName()) : NegativeKey.noData(node);
+        long expiration = CoarseClock.currentTimeMillis() + ttl * 1000;
+        boolean[] changed = new boolean[1];
+        Long updated = negativeResults.compute(key, (k, previous) -> {
+            changed[0] = previous == null || previous < expiration;
+            return changed[0] ? expiration : previous;
+        });
+        negativeExpiryIndex.schedule(key, updated);
+        negativePolicy.recordWrite(key, this::negativeWeight);
+        if (changed[0])
+            fireChanged(node.getHostName());
+    }
+
+    /** Returns true if the cache holds an unexpired negative result for a query: either its
+     * name does not exist, or it has no record of the query's type.
+     *
+     * @param node DNS query (host name and record type) to be checked.
+     * @return true if the query is known to have no result.
+     */
+    public boolean isNegativelyCached(DNSNode node) {
+        if (negativeResults.isEmpty())
+            return false;
+        return isNegativelyCached(NegativeKey.nxDomain(node.getHostName()))
+                || isNegativelyCached(NegativeKey.noData(node));
+    }
+
+    /** Returns true if the cache holds an unexpired negative result saying that a name does not
+     * exist at all (NXDOMAIN).
+     *
+     * @param hostName Host name to be checked.
+     * @return true if the name is known not to exist.
+     */
+    public boolean isNonExistent(String hostName) {
+        return !negativeResults.isEmpty() && isNegativelyCached(NegativeKey.nxDomain(hostName));
+    }
+
+    private boolean isNegativelyCached(NegativeKey key) {
+        Long expiration = negativeResults.get(key);
+        if (expiration == null || expiration <= CoarseClock.currentTimeMillis())
+            return false;
+        negativePolicy.recordRead(key);
+        return true;
+    }
+
+    private void removeNegativeResult(NegativeKey key) {
+        if (negativeResults.remove(key) != null)
+            negativePolicy.recordUpdate(key, this::negativeWeight);
+    }
+
+    /** Removes a negative result if it has expired.
+     *
+     * @param key Key of the negative result.
+     * @param now Current time, in milliseconds since the epoch.
+     */
+    private void expireNegative(NegativeKey key, long now) {
+        Long remaining = negativeResults.computeIfPresent(key, (k, expiration) -> expiration > now ? expiration : null);
+        if (remaining != null)
+            negativeExpiryIndex.schedule(key, remaining);
+        else
+            negativePolicy.recordUpdate(key, this::negativeWeight);
+    }
+
+    /** Removes a node from the cache and from the index of names. Used by the eviction policy.
+     *
+     * @param node DNS node to be removed.
+     */
+    private void removeNode(DNSNode node) {
+        cachedResults.computeIfPresent(node, (n, results) -> {
+            names.remove(n);
+            results.release();
+            return null;
+        });
+        fireChanged(node.getHostName());
+    }
+
+    /** Returns the weight of the cached entry of a node, for the eviction policy, which reads it
+     * with its lock held after each change.
+     *
+     * @param node DNS node to be weighed.
+     * @return Weight of the entry of the node, or -1 if the node is not cached.
+     */
+    private long currentWeight(DNSNode node) {
+        CachedNode results = cachedResults.get(node);
+        return results != null ? results.weight : -1;
+    }
+
+    /** Returns the weight of a negative result, for the negative policy.
+     *
+     * @param key Key of the negative result.
+     * @return 1 if the negative result is cached, -1 otherwise.
+     */
+    private long negativeWeight(NegativeKey key) {
+        return negativeResults.containsKey(key) ? 1 : -1;
     }
 
     /** Removes all entries in the cache.
      */
     public void flushCache() {
-        cachedResults = new TreeMap<>();
+        for (DNSNode node : cachedResults.keySet())
+            removeNode(node);
+        expiryIndex.clear();
+        policy.clear();
+        negativeResults.clear();
+        negativeExpiryIndex.clear();
+        negativePolicy.clear();
+    }
+
+    /** Changes the limits of the cache. Nodes are evicted right away if the cache is over the
+     * new limits.
+     *
+     * @param maximumEntries Maximum number of nodes kept in the cache.
+     * @param maximumBytes   Maximum approximate memory used by the cached nodes and records.
+     */
+    public void setMaximumSize(long maximumEntries, long maximumBytes) {
+        policy.setMaximum(maximumEntries, maximumBytes);
+    }
+
+    /** Returns the number of nodes in the cache, as tracked by the eviction policy.
+     *
+     * @return Number of cached nodes.
+     */
+    public long getEntryCount() {
+        return policy.getEntryCount();
+    }
+
+    /** Returns the approximate memory used by the cached nodes and records.
+     *
+     * @return Approximate size of the cache, in bytes.
+     */
+    public long getWeightedSize() {
+        return policy.getWeightedSize();
+    }
+
+    /** Returns the number of nodes evicted because the cache was over its limits.
+     *
+     * @return Number of evicted nodes.
+     */
+    public long getEvictionCount() {
+        return policy.getEvictionCount();
+    }
+
+    /** Returns the approximate memory released by evictions.
+     *
+     * @return Total size of the evicted nodes, in bytes.
+     */
+    public long getEvictionWeight() {
+        return policy.getEvictionWeight();
+    }
+
+    /** Body of the background expiry thread: periodically removes the records that expired
+     * since the last run.
+     */
+    private void runExpiry() {
+        while (true) {
+            try {
+                Thread.sleep(EXPIRY_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = CoarseClock.currentTimeMillis();
+            expiryIndex.drainExpired(now, node -> expire(node, now));
+            negativeExpiryIndex.drainExpired(now, key -> expireNegative(key, now));
+        }
+    }
+
+    /** Removes the records of a node that expired more than the stale window ago, and the node
+     * itself if no record is left. If some records are left, the node is scheduled again for the
+     * end of the stale window of the earliest of their expirations.
+     *
+     * @param node DNS node to be checked.
+     * @param now  Current time, in milliseconds since the epoch.
+     */
+    private void expire(DNSNode node, long now) {
+        CachedNode remaining = cachedResults.computeIfPresent(node, (n, results) -> {
+            CachedNode valid = results.withoutExpired(now - STALE_WINDOW);
+            if (valid == null)
+                names.remove(n);
+            if (valid != results)
+                results.release();
+            return valid;
+        });
+        if (remaining != null)
+            expiryIndex.schedule(node, remaining.earliestExpiration + STALE_WINDOW);
+        policy.recordUpdate(node, this::currentWeight);
+        fireChanged(node.getHostName());
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Nodes are visited in sorted order,
+     * from a snapshot of the cache taken before the first action is performed, and expired
+     * records are left out of the snapshot.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
-        }
+        for (Map.Entry<DNSNode, Set<ResourceRecord>> entry : snapshot().entrySet())
+            consumer.accept(entry.getKey(), entry.getValue());
+    }
+
+    /** Perform a specific action for each query at or below a zone and its set of cached
+     * records. Expired records are left out, and nodes without unexpired records are skipped.
+     *
+     * @param zone     Name of the zone, such as ubc.ca.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNodeUnder(String zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        long now = CoarseClock.currentTimeMillis();
+        names.forEachInSubtree(zone, node -> {
+            CachedNode results = cachedResults.get(node);
+            if (results == null)
+                return;
+            Set<ResourceRecord> records = results.getValidRecords(now);
+            if (!records.isEmpty())
+                consumer.accept(node, records);
+        });
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Records are visited from a sorted
+     * snapshot of the cache, and expired records are left out of the snapshot.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        for (Map.Entry<DNSNode, Set<ResourceRecord>> entry : snapshot().entrySet())
+            entry.getValue().forEach(record -> consumer.accept(entry.getKey(), record));
+    }
+
+    /** Perform a specific action for each query and its set of cached records, in no particular
+     * order and without taking a snapshot of the cache first. Expired records are left out, and
+     * nodes without unexpired records are skipped. Changes made to the cache while the nodes are
+     * visited may or may not be seen.
+     *
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNodeUnsorted(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        long now = CoarseClock.currentTimeMillis();
+        for (Map.Entry<DNSNode, CachedNode> entry : cachedResults.entrySet()) {
+            Set<ResourceRecord> records = entry.getValue().getValidRecords(now);
+            if (!records.isEmpty())
+                consumer.accept(entry.getKey(), records);
+        }
+    }
+
+    /** Copies the unexpired records of every node into a map sorted by node.
+     *
+     * @return A sorted snapshot of the cache.
+     */
+    private SortedMap<DNSNode, Set<ResourceRecord>> snapshot() {
+        SortedMap<DNSNode, Set<ResourceRecord>> snapshot = new TreeMap<>();
+        long now = CoarseClock.currentTimeMillis();
+        for (Map.Entry<DNSNode, CachedNode> entry : cachedResults.entrySet()) {
+            Set<ResourceRecord> records = entry.getValue().getValidRecords(now);
+            if (!records.isEmpty())
+                snapshot.put(entry.getKey(), records);
+        }
+        return snapshot;
+    }
+
+    /** The records cached for one node. Instances are immutable; a change to the records of a
+     * node creates a new instance.
+     */
+    private abstract static class CachedNode {
+
+        // approximate heap footprint of a node besides its name and records: the map entry and
+        // key, the entry itself, its trie, policy and expiry index entries (measured on JDK 17)
+        static final long NODE_OVERHEAD = 440;
+
+        private static final AtomicIntegerFieldUpdater<CachedNode> REFRESHING =
+                AtomicIntegerFieldUpdater.newUpdater(CachedNode.class, "refreshing");
+
+        final long earliestExpiration;
+        final long weight;
+        final long refreshTime;
+        // only the read statistics are mutable; they are not carried over to a new entry
+        volatile int hits;
+        volatile int refreshing;
+
+        CachedNode(long earliestExpiration, long weight) {
+            long now = CoarseClock.currentTimeMillis();
+            this.earliestExpiration = earliestExpiration;
+            this.weight = weight;
+            this.refreshTime = now + (long) ((earliestExpiration - now) * REFRESH_FRACTION);
+        }
+
+        /** Counts a read of this entry at a given time, and returns true if the read should
+         * start a refresh: the entry was read often enough, it is past its refresh time, and no
+         * refresh was started for it yet. The count is approximate under concurrent reads.
+         */
+        boolean hit(long now) {
+            int count = hits;
+            if (count < REFRESH_MINIMUM_HITS)
+                hits = count + 1;
+            return count >= REFRESH_MINIMUM_HITS && now >= refreshTime && now < earliestExpiration
+                    && REFRESHING.compareAndSet(this, 0, 1);
+        }
+
+        /** Allows a later read to start a refresh again, after a refresh was declined.
+         */
+        void cancelRefresh() {
+            refreshing = 0;
+        }
+
+        /** Returns the records that have not expired at a given time, as an immutable set.
+         */
+        abstract Set<ResourceRecord> getValidRecords(long now);
+
+        /** Returns true if some records have not expired at a given time.
+         */
+        abstract boolean hasValidRecords(long now);
+
+        /** Returns all the records of this entry, including the expired ones.
+         */
+        abstract List<ResourceRecord> getRecords();
+
+        /** Returns an entry without the records expired at a given time, or null if every
+         * record has expired.
+         */
+        abstract CachedNode withoutExpired(long now);
+
+        /** Returns an entry with a record added, or replacing an equivalent record that
+         * expires earlier. Expired records are dropped from the new entry.
+         */
+        abstract CachedNode with(ResourceRecord record, long now);
+
+        /** Releases the resources held by this entry once it is no longer in the cache.
+         */
+        void release() {
+        }
+    }
+
+    /** The records of a node that are valid during an interval of time, in which none of them
+     * expires: from the latest expiration of the records already expired, included, to the
+     * earliest expiration of the valid records, excluded.
+     */
+    private static final class ValidRecords {
+        final Set<ResourceRecord> records;
+        final long from;
+        final long until;
+
+        ValidRecords(Set<ResourceRecord> records, long from, long until) {
+            this.records = records;
+            this.from = from;
+            this.until = until;
+        }
+
+        boolean holdsAt(long now) {
+            return now >= from && now < until;
+        }
+    }
+
+    /** A node whose records are kept as ResourceRecord objects. Used for the record types that
+     * have no compact form, and for all nodes when compact storage is disabled.
+     */
+    private static final class ObjectNode extends CachedNode {
+
+        // approximate heap footprint of a record and of an address
+        private static final long RECORD_OVERHEAD = 120;
+        private static final long ADDRESS_OVERHEAD = 48;
+
+        private final ResourceRecord[] records;
+        private final Set<ResourceRecord> recordSet;
+        private volatile ValidRecords valid;
+
+        ObjectNode(ResourceRecord[] records) {
+            super(earliestExpiration(records), weight(records));
+            this.records = records;
+            this.recordSet = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(records)));
+        }
+
+        private static long earliestExpiration(ResourceRecord[] records) {
+            long earliest = Long.MAX_VALUE;
+            for (ResourceRecord record : records)
+                earliest = Math.min(earliest, record.getExpirationTime());
+            return earliest;
+        }
+
+        private static long weight(ResourceRecord[] records) {
+            long size = NODE_OVERHEAD + 2L * records[0].getHostName().length();
+            for (ResourceRecord record : records)
+                size += RECORD_OVERHEAD + record.getTextResult().length()
+                        + (record.getInetResult() != null ? ADDRESS_OVERHEAD : 0);
+            return size;
+        }
+
+        /** If none of the records has expired, the shared immutable set of this entry is
+         * returned without copying. Otherwise the set of the records still valid is built once
+         * and reused until another record expires.
+         */
+        @Override
+        Set<ResourceRecord> getValidRecords(long now) {
+            if (now < earliestExpiration)
+                return recordSet;
+            ValidRecords cached = valid;
+            if (cached != null && cached.holdsAt(now))
+                return cached.records;
+            Set<ResourceRecord> set = null;
+            long from = Long.MIN_VALUE;
+            long until = Long.MAX_VALUE;
+            for (ResourceRecord record : records) {
+                long expiration = record.getExpirationTime();
+                if (expiration > now) {
+                    if (set == null)
+                        set = new HashSet<>();
+                    set.add(record);
+                    until = Math.min(until, expiration);
+                } else {
+                    from = Math.max(from, expiration);
+                }
+            }
+            Set<ResourceRecord> result = set == null ? Collections.<ResourceRecord>emptySet() : Collections.unmodifiableSet(set);
+            valid = new ValidRecords(result, from, until);
+            return result;
+        }
+
+        @Override
+        boolean hasValidRecords(long now) {
+            return now < earliestExpiration || !getValidRecords(now).isEmpty();
+        }
+
+        @Override
+        List<ResourceRecord> getRecords() {
+            return Arrays.asList(records);
+        }
+
+        @Override
+        CachedNode withoutExpired(long now) {
+            if (now < earliestExpiration)
+                return this;
+            List<ResourceRecord> valid = new ArrayList<>(records.length);
+            for (ResourceRecord record : records)
+                if (record.getExpirationTime() > now)
+                    valid.add(record);
+            return valid.isEmpty() ? null : new ObjectNode(valid.toArray(new ResourceRecord[0]));
+        }
+
+        @Override
+        CachedNode with(ResourceRecord record, long now) {
+            List<ResourceRecord> merged = new ArrayList<>(records.length + 1);
+            boolean replaced = false;
+            for (ResourceRecord old : records) {
+                if (old.equals(record)) {
+                    if (!old.expiresBefore(record))
+                        return this;
+                    merged.add(record);
+                    replaced = true;
+                } else if (old.getExpirationTime() > now) {
+                    merged.add(old);
+                }
+            }
+            if (!replaced)
+                merged.add(record);
+            return new ObjectNode(merged.toArray(new ResourceRecord[0]));
         }
     }
 
+    /** A node of type A, AAAA, NS or CNAME whose records are kept in flat arrays: the
+     * expiration time of each record as a long, and its data as an int IPv4 address, two longs
+     * of IPv6 address, or a reference to the interned target name of an NS or CNAME record. The
+     * host name is only kept once, in the node. ResourceRecord objects are only built when the
+     * records are iterated over. An A record takes 12 bytes of array space, an AAAA record 24
+     * bytes.
+     */
+    private static final class CompactNode extends CachedNode {
+
+        // approximate heap footprint of the array headers
+        private static final long ARRAYS_OVERHEAD = 32;
+
+        private final DNSNode node;
+        private final NameTable targets;
+        private final long[] expirations;
+        private final int[] values;        // A address
+        private final String[] names;      // NS and CNAME interned target name
+        private final long[] addresses6;   // AAAA address, two longs per record
+
+        /** Constructor for a CompactNode. The caller must have acquired one reference to each
+         * name in names, which the new entry takes over.
+         */
+        private CompactNode(DNSNode node, NameTable targets, long[] expirations, int[] values, String[] names, long[] addresses6) {
+            super(min(expirations), NODE_OVERHEAD + 2L * node.getHostName().length() + ARRAYS_OVERHEAD
+                    + 8L * expirations.length + (values != null ? 4L * values.length : 0)
+                    + (names != null ? 4L * names.length : 0)
+                    + (addresses6 != null ? 8L * addresses6.length : 0));
+            this.node = node;
+            this.targets = targets;
+            this.expirations = expirations;
+            this.values = values;
+            this.names = names;
+            this.addresses6 = addresses6;
+        }
+
+        private static long min(long[] values) {
+            long min = Long.MAX_VALUE;
+            for (long value : values)
+                min = Math.min(min, value);
+            return min;
+        }
+
+        /** Returns true if a record can be kept in a compact node.
+         */
+        static boolean fits(ResourceRecord record) {
+            switch (record.getType()) {
+                case A:
+                    return record.getInetResult() instanceof Inet4Address;
+                case AAAA:
+                    return record.getInetResult() instanceof Inet6Address;
+                case NS:
+                case CNAME:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /** Creates a compact node holding a single record, which must fit a compact node.
+         */
+        static CompactNode of(DNSNode node, ResourceRecord record, NameTable targets) {
+            long[] expirations = { record.getExpirationTime() };
+            switch (record.getType()) {
+                case A:
+                    return new CompactNode(node, targets, expirations, new int[] { toInt(record) }, null, null);
+                case AAAA:
+                    return new CompactNode(node, targets, expirations, null, null, toLongs(record.getInetResult()));
+                default:
+                    return new CompactNode(node, targets, expirations, null,
+                            new String[] { targets.acquire(record.getTextResult()) }, null);
+            }
+        }
+
+        /** Returns the records valid at a given time as a view of this entry, without building
+         * them: a read that only checks whether the node has records, or counts them, allocates
+         * nothing else.
+         */
+        @Override
+        Set<ResourceRecord> getValidRecords(long now) {
+            int valid = expirations.length;
+            if (now >= earliestExpiration)
+                for (long expiration : expirations)
+                    if (expiration <= now)
+                        valid--;
+            return valid == 0 ? Collections.<ResourceRecord>emptySet() : new RecordView(this, now, valid);
+        }
+
+        @Override
+        boolean hasValidRecords(long now) {
+            if (now < earliestExpiration)
+                return true;
+            for (long expiration : expirations)
+                if (expiration > now)
+                    return true;
+            return false;
+        }
+
+        @Override
+        List<ResourceRecord> getRecords() {
+            List<ResourceRecord> all = new ArrayList<>(expirations.length);
+            for (int i = 0; i < expirations.length; i++)
+                all.add(toRecord(i));
+            return all;
+        }
+
+        @Override
+        CachedNode withoutExpired(long now) {
+            if (now < earliestExpiration)
+                return this;
+            boolean[] keep = new boolean[expirations.length];
+            for (int i = 0; i < expirations.length; i++)
+                keep[i] = expirations[i] > now;
+            return copy(keep, -1, 0);
+        }
+
+        @Override
+        CachedNode with(ResourceRecord record, long now) {
+            if (!fits(record)) {
+                List<ResourceRecord> records = new ArrayList<>(getValidRecords(now));
+                records.add(record);
+                return new ObjectNode(records.toArray(new ResourceRecord[0]));
+            }
+            int match = indexOf(record);
+            if (match >= 0 && expirations[match] >= record.getExpirationTime())
+                return this;
+            boolean[] keep = new boolean[expirations.length];
+            for (int i = 0; i < expirations.length; i++)
+                keep[i] = i == match || expirations[i] > now;
+            if (match >= 0)
+                return copy(keep, match, record.getExpirationTime());
+
+            CompactNode kept = copy(keep, -1, 0);
+            int n = kept == null ? 0 : kept.expirations.length;
+            long[] newExpirations = kept == null ? new long[1] : Arrays.copyOf(kept.expirations, n + 1);
+            newExpirations[n] = record.getExpirationTime();
+            switch (node.getType()) {
+                case A: {
+                    int[] newValues = kept == null ? new int[1] : Arrays.copyOf(kept.values, n + 1);
+                    newValues[n] = toInt(record);
+                    return new CompactNode(node, targets, newExpirations, newValues, null, null);
+                }
+                case AAAA: {
+                    long[] newAddresses = kept == null ? new long[2] : Arrays.copyOf(kept.addresses6, 2 * n + 2);
+                    long[] address = toLongs(record.getInetResult());
+                    newAddresses[2 * n] = address[0];
+                    newAddresses[2 * n + 1] = address[1];
+                    return new CompactNode(node, targets, newExpirations, null, null, newAddresses);
+                }
+                default: {
+                    String[] newNames = kept == null ? new String[1] : Arrays.copyOf(kept.names, n + 1);
+                    newNames[n] = targets.acquire(record.getTextResult());
+                    return new CompactNode(node, targets, newExpirations, null, newNames, null);
+                }
+            }
+        }
+
+        @Override
+        void release() {
+            if (names != null)
+                for (String name : names)
+                    targets.release(name);
+        }
+
+        /** Returns the index of the record equivalent to a given record, or -1 if none.
+         */
+        private int indexOf(ResourceRecord record) {
+            switch (node.getType()) {
+                case A: {
+                    int address = toInt(record);
+                    for (int i = 0; i < values.length; i++)
+                        if (values[i] == address)
+                            return i;
+                    return -1;
+                }
+                case AAAA: {
+                    long[] address = toLongs(record.getInetResult());
+                    for (int i = 0; i < expirations.length; i++)
+                        if (addresses6[2 * i] == address[0] && addresses6[2 * i + 1] == address[1])
+                            return i;
+                    return -1;
+                }
+                default:
+                    for (int i = 0; i < names.length; i++)
+                        if (names[i].equals(record.getTextResult()))
+                            return i;
+                    return -1;
+            }
+        }
+
+        /** Copies the records selected by a mask into a new node, retaining their names,
+         * optionally changing the expiration of one record. Returns null if no record is kept.
+         */
+        private CompactNode copy(boolean[] keep, int changed, long expiration) {
+            int n = 0;
+            for (boolean k : keep)
+                if (k) n++;
+            if (n == 0)
+                return null;
+            long[] newExpirations = new long[n];
+            int[] newValues = values == null ? null : new int[n];
+            String[] newNames = names == null ? null : new String[n];
+            long[] newAddresses = addresses6 == null ? null : new long[2 * n];
+            int j = 0;
+            for (int i = 0; i < keep.length; i++) {
+                if (!keep[i])
+                    continue;
+                newExpirations[j] = i == changed ? expiration : expirations[i];
+                if (newValues != null)
+                    newValues[j] = values[i];
+                if (newNames != null) {
+                    newNames[j] = names[i];
+                    targets.retain(names[i]);
+                }
+                if (newAddresses != null) {
+                    newAddresses[2 * j] = addresses6[2 * i];
+                    newAddresses[2 * j + 1] = addresses6[2 * i + 1];
+                }
+                j++;
+            }
+            return new CompactNode(node, targets, newExpirations, newValues, newNames, newAddresses);
+        }
+
+        /** Builds the record at an index.
+         */
+        private ResourceRecord toRecord(int i) {
+            try {
+                switch (node.getType()) {
+                    case A: {
+                        int a = values[i];
+                        InetAddress address = InetAddress.getByAddress(new byte[] {
+                                (byte) (a >>> 24), (byte) (a >>> 16), (byte) (a >>> 8), (byte) a });
+                        return new ResourceRecord(node, expirations[i], address.getHostAddress(), address);
+                    }
+                    case AAAA: {
+                        byte[] bytes = new byte[16];
+                        for (int b = 0; b < 8; b++) {
+                            bytes[b] = (byte) (addresses6[2 * i] >>> (56 - 8 * b));
+                            bytes[b + 8] = (byte) (addresses6[2 * i + 1] >>> (56 - 8 * b));
+                        }
+                        InetAddress address = InetAddress.getByAddress(bytes);
+                        return new ResourceRecord(node, expirations[i], address.getHostAddress(), address);
+                    }
+                    default:
+                        return new ResourceRecord(node, expirations[i], names[i], null);
+                }
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Returns the IPv4 address of an A record as an int.
+         */
+        private static int toInt(ResourceRecord record) {
+            byte[] bytes = record.getInetResult().getAddress();
+            return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+        }
+
+        private static long[] toLongs(InetAddress address) {
+            byte[] bytes = address.getAddress();
+            long high = 0, low = 0;
+            for (int b = 0; b < 8; b++) {
+                high = high << 8 | (bytes[b] & 0xFF);
+                low = low << 8 | (bytes[b + 8] & 0xFF);
+            }
+            return new long[] { high, low };
+        }
+    }
+
+    /** The records of a compact node that are valid at a given time, as an immutable set. The
+     * entry is immutable, so the view never changes; its records are built when it is iterated
+     * over, and looked up in the entry's arrays by contains.
+     */
+    private static final class RecordView extends AbstractSet<ResourceRecord> {
+
+        private final CompactNode entry;
+        private final long now;
+        private final int size;
+
+        RecordView(CompactNode entry, long now, int size) {
+            this.entry = entry;
+            this.now = now;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof ResourceRecord))
+                return false;
+            ResourceRecord record = (ResourceRecord) o;
+            if (!record.getNode().equals(entry.node) || !CompactNode.fits(record))
+                return false;
+            int i = entry.indexOf(record);
+            return i >= 0 && entry.expirations[i] > now;
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            return new Iterator<ResourceRecord>() {
+                private int next = skipExpired(0);
+
+                private int skipExpired(int i) {
+                    while (i < entry.expirations.length && entry.expirations[i] <= now)
+                        i++;
+                    return i;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < entry.expirations.length;
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    ResourceRecord record = entry.toRecord(next);
+                    next = skipExpired(next + 1);
+                    return record;
+                }
+            };
+        }
+    }
+
+    /** Key of a negative result: a name, with either a record type (NODATA) or no type at all
+     * (NXDOMAIN). Names are compared without regard to case.
+     */
+    private static final class NegativeKey {
+
+        private static final int ANY_TYPE = -1;
+
+        private final String hostName;
+        private final int typeCode;
+
+        private NegativeKey(String hostName, int typeCode) {
+            this.hostName = hostName.toLowerCase(Locale.ROOT);
+            this.typeCode = typeCode;
+        }
+
+        static NegativeKey nxDomain(String hostName) {
+            return new NegativeKey(hostName, ANY_TYPE);
+        }
+
+        static NegativeKey noData(DNSNode node) {
+            return new NegativeKey(node.getHostName(), node.getType().ordinal());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            NegativeKey key = (NegativeKey) o;
+
+            if (typeCode != key.typeCode) return false;
+            return hostName.equals(key.hostName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hostName.hashCode() + typeCode;
+        }
+    }
 }
@@ -1,38 +1,84 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Console;
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static final int QUERY_ID_BOUND = 65536;
     private static final int MAX_QUERY = 65536;
-
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static final int MAX_GLUELESS_LOOKUPS = 4;
+    private static final int MAX_GLUELESS_DEPTH = 3;
+    private static final long LOOKUP_TIMEOUT = Long.getLong("dnslookup.lookup.timeout", 10000);
+    private static final long INITIAL_RTO = Long.getLong("dnslookup.rto.initial", 1000);
+    private static final long MIN_RTO = Long.getLong("dnslookup.rto.min", 50);
+    private static final long MAX_RTO = Long.getLong("dnslookup.rto.max", 5000);
+    private static final int EDNS_PAYLOAD_SIZE = Integer.getInteger("dnslookup.edns.payloadSize", 1232);
+    private static final int TRANSPORT_CHANNELS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final String SNAPSHOT_FILE = System.getProperty("dnslookup.snapshot.file");
+    private static final long SNAPSHOT_INTERVAL = Long.getLong("dnslookup.snapshot.interval", 300) * 1000;
+    private static final int PREFETCH_CONCURRENCY = Integer.getInteger("dnslookup.prefetch.maxConcurrent", 4);
+    private static final long CLIENT_TIMEOUT = Long.getLong("dnslookup.stale.clientTimeout", 1800);
+    private static final long HEDGE_DEFAULT_DELAY = Long.getLong("dnslookup.hedge.defaultDelay", 400);
+    private static final int RESOLVER_THREADS = Integer.getInteger("dnslookup.resolver.threads", 64);
+    private static final String SERVER_ADDRESS = System.getProperty("dnslookup.server.address");
+
+    private static volatile InetAddress rootServer;
+    private static volatile boolean verboseTracing = false;
 
     private static DNSCache cache = DNSCache.getInstance();
+    private static UDPTransport transport;
+    private static TCPTransport tcpTransport;
+    private static final SingleFlight<DNSNode, Set<ResourceRecord>> lookups = new SingleFlight<>();
+    private static final SingleFlight<Question, HedgedQuery.Reply> queries = new SingleFlight<>();
+    private static final ServerStatistics statistics = new ServerStatistics(HEDGE_DEFAULT_DELAY, INITIAL_RTO, MIN_RTO, MAX_RTO);
+
+    // at most RESOLVER_THREADS lookups run at once; the others wait in the queue
+    private static final ExecutorService resolverExecutor = newResolverExecutor();
+    // glueless nameserver lookups never wait in a queue, since their parent lookup waits for them
+    private static final ExecutorService gluelessExecutor = newGluelessExecutor();
+    private static final ScheduledExecutorService staleTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dns-stale-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Semaphore prefetchPermits = new Semaphore(PREFETCH_CONCURRENCY);
+    private static final ExecutorService prefetchExecutor = Executors.newFixedThreadPool(Math.max(1, PREFETCH_CONCURRENCY), r -> {
+        Thread thread = new Thread(r, "dns-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static Random random = new Random();
-    private static int randInt = 0;
-    private static boolean authFlag;
-    private static boolean repeatQuery;
-    private static int numberSentQuery;
-    private static List<QueryLog> queryLogs;
     /**
      * Main function, called when program is first invoked.
      *
      * @param args list of arguments specified in the command line.
      */
     public static void main(String[] args) {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [port]");
+            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at,");
+            System.err.println("and port is the UDP port to answer DNS queries on, if any (on the loopback address,");
+            System.err.println("unless another one is set with -Ddnslookup.server.address).");
             System.exit(1);
         }
 
@@ -44,13 +90,15 @@ public class DNSLookupService {
             System.exit(1);
         }
 
-        try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
-            ex.printStackTrace();
-            System.exit(1);
-        }
+        if (SNAPSHOT_FILE != null)
+            restoreCache(new CacheSnapshot(cache, Paths.get(SNAPSHOT_FILE)));
+        if (PREFETCH_CONCURRENCY > 0)
+            cache.setRefreshHandler(DNSLookupService::prefetch);
+
+        DNSServer server = null;
+        if (args.length == 2)
+            server = startServer(args[1]);
+        boolean endOfInput = false;
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -64,10 +112,14 @@ public class DNSLookupService {
                 try {
                     commandLine = in.nextLine();
                 } catch (NoSuchElementException ex) {
+                    endOfInput = true;
                     break;
                 }
             // If reached end-of-file, leave
-            if (commandLine == null) break;
+            if (commandLine == null) {
+                endOfInput = true;
+                break;
+            }
 
             // Ignore leading/trailing spaces and anything beyond a comment character
             commandLine = commandLine.trim().split("#", 2)[0];
@@ -127,6 +179,10 @@ public class DNSLookupService {
                     System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
                     continue;
                 }
+                if (!DNSQuery.isValidName(commandArgs[1])) {
+                    System.err.println("Invalid host name. Labels are at most 63 characters, and names at most 255 octets.");
+                    continue;
+                }
                 // create a new DNS node with the hostname and type, then getResult
                 findAndPrintResults(commandArgs[1], type);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
@@ -144,10 +200,105 @@ public class DNSLookupService {
 
         } while (true);
 
-        socket.close();
+        // without commands to read, keep answering queries until the process is stopped
+        if (server != null) {
+            try {
+                if (endOfInput)
+                    server.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            server.close();
+        }
+        synchronized (DNSLookupService.class) {
+            if (transport != null)
+                transport.close();
+            if (tcpTransport != null)
+                tcpTransport.close();
+        }
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Creates the executor lookups are resolved on, with a fixed number of threads that stop
+     * when idle.
+     *
+     * @return The executor of the resolver threads.
+     */
+    private static ExecutorService newResolverExecutor() {
+        int threads = Math.max(1, RESOLVER_THREADS);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "dns-resolver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates the executor glueless nameserver lookups are run on. Its tasks are never queued:
+     * a task is handed to an idle thread, or to a new one while there are fewer than
+     * RESOLVER_THREADS, and is otherwise run by the thread submitting it. The lookup waiting
+     * for the nameserver addresses therefore never waits for a thread that is itself waiting.
+     *
+     * @return The executor of the glueless lookups.
+     */
+    private static ExecutorService newGluelessExecutor() {
+        return new ThreadPoolExecutor(0, Math.max(1, RESOLVER_THREADS), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "dns-glueless");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Starts answering DNS queries from clients on a UDP port. The port is bound on the loopback
+     * address, unless another address is given in the dnslookup.server.address property: a
+     * server reachable from other hosts answers anyone's queries. Exits if the address or port
+     * is invalid or cannot be bound.
+     *
+     * @param port UDP port, as given on the command line.
+     * @return The server listening on the port.
+     */
+    private static DNSServer startServer(String port) {
+        try {
+            InetAddress address = SERVER_ADDRESS == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(SERVER_ADDRESS);
+            DNSServer server = new DNSServer(address, Integer.parseInt(port), DNSLookupService::getResultsAsync);
+            System.out.println("Answering DNS queries on " + address.getHostAddress() + " UDP port " + server.getPort());
+            return server;
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Invalid server address or port (" + e.getMessage() + ").");
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Loads a snapshot of the cache saved by a previous run before any query is answered: the
+     * nameserver records are restored, and the other nodes are restored as they are read. The
+     * nodes not read yet are then restored in the background, after which the cache is saved to
+     * the same snapshot periodically and when the program ends; if the program ends before, the
+     * snapshot is left unchanged.
+     *
+     * @param snapshot Snapshot of the cache.
+     */
+    private static void restoreCache(CacheSnapshot snapshot) {
+        try {
+            snapshot.load();
+        } catch (IOException e) {
+            System.err.println("Could not load cache snapshot (" + e.getMessage() + ").");
+        }
+        Thread restore = new Thread(() -> {
+            snapshot.restoreRemaining();
+            snapshot.schedule(SNAPSHOT_INTERVAL);
+        }, "cache-restore");
+        restore.setDaemon(true);
+        restore.start();
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -157,11 +308,174 @@ public class DNSLookupService {
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
         //cache.flushCache();
-        queryLogs = new LinkedList<>();
-        repeatQuery = false;
-        authFlag=false;
-        numberSentQuery=0;
-        printResults(node, getResults(node, 0));
+        ResolutionContext context = new ResolutionContext(rootServer, verboseTracing, LOOKUP_TIMEOUT);
+        CompletableFuture<Set<ResourceRecord>> resolution = resolve(node, context);
+        Set<ResourceRecord> results = awaitOrServeStale(node, resolution);
+        // the trace is printed once the resolution is over, even if a stale answer came first
+        resolution.whenComplete((r, e) -> context.flushTrace());
+        printResults(node, results);
+    }
+
+    /**
+     * Finds all the result for a specific node, starting at the current root server. Each call
+     * uses its own resolution context, so this method may be called from many threads at once.
+     * If the resolution does not finish within the client timeout, or finds nothing, recently
+     * expired records are returned instead (with a short TTL) and the resolution goes on in
+     * the background. If there are none and the resolution does not finish within the lookup
+     * timeout, nothing is returned.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    public static Set<ResourceRecord> getResults(DNSNode node) {
+        return awaitOrServeStale(node, resolve(node, new ResolutionContext(rootServer, false, LOOKUP_TIMEOUT)));
+    }
+
+    /**
+     * Starts finding all the results for a specific node, as getResults does, without waiting
+     * for them: no thread is held while the lookup is in progress besides the resolver thread
+     * doing it. If the resolution does not finish within the client timeout, or finds nothing,
+     * the future is completed with recently expired records instead, if there are any. If
+     * there are none, the future is completed with an empty set at the lookup timeout at the
+     * latest.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the resource records found.
+     * @throws RejectedExecutionException if the resolver threads are shut down.
+     */
+    public static CompletableFuture<Set<ResourceRecord>> getResultsAsync(DNSNode node) {
+        CompletableFuture<Set<ResourceRecord>> resolution = resolve(node, new ResolutionContext(rootServer, false, LOOKUP_TIMEOUT));
+        CompletableFuture<Set<ResourceRecord>> answer = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = staleTimer.schedule(() -> {
+            Set<ResourceRecord> stale = cache.getStaleResults(node);
+            if (!stale.isEmpty())
+                answer.complete(stale);
+        }, CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+        // a lookup shared with another caller may have started earlier, or be given more time
+        ScheduledFuture<?> deadline = staleTimer.schedule(() -> answer.complete(Collections.emptySet()),
+                LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+        resolution.whenComplete((results, error) -> {
+            timeout.cancel(false);
+            deadline.cancel(false);
+            if (error != null)
+                answer.completeExceptionally(error);
+            else if (results.isEmpty() && !cache.isNegativelyCached(node)) {
+                Set<ResourceRecord> stale = cache.getStaleResults(node);
+                answer.complete(stale.isEmpty() ? results : stale);
+            } else
+                answer.complete(results);
+        });
+        return answer;
+    }
+
+    /**
+     * Starts finding all the results for a specific node on the resolver threads. If a lookup of
+     * the same node is already in progress, its results are shared instead, unless the lookup
+     * is traced (a traced lookup shows its own queries). The lookup is asked for by a client, so
+     * it counts as a client read of the node, which may refresh it; the reads made while
+     * resolving it do not. A host name that cannot be sent in a query finds nothing.
+     *
+     * @param node    Host and record type to be used for search.
+     * @param context Resolution state of the lookup; only used by the resolver thread until the
+     *                returned future completes.
+     * @return A future completed with the results of the search.
+     */
+    private static CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node, ResolutionContext context) {
+        if (!DNSQuery.isValidName(node.getHostName()))
+            return CompletableFuture.completedFuture(Collections.emptySet());
+        cache.recordHit(node);
+        if (context.isVerboseTracing())
+            return CompletableFuture.supplyAsync(() -> getResults(node, 0, context), resolverExecutor);
+        return lookups.execute(node, () -> CompletableFuture.supplyAsync(() -> getResults(node, 0, context), resolverExecutor));
+    }
+
+    /**
+     * Waits for the results of a resolution, serving stale records (RFC 8767) if it takes longer
+     * than the client timeout or finds nothing. If the node has no stale records, waits for the
+     * resolution to finish, until the lookup timeout.
+     *
+     * @param node       Host and record type being searched.
+     * @param resolution Resolution in progress for the node.
+     * @return The results of the resolution, or stale records of the node, or an empty set if
+     *         the resolution did not finish in time.
+     */
+    private static Set<ResourceRecord> awaitOrServeStale(DNSNode node, CompletableFuture<Set<ResourceRecord>> resolution) {
+        long deadline = System.currentTimeMillis() + LOOKUP_TIMEOUT;
+        try {
+            Set<ResourceRecord> results;
+            try {
+                results = resolution.get(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Set<ResourceRecord> stale = cache.getStaleResults(node);
+                if (!stale.isEmpty())
+                    return stale;
+                return resolution.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            if (results.isEmpty() && !cache.isNegativelyCached(node)) {
+                Set<ResourceRecord> stale = cache.getStaleResults(node);
+                if (!stale.isEmpty())
+                    return stale;
+            }
+            return results;
+        } catch (TimeoutException e) {
+            return Collections.emptySet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptySet();
+        } catch (ExecutionException e) {
+            throw new Error(e.getCause());
+        }
+    }
+
+    /**
+     * Starts resolving a cached node again in the background, before its records expire. At
+     * most PREFETCH_CONCURRENCY refreshes run at the same time; further requests are declined,
+     * so the cache may ask again on a later read.
+     *
+     * @param node Host and record type to be refreshed.
+     * @return true if the refresh was started, false if too many refreshes are in progress.
+     */
+    private static boolean prefetch(DNSNode node) {
+        if (!prefetchPermits.tryAcquire())
+            return false;
+        try {
+            prefetchExecutor.execute(() -> {
+                try {
+                    startResolution(node, new ResolutionContext(rootServer, false, node, LOOKUP_TIMEOUT));
+                } finally {
+                    prefetchPermits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            prefetchPermits.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the transport shared by all lookups, opening it on first use.
+     *
+     * @return The UDP transport used to send queries.
+     * @throws IOException if the transport could not be opened.
+     */
+    private static synchronized UDPTransport getTransport() throws IOException {
+        if (transport == null)
+            transport = new UDPTransport(TRANSPORT_CHANNELS, EDNS_PAYLOAD_SIZE);
+        return transport;
+    }
+
+    /**
+     * Returns the TCP transport shared by all lookups, opening it on first use. Its connections
+     * are only opened when a response is truncated.
+     *
+     * @return The TCP transport used to ask again the questions whose response was truncated.
+     * @throws IOException if the transport could not be opened.
+     */
+    private static synchronized TCPTransport getTcpTransport() throws IOException {
+        if (tcpTransport == null)
+            tcpTransport = new TCPTransport();
+        return tcpTransport;
     }
 
     /**
@@ -173,20 +487,24 @@ public class DNSLookupService {
      *                         regarding CNAME results should increment this value by 1. Once this value
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
+     * @param context          Resolution state of the lookup this search belongs to.
      * @return A set of resource records corresponding to the specific query requested.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel, ResolutionContext context) {
 
         if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
             return Collections.emptySet();
         }
+        //A name or type known not to exist is answered without sending any query
+        if (cache.isNegativelyCached(node))
+            return Collections.emptySet();
         //First check if it's a CNAME of something already in the cache
         Set<ResourceRecord> existingCNAME = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
         if(existingCNAME.size()!=0) {
-            retrieveResultsFromServer(new DNSNode(existingCNAME.iterator().next().getTextResult(),node.getType()), rootServer);
+            startResolution(new DNSNode(existingCNAME.iterator().next().getTextResult(),node.getType()), context);
         }else{
-            retrieveResultsFromServer(node, rootServer);
+            startResolution(node, context);
         }
 
         //After retrieving for the first round, check whether what we get is a CNAME
@@ -205,7 +523,7 @@ public class DNSLookupService {
             Set<ResourceRecord> currCNAMEAddress = cache.getCachedResults(new DNSNode(host_CNAME, node.getType()));
             DNSNode newNode = new DNSNode(host_CNAME, node.getType());
             if (currCNAMEAddress.size() == 0)
-                return getResults(newNode,indirectionLevel+1);
+                return getResults(newNode,indirectionLevel+1, context);
             else
                 return currCNAMEAddress;
         }
@@ -214,138 +532,283 @@ public class DNSLookupService {
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Starts the iterative resolution of a node at the closest zone cut known from the cache,
+     * sending the query to its nameservers until it is resolved. If no delegation is cached, or
+     * none of its nameservers resolves the query, the resolution starts at the root server.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node    Host name and record type to be used for the query.
+     * @param context Resolution state of the lookup this query belongs to.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        // checks if node is already in the cache; if it is, just skip this query
-        Set<ResourceRecord> currCache = cache.getCachedResults(node);
-        if(!currCache.isEmpty()){return;}
+    private static void startResolution(DNSNode node, ResolutionContext context) {
+        Delegation delegation = cache.findClosestDelegation(node.getHostName());
+        if (delegation != null) {
+            retrieveResultsFromServers(node, delegation.getServers(), context);
+            if (isResolved(node, context))
+                return;
+        }
+        retrieveResultsFromServers(node, Collections.singletonList(context.getRootServer()), context);
+    }
 
-        //check how many queries are sent
-        if(numberSentQuery>MAX_QUERY)
-            return;
+    /**
+     * Retrieves DNS results from a set of equivalent DNS servers, such as the nameservers of a
+     * zone. The servers are ranked by their smoothed round-trip time, and the query is hedged
+     * across them; if the server that answered does not lead to a resolution, the query is sent
+     * again to the other servers.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers to be used for the query.
+     * @param context Resolution state of the lookup this query belongs to.
+     */
+    private static void retrieveResultsFromServers(DNSNode node, List<InetAddress> servers, ResolutionContext context) {
+        List<InetAddress> remaining = statistics.rank(servers);
+        while (!remaining.isEmpty()) {
+            InetAddress answered = retrieveResultsFromServer(node, remaining, context);
+            if (answered == null || isResolved(node, context))
+                return;
+            remaining.remove(answered);
+        }
+    }
 
-        //generate query
-        DNSQuery query = new DNSQuery(node);
-        if (!repeatQuery)
-            randInt = random.nextInt(QUERY_ID_BOUND);
-        query.setQueryID(randInt);
+    /**
+     * Retrieves DNS results from one of a set of equivalent DNS servers. The query is sent to
+     * the first server, and also to the next ones if no response arrives within their hedge
+     * delay; the first usable response is used. Unanswered queries are retransmitted to the
+     * servers in turn, based on their retransmission timeouts, until the lookup runs out of time.
+     * Queries are sent in iterative mode, and the query is repeated with the next level of
+     * servers if the response is non-authoritative. Results are stored in the cache.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers to be used for the query, in order of preference.
+     * @param context Resolution state of the lookup this query belongs to.
+     * @return The server whose response was used, or null if no other server should be tried.
+     */
+    private static InetAddress retrieveResultsFromServer(DNSNode node, List<InetAddress> servers, ResolutionContext context) {
+        // checks if node is already in the cache; if it is, just skip this query
+        Set<ResourceRecord> currCache = cache.getCachedResults(node);
+        if(!currCache.isEmpty() && !context.isRefreshing(node)){return null;}
+        if(cache.isNegativelyCached(node)){return null;}
 
-        byte[] nodeInBytes = query.getQueryInBytes();   // gets DNSQuery in bytes
-        byte[] qID = Arrays.copyOfRange(nodeInBytes, 0,2);  // gets queryID in bytes
-        byte[] buf = new byte[1024];
+        //check how many queries are sent, and that the lookup is not out of time
+        if(context.numberSentQuery>MAX_QUERY || context.isExpired())
+            return null;
 
-        // create datagram packets for sending and receiving query
-        DatagramPacket packetOut = new DatagramPacket(nodeInBytes, nodeInBytes.length, server, DEFAULT_DNS_PORT);
-        DatagramPacket packetIn = new DatagramPacket(buf, buf.length);
+        //the query is hedged across the servers, the transport assigns the query IDs
+        HedgedQuery query = null;
 
         try {
-            socket.send(packetOut);
-            DNSResponse dnsResp;
-
-            //keep polling on receive until we get a consistant response
-            do {
-                socket.receive(packetIn);
-                dnsResp=new DNSResponse(packetIn.getData());
-            }while(!Arrays.equals(qID, dnsResp.qID));
-
-            //Set flag to off since we have consistant response
-            repeatQuery = false;
-            dnsResp.cacheResourceRecords();
+            HedgedQuery hedged = query = new HedgedQuery(getTransport(), getTcpTransport(), statistics, node, servers);
+
+            //the transport only completes a reply with a response matching our query; the query
+            //is retransmitted to the servers in turn until the lookup runs out of time. If the
+            //same question is already on its way to the same servers, its reply is shared; the
+            //records are cached by the thread that sent the question, before the reply is shared
+            HedgedQuery.Reply reply = askOnce(new Question(node, servers), () -> {
+                HedgedQuery.Reply received = hedged.get(context.getRemainingTime());
+                received.response.cacheResourceRecords();
+                cacheNegativeResult(node, received.response);
+                return received;
+            }, context.getRemainingTime());
+            context.numberSentQuery += query.getSent().size();
+            context.queryID = reply.queryID;
+            DNSResponse dnsResp = reply.response;
 
             // check for error in the response
             if (dnsResp.errorCheck())
                 throw new ResponseErrorException("Error in Response.");
 
             //Real time printing of query
-            QueryLog queryLog=new QueryLog(query, server, dnsResp);
-            if(verboseTracing) {
-                queryLog.printThisLog();
+            QueryLog queryLog=new QueryLog(reply.query, reply.queryID, reply.server, dnsResp);
+            context.queryLogs.add(queryLog);
+            if(context.isVerboseTracing()) {
+                context.trace(queryLog.formatThisLog());
             }
 
             //Only perform next lookup if we don't an authorative response
             if (!dnsResp.isAuth) {
                 //Just return if the server tells an answer
-                if(dnsResp.answers.size()!=0)
-                    return;
-                //get a list of dnservers who have an actual ip address in our cache
-                Set<DNSNode> authoratitiveNSWithIPv4=new HashSet<>();
-                for (DNSNode dnsNode : dnsResp.authoratitiveNS) {
-                    //Retrieve ip address for a nameserver
-                    Set<ResourceRecord> dnsIPCache = cache.getCachedResults(new DNSNode(dnsNode.getHostName(), RecordType.A));
-                    if (dnsIPCache.size() != 0){
-                        authoratitiveNSWithIPv4.add(dnsNode);
-                    }
+                if(dnsResp.anCount!=0)
+                    return reply.server;
+                //send the query to the nameservers who have an ip address in the glue or in our
+                //cache; the glue of a nameserver is only decoded once we get to that nameserver
+                List<InetAddress> nameServers = getNameServerAddresses(dnsResp);
+                if (!nameServers.isEmpty()) {
+                    retrieveResultsFromServers(node, nameServers, context);
+                    return reply.server;
                 }
 
-                //If current NS have no associated IP addresses, then search for one nameserver
-                int max=dnsResp.authoratitiveNS.size();
-                while (authoratitiveNSWithIPv4.size() == 0){
-                    if(max<0)
-                        throw new ResponseErrorException("No available nameserver");//We cannot find ipv4 for any nameservers, terminate program
-
-                    DNSNode dnsLookup=new DNSNode(dnsResp.authoratitiveNS.iterator().next().getHostName(), RecordType.A);
-                    getResults(dnsLookup,0);//
-                    if(cache.getCachedResults(new DNSNode(dnsLookup.getHostName(), RecordType.A)).size()>0)
-                        authoratitiveNSWithIPv4.add(dnsLookup);
-                    max--;
-                }
+                //If current NS have no associated IP addresses, then look all of them up at once
+                nameServers = resolveNameServerAddresses(dnsResp, context);
+                if (nameServers.isEmpty())
+                    throw new ResponseErrorException("No available nameserver");//We cannot find ipv4 for any nameservers, give up
 
-                // iterate all the nameservers with an ip address, keep trying on all nameservers until our query is resolved
-                for (DNSNode dnsNode : authoratitiveNSWithIPv4) {
-                    InetAddress newServer;
-
-                    //get ipv4 addresses for this nameserver
-                    Set<ResourceRecord> nsCache = cache.getCachedResults(new DNSNode(dnsNode.getHostName(), RecordType.A));
-                    for (ResourceRecord nsRec : nsCache) {
-                        if (nsRec.getType() == RecordType.A) {
-                            newServer = nsRec.getInetResult();
-                            retrieveResultsFromServer(node, newServer);
-                            break;
-                        }
-                    }
-
-                    // stop trying other name servers if address resolves
-                    // determine A,AAAA,CNAME,SOA,MX,OTHER as resolved
-                    if (!cache.getCachedResults(node).isEmpty() ||
-                            !cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME)).isEmpty()||
-                            !cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.MX)).isEmpty()||
-                            !cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.SOA)).isEmpty()||
-                            !cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.OTHER)).isEmpty()||
-                            repeatQuery||authFlag) {
-                        return;
-                    }
-                }
+                // keep trying on all the addresses of the nameserver until our query is resolved
+                retrieveResultsFromServers(node, nameServers, context);
             }else{
-                authFlag=true;
-            }
-        } catch (SocketTimeoutException e) {     //socket timeout exception or error, resend query
-            //print the timeout query
-            if (verboseTracing) {
-                System.out.println("\n");
-                System.out.println("Query ID     " + randInt + " " +
-                        node.getHostName() + " " + node.getType() + " --> " + server.getHostAddress());
+                context.authFlag=true;
             }
-            //Query is sent at most two times, give up if more
-            if (!repeatQuery) {
-                repeatQuery = true;
-                retrieveResultsFromServer(node, server);
-            }else{//If this is the second timeout then we give up
-                return;
+            return reply.server;
+        } catch (TimeoutException e) {     //no server answered any of the transmissions, give up
+            context.numberSentQuery += query.getSent().size();
+            //print the timed out queries
+            for (HedgedQuery.Sent sent : query.getSent()) {
+                context.trace("\n\n");
+                context.trace("Query ID     " + sent.queryID + " " +
+                        node.getHostName() + " " + node.getType() + " --> " + sent.server.getHostAddress());
             }
+            return null;
         }catch (ResponseErrorException e){
             //Just give up the current lookup
+            return null;
+        }catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }catch (Exception e) { // print some unknown error
             //System.out.println("Error: "+e);//Debugging message
             throw new Error(e);
         }
     }
 
+    /**
+     * Looks up the addresses of the nameservers of a referral that has no glue. The nameservers
+     * are looked up concurrently, each in a child context, and this method returns as soon as
+     * one of them has an address; the other lookups go on in the background and warm the cache.
+     * They do not run on the resolver threads, which may all be taken by lookups waiting here,
+     * but on threads of their own or, when there are too many, on this thread. The trace and query count of the first lookup to finish are
+     * added to the context.
+     *
+     * @param dnsResp Referral response without glue.
+     * @param context Resolution state of the lookup this referral belongs to.
+     * @return The addresses of the nameservers known once the first lookup finished, or an empty
+     *         list if none could be found before the deadline of the lookup.
+     */
+    private static List<InetAddress> resolveNameServerAddresses(DNSResponse dnsResp, ResolutionContext context) throws InterruptedException {
+        if (context.getDepth() >= MAX_GLUELESS_DEPTH)
+            return Collections.emptyList();
+        List<DNSNode> nameServers = new ArrayList<>();
+        for (DNSNode nameServer : dnsResp.getAuthoritativeNS())
+            if (nameServers.size() < MAX_GLUELESS_LOOKUPS)
+                nameServers.add(new DNSNode(nameServer.getHostName(), RecordType.A));
+        if (nameServers.isEmpty())
+            return Collections.emptyList();
+
+        CompletableFuture<ResolutionContext> first = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(nameServers.size());
+        for (DNSNode nameServer : nameServers) {
+            ResolutionContext child = context.child();
+            CompletableFuture.runAsync(() -> getResults(nameServer, 0, child), gluelessExecutor)
+                    .whenComplete((r, e) -> {
+                        if (e == null && !cache.getCachedResults(nameServer).isEmpty())
+                            first.complete(child);
+                        if (pending.decrementAndGet() == 0)
+                            first.complete(null);
+                    });
+        }
+
+        ResolutionContext winner;
+        try {
+            winner = first.get(context.getRemainingTime(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return Collections.emptyList();
+        }
+        if (winner == null)
+            return Collections.emptyList();
+        context.merge(winner);
+        return getNameServerAddresses(dnsResp);
+    }
+
+    /**
+     * Sends a question upstream, or waits for the reply to the same question if it is already
+     * in flight. The thread sending a question never waits for another question, so the threads
+     * waiting for each other cannot form a cycle. A thread that waited for another thread's
+     * question gets its own copy of the reply, since a response is not thread-safe.
+     *
+     * @param question Question and servers it is sent to.
+     * @param task     Sends the question and waits for its reply.
+     * @param timeout  Maximum time to wait for a question sent by another thread, in milliseconds.
+     * @return The reply to the question.
+     * @throws TimeoutException       If no reply arrived in time.
+     * @throws ResponseErrorException If the question failed for any other reason.
+     * @throws InterruptedException   If the thread was interrupted while waiting.
+     */
+    private static HedgedQuery.Reply askOnce(Question question, Callable<HedgedQuery.Reply> task, long timeout)
+            throws TimeoutException, ResponseErrorException, InterruptedException {
+        boolean[] sent = new boolean[1];
+        try {
+            HedgedQuery.Reply reply = queries.call(question, () -> {
+                sent[0] = true;
+                return task.call();
+            }, timeout);
+            return sent[0] ? reply : reply.copy();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                throw (TimeoutException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            // only this thread's own interruption is rethrown, not that of the thread it waited for
+            if (e.getCause() instanceof InterruptedException && sent[0])
+                throw (InterruptedException) e.getCause();
+            throw new ResponseErrorException("Query failed: " + e.getCause());
+        }
+    }
+
+    /**
+     * Returns the IPv4 addresses of the nameservers of a referral that have an address in the
+     * glue of the referral or in the cache.
+     *
+     * @param dnsResp Referral response.
+     * @return A potentially empty list of addresses, without duplicates.
+     */
+    private static List<InetAddress> getNameServerAddresses(DNSResponse dnsResp) {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        for (DNSNode nameServer : dnsResp.getAuthoritativeNS()) {
+            dnsResp.cacheGlue(nameServer.getHostName());
+            for (ResourceRecord address : cache.getCachedResults(new DNSNode(nameServer.getHostName(), RecordType.A)))
+                if (address.getInetResult() != null)
+                    addresses.add(address.getInetResult());
+        }
+        return new ArrayList<>(addresses);
+    }
+
+    /**
+     * Checks whether a query is resolved, in which case no other nameserver should be tried.
+     *
+     * @param node    Host name and record type used for the query.
+     * @param context Resolution state of the lookup this query belongs to.
+     * @return true if the query is resolved.
+     */
+    private static boolean isResolved(DNSNode node, ResolutionContext context) {
+        // stop trying other name servers if address resolves
+        // determine A,AAAA,CNAME,SOA,MX,OTHER as resolved; the cache is only checked, no
+        // records are read
+        if (context.isExpired() || context.authFlag)
+            return true;
+        String hostName = node.getHostName();
+        return (!context.isRefreshing(node) && cache.hasResults(node)) ||
+                cache.hasResults(new DNSNode(hostName, RecordType.CNAME)) ||
+                cache.hasResults(new DNSNode(hostName, RecordType.MX)) ||
+                cache.hasResults(new DNSNode(hostName, RecordType.SOA)) ||
+                cache.hasResults(new DNSNode(hostName, RecordType.OTHER)) ||
+                cache.isNegativelyCached(node);
+    }
+
+    /**
+     * Caches a negative answer (RFC 2308): NXDOMAIN, or NODATA (no error but no answer) from a
+     * server that is authoritative for the name, as shown by the SOA record in the authority
+     * section. The SOA record also gives the negative TTL; answers without one are not cached.
+     *
+     * @param node    Host name and record type used for the query.
+     * @param dnsResp Response received for the query.
+     */
+    private static void cacheNegativeResult(DNSNode node, DNSResponse dnsResp) {
+        boolean nxDomain = dnsResp.isNXDomain();
+        boolean noData = dnsResp.getRcode() == 0 && dnsResp.anCount == 0;
+        if (!nxDomain && !noData)
+            return;
+        long ttl = dnsResp.getNegativeTTL();
+        if (ttl >= 0)
+            cache.addNegativeResult(node, nxDomain, ttl);
+    }
+
     //Unused provided function
     /*
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
@@ -376,9 +839,9 @@ public class DNSLookupService {
 
     //////////////HELPER FUNCTIONS BELOW/////////////////////
 
-    private static List<String> getSearchedNames(){
+    private static List<String> getSearchedNames(ResolutionContext context){
         List<String> names = new ArrayList<>();
-        for (QueryLog ql : queryLogs) {
+        for (QueryLog ql : context.queryLogs) {
             names.add((ql.dnsResp.getNSName()));
         }
 
@@ -388,4 +851,32 @@ public class DNSLookupService {
     private static boolean isInList(String host, List<String> hosts){
         return  hosts.contains(host);
     }
+
+    /**
+     * A question sent upstream: the host name and record type asked, and the servers it is sent
+     * to, in any order.
+     */
+    private static final class Question {
+
+        private final DNSNode node;
+        private final Set<InetAddress> servers;
+
+        Question(DNSNode node, List<InetAddress> servers) {
+            this.node = node;
+            this.servers = new HashSet<>(servers);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Question)) return false;
+            Question question = (Question) o;
+            return node.equals(question.node) && servers.equals(question.servers);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * node.hashCode() + servers.hashCode();
+        }
+    }
 }
@@ -1,109 +1,270 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
+/** A DNS query for a single question. The query is encoded once, on first use; the wire-format
+ * QNAME of each host name is cached and shared by all queries for that host, so building,
+ * resending or re-querying only copies bytes and patches the 2-byte query ID. Names are cached
+ * in lower case, in a bounded table that evicts the names not used recently (CLOCK), so a
+ * churn of cold names cannot keep hot names out of it.
+ *
+ * A query may carry an EDNS0 OPT pseudo-record (RFC 6891) in its additional section, which
+ * advertises the largest UDP response the resolver can receive, so servers do not have to
+ * truncate responses longer than 512 bytes.
+ */
 public class DNSQuery {
 
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_LABEL_LENGTH = 63;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_CACHED_NAMES = 65536;
+    private static final int QCLASS_IN = 1;
+    private static final int OPT_SIZE = 11;
+
+    private static final ConcurrentHashMap<String, WireName> wireNames = new ConcurrentHashMap<>();
+    private static final String[] clock = new String[MAX_CACHED_NAMES];
+    private static int clockHand;
+
     public String hostName;
-    public ByteArrayOutputStream queryInBytes;
     public RecordType type;
-    public byte[] queryID;
-    public byte[] queryFlags;
-    public byte[] responseFlags;
-    public byte[] qdCount;
-    public byte[] anCount;
-    public byte[] nsCount;
-    public byte[] arCount;
-    public byte[] qType;
-    public byte[] qClass;
+    private int queryID;
+    private final byte[] qName;
+    private final int payloadSize;
+    private byte[] encoded;
 
     /** Constructor for a DNSQuery.
      *
      * @param node  The node for the DNSQuery.
      */
     public DNSQuery(DNSNode node) {
+        this(node, 0);
+    }
+
+    /** Constructor for a DNSQuery with an EDNS0 OPT record.
+     *
+     * @param node          The node for the DNSQuery.
+     * @param payloadSize   UDP payload size advertised in the OPT record, in bytes, or 0 to send
+     *                      the query without an OPT record.
+     */
+    public DNSQuery(DNSNode node, int payloadSize) {
         this.hostName = node.getHostName();
-        queryInBytes = new ByteArrayOutputStream();
-        type = node.getType();
-        queryID = new byte[2];
-        queryFlags = new byte[1];
-        responseFlags = new byte[1];
-        qdCount = new byte[2];
-        anCount = new byte[2];
-        nsCount = new byte[2];
-        arCount = new byte[2];
-        qType = new byte[2];
-        qClass = new byte[2];
-    }
-
-    /** Sets queryID to be a byte[] of the id, and sets the queryIDinInt to be the id.
+        this.type = node.getType();
+        this.qName = getWireName(hostName);
+        this.payloadSize = payloadSize;
+    }
+
+    /** Sets the query ID. If the query was already encoded, only the ID in the encoded query is
+     * patched.
      *
      * @param id    The queryID.
      */
     public void setQueryID(int id) {
-        byte[] buf = ByteBuffer.allocate(4).putInt(id).array();
-        queryID[0] = buf[2];
-        queryID[1] = buf[3];
+        queryID = id;
+        if (encoded != null) {
+            encoded[0] = (byte) (id >>> 8);
+            encoded[1] = (byte) id;
+        }
     }
 
-    public byte[] getQueryInBytes() {
-        encodeQuery();
-        return queryInBytes.toByteArray();
+    public int getQueryID() {
+        return queryID;
+    }
+
+    /** Checks if the query carries an EDNS0 OPT record.
+     *
+     * @return  true if the query advertises a UDP payload size.
+     */
+    public boolean isEdns() {
+        return payloadSize > 0;
     }
 
-    /** Adds the length octet (domain label specification) to the front of label.
+    /** Returns the number of bytes in the encoded query.
      *
-     * @param label     A part of a domain name.
-     * @return          A label with length octet appended to the front.
+     * @return  Length of the query in bytes.
      */
-    private static byte[] getDomainLabelSpec(byte[] label) {
-        int len = label.length;
+    public int getLength() {
+        return HEADER_SIZE + qName.length + 4 + (isEdns() ? OPT_SIZE : 0);
+    }
 
-        ByteArrayOutputStream res = new ByteArrayOutputStream();
-        res.write(len);
-        res.write(label, 0, len);
+    /** Returns a copy of the encoded query.
+     *
+     * @return  The query in wire format.
+     */
+    public byte[] getQueryInBytes() {
+        return getEncoded().clone();
+    }
 
-        return res.toByteArray();
+    /** Writes the encoded query with a given query ID into a buffer, at its position, without
+     * allocating anything. The ID of this query is not changed, so the same query may be written
+     * with different IDs (for example to several servers) at the same time.
+     *
+     * @param out   Buffer the query is written to; its position is advanced past the query.
+     * @param id    The query ID to be written.
+     */
+    public void writeTo(ByteBuffer out, int id) {
+        int start = out.position();
+        out.put(getEncoded());
+        out.putShort(start, (short) id);
     }
 
+    /** Returns the encoded query, encoding it on first use.
+     *
+     * @return  The query in wire format, owned by this query.
+     */
+    private byte[] getEncoded() {
+        if (encoded == null) {
+            byte[] buf = new byte[getLength()];
+            encodeQuery(ByteBuffer.wrap(buf));
+            encoded = buf;
+        }
+        return encoded;
+    }
 
     /**
      * Formats appropriate DNSQuery appropriately.
+     *
+     * @param out   Buffer the query is written to.
      */
-    private void encodeQuery() {
-        // setting DNS query ID
-        queryInBytes.write(queryID,0, queryID.length);
-
-        queryFlags[0] = 0;   // setting DNS query flags
-        queryInBytes.write(queryFlags,0, queryFlags.length);
-
-        responseFlags[0] = 0;   // setting DNS response flags
-        queryInBytes.write(responseFlags,0, responseFlags.length);
-
-        qdCount[1]=1;
-        queryInBytes.write(qdCount,0, qdCount.length);
-        queryInBytes.write(anCount,0, anCount.length);
-        queryInBytes.write(nsCount,0, nsCount.length);
-        queryInBytes.write(arCount,0, arCount.length);
-
-        // write bytes of QNAME to queryInBytes
-        String[] labels = hostName.split("\\.");
-        for (int i = 0; i < labels.length; i++) {
-            byte[] buf = getDomainLabelSpec(labels[i].getBytes());
-            queryInBytes.write(buf, 0, buf.length);
+    private void encodeQuery(ByteBuffer out) {
+        out.putShort((short) queryID);  // setting DNS query ID
+        out.put((byte) 0);              // setting DNS query flags
+        out.put((byte) 0);              // setting DNS response flags
+        out.putShort((short) 1);        // QDCOUNT
+        out.putShort((short) 0);        // ANCOUNT
+        out.putShort((short) 0);        // NSCOUNT
+        out.putShort((short) (isEdns() ? 1 : 0));   // ARCOUNT
+        out.put(qName);                 // QNAME, including the 0 byte at the end
+        out.putShort((short) type.getCode());
+        out.putShort((short) QCLASS_IN);
+        if (isEdns()) {
+            out.put((byte) 0);          // root name
+            out.putShort((short) RecordType.OPT.getCode());
+            out.putShort((short) payloadSize);  // CLASS holds the UDP payload size
+            out.putInt(0);              // extended RCODE, version 0, no flags
+            out.putShort((short) 0);    // no options
         }
-        queryInBytes.write(0);// 0 byte at the end of QNAME
+    }
+
+    /** Checks if a host name can be sent in a query: it is made of ASCII characters, none of its
+     * labels is longer than 63 octets, and the whole name is no longer than 255 octets in wire
+     * format (RFC 1035, section 2.3.4).
+     *
+     * @param hostName  Host name to be checked.
+     * @return          true if the host name can be encoded, false otherwise.
+     */
+    public static boolean isValidName(String hostName) {
+        int length = 1;     // 0 byte at the end
+        int labelLength = 0;
+        for (int i = 0; i <= hostName.length(); i++) {
+            if (i == hostName.length() || hostName.charAt(i) == '.') {
+                if (labelLength > MAX_LABEL_LENGTH)
+                    return false;
+                if (labelLength > 0)
+                    length += labelLength + 1;
+                labelLength = 0;
+            } else if (hostName.charAt(i) > 0x7F) {
+                return false;
+            } else {
+                labelLength++;
+            }
+        }
+        return length <= MAX_NAME_LENGTH;
+    }
+
+    /** Returns the wire-format QNAME for a host name, in lower case, from the cache of names if
+     * possible.
+     *
+     * @param hostName  Fully qualified domain name.
+     * @return          The encoded name, shared with other queries and never modified.
+     */
+    static byte[] getWireName(String hostName) {
+        String key = toLowerCase(hostName);
+        WireName cached = wireNames.get(key);
+        if (cached != null) {
+            if (!cached.referenced)
+                cached.referenced = true;
+            return cached.bytes;
+        }
+        byte[] name = encodeName(key);
+        cacheWireName(key, name);
+        return name;
+    }
+
+    /** Adds an encoded name to the cache. When the cache is full, the clock hand moves over the
+     * cached names, giving each name used since the hand last passed it a second chance, and the
+     * first name not used since then is evicted.
+     */
+    private static synchronized void cacheWireName(String key, byte[] name) {
+        if (wireNames.containsKey(key))
+            return;
+        while (clock[clockHand] != null) {
+            WireName entry = wireNames.get(clock[clockHand]);
+            if (entry == null || !entry.referenced) {
+                wireNames.remove(clock[clockHand]);
+                break;
+            }
+            entry.referenced = false;
+            clockHand = (clockHand + 1) % clock.length;
+        }
+        clock[clockHand] = key;
+        wireNames.put(key, new WireName(name));
+        clockHand = (clockHand + 1) % clock.length;
+    }
 
-        // write bytes of QTYPE to queryInBytes
-        byte[] typeCode = ByteBuffer.allocate(4).putInt(type.getCode()).array();
-        qType[0] = typeCode[2];
-        qType[1] = typeCode[3];
-        queryInBytes.write(qType, 0, qType.length);
+    /** Returns a host name in lower case, without copying it if it already is.
+     */
+    private static String toLowerCase(String hostName) {
+        for (int i = 0; i < hostName.length(); i++) {
+            char c = hostName.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                return hostName.toLowerCase(Locale.ROOT);
+        }
+        return hostName;
+    }
 
-        // write QCLASS to queryInBytes
-        qClass[1]=1;
-        queryInBytes.write(qClass,0, qClass.length);
+    /** Encodes a host name as a sequence of labels, each preceded by its length octet, followed
+     * by the 0 byte.
+     *
+     * @param hostName  Fully qualified domain name.
+     * @return          The encoded name.
+     */
+    private static byte[] encodeName(String hostName) {
+        int length = hostName.length();
+        byte[] buf = new byte[length + 2];
+        int pos = 0;
+        int labelStart = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || hostName.charAt(i) == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength > MAX_LABEL_LENGTH)
+                    throw new IllegalArgumentException("Label too long in " + hostName);
+                if (labelLength > 0) {
+                    buf[pos++] = (byte) labelLength;
+                    for (int c = labelStart; c < i; c++)
+                        buf[pos++] = (byte) hostName.charAt(c);
+                }
+                labelStart = i + 1;
+            }
+        }
+        buf[pos++] = 0;   // 0 byte at the end of QNAME
+        if (pos > MAX_NAME_LENGTH)
+            throw new IllegalArgumentException("Name too long: " + hostName);
+        byte[] name = new byte[pos];
+        System.arraycopy(buf, 0, name, 0, pos);
+        return name;
+    }
+
+    /** A cached wire-format name, with the bit the clock hand clears.
+     */
+    private static final class WireName {
+        final byte[] bytes;
+        volatile boolean referenced;
+
+        WireName(byte[] bytes) {
+            this.bytes = bytes;
+        }
     }
-}
\ No newline at end of file
+}
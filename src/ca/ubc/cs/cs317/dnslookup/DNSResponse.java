@@ -1,232 +1,442 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+/** A DNS response. The header and question are decoded when the response is created; the
+ * resource records are only indexed (the offset of each record and of its data is recorded),
+ * and each record is decoded the first time it is accessed. Each section is decoded separately,
+ * so a caller that only needs the header, or only the answers, does not pay for the rest.
+ *
+ * An EDNS0 OPT pseudo-record (RFC 6891) in the additional section is found while the records
+ * are indexed. It is not a record of any zone, so it is never decoded as a resource record;
+ * its payload size and the upper bits of the response code are read in place.
+ */
 public class DNSResponse {
-    private byte[] rawBytes;
+    private static final int HEADER_SIZE = 12;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_AA = 0x0400;
+    private static final int FLAG_TC = 0x0200;
+    private static final int MASK_Z_RCODE = 0x007F;
+    private static final int MASK_RCODE = 0x000F;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final int MAX_COMPRESSION_POINTERS = 64;
+    private static final int MIN_PAYLOAD_SIZE = 512;
+
+    private final ByteBuffer rawBytes;
+    private final StringBuilder nameBuilder = new StringBuilder(64);
     private int pointer;
+    private int questionEnd;
+    private int recordCount;
+    private int[] recordOffsets;
+    private int[] rdataOffsets;
+    private ResourceRecord[] records;
+    private boolean[] decoded;
+    private int optIndex = -1;
 
-    public byte[] qID;
-    public byte[] Flags;
+    public int qID;
+    public int flags;
     public boolean isAuth;
-    public byte[] Error;
     public int qdCount;
     public int anCount;
     public int nsCount;
     public int arCount;
     public String qName;
     public RecordType qType;
-    public byte[] qClass;
+    public int qClass;
     private static DNSCache cache = DNSCache.getInstance();
 
-    public Set<DNSNode> authoratitiveNS;
-    public List<ResourceRecord> answers;
-    public List<ResourceRecord> nameServers;
-    public List<ResourceRecord> addInfo;
+    private Set<DNSNode> authoratitiveNS;
+    private List<ResourceRecord> answers;
+    private List<ResourceRecord> nameServers;
+    private List<ResourceRecord> addInfo;
 
     /** Constructor for DNSResponse.
      *
      * @param rawBytes  Data from the datagram received.
      */
     public DNSResponse(byte[] rawBytes) {
-        this.rawBytes = rawBytes;
-        authoratitiveNS = new HashSet<>();
-        answers = new ArrayList<>();
-        nameServers = new ArrayList<>();
-        addInfo = new ArrayList<>();
+        this(ByteBuffer.wrap(rawBytes));
+    }
+
+    /** Constructor for DNSResponse. The message is read in place with absolute reads, starting
+     * at the current position of the buffer; the buffer must not be modified while the response
+     * is in use.
+     *
+     * @param rawBytes  Buffer holding the message received, positioned at its first byte.
+     */
+    public DNSResponse(ByteBuffer rawBytes) {
+        this.rawBytes = rawBytes.slice();
         pointer = 0;
         parseBegining();
+        indexRecords();
+    }
+
+    /** Returns a new response reading the same message, with its own decoding state. A response
+     * decodes its records lazily and is not thread-safe; a response shared by several threads
+     * must be copied for each of them.
+     *
+     * @return  A response for the same message.
+     */
+    public DNSResponse copy() {
+        return new DNSResponse(rawBytes.duplicate());
     }
 
     /** Parse the querying section of the DNS response.
      */
     private void parseBegining(){
-        qID = getSubArrayFromRaw(0, 2);
-        Flags = getSubArrayFromRaw(2, 3);
-        isAuth = toBinary(Flags).substring(5,6).equals("1");
-        Error = getSubArrayFromRaw(3, 4);
-        qdCount = byte2int(getSubArrayFromRaw(4, 6));
-        anCount = byte2int(getSubArrayFromRaw(6, 8));
-        nsCount = byte2int(getSubArrayFromRaw(8, 10));
-        arCount = byte2int(getSubArrayFromRaw(10,12));
-        qName = getqName(12,false);
+        qID = readUnsignedShort(0);
+        flags = readUnsignedShort(2);
+        isAuth = (flags & FLAG_AA) != 0;
+        qdCount = readUnsignedShort(4);
+        anCount = readUnsignedShort(6);
+        nsCount = readUnsignedShort(8);
+        arCount = readUnsignedShort(10);
+        pointer = HEADER_SIZE;
+        qName = getqName();
         qType = getType();
-        qClass = getSubArrayFromRaw(pointer, pointer+2);
+        qClass = readUnsignedShort(pointer);
         pointer += 2;
+        questionEnd = pointer;
     }
 
-    /** Add resource records returned in the response to the cache.
+    /** Records the offset of each resource record and of its data, without decoding them.
+     * Indexing stops at the first malformed or truncated record, as if the response ended there.
      */
-    public void cacheResourceRecords(){
-        for(int i = 0; i < anCount+nsCount+arCount; i++){
-            String name = getqName(pointer,false);
-            RecordType type = getType();
-            pointer += 2;   //skip QCLASS
-            int TTL = getTTL();
-
-            int DataLength = byte2int(getSubArrayFromRaw(pointer, pointer+2));
-            pointer += 2;
-
-            String textResult;
-            InetAddress inetResult;
-            ResourceRecord rr;
-
-            switch(type) {
-                case NS:
-                    textResult=getqName(pointer,false);
-                    rr = new ResourceRecord(name, type, TTL, textResult);
-                    cache.addResult(rr);
-                    authoratitiveNS.add(new DNSNode(textResult, type));
-                    addToLists(i, rr);
-                    break;
-                case CNAME:
-                    textResult = getqName(pointer,false);
-                    rr = new ResourceRecord(name, type, TTL, textResult);
-                    cache.addResult(rr);
-                    addToLists(i, rr);
-                    break;
-                case A:
-                    try {
-                        inetResult = InetAddress.getByAddress(getSubArrayFromRaw(pointer, pointer+DataLength));
-                        pointer += DataLength;
-                        rr = new ResourceRecord(name, type, TTL, inetResult);
-                        cache.addResult(rr);
-                        addToLists(i, rr);
-                    }
-                    catch (Exception e) {} //ignore exception and proceed
+    private void indexRecords() {
+        int total = anCount + nsCount + arCount;
+        recordOffsets = new int[total];
+        rdataOffsets = new int[total];
+        try {
+            while (recordCount < total) {
+                int offset = pointer;
+                int rdataOffset = skipName(offset) + 10;   //TYPE, CLASS, TTL and RDLENGTH
+                int rdataEnd = rdataOffset + readUnsignedShort(rdataOffset - 2);
+                if (rdataEnd > rawBytes.limit())
                     break;
-                case AAAA:
-                    try{
-                        inetResult = InetAddress.getByAddress(getSubArrayFromRaw(pointer, pointer+DataLength));
-                        pointer += DataLength;
-                        rr = new ResourceRecord(name, type, TTL, inetResult);
-                        cache.addResult(rr);
-                        addToLists(i, rr);
-                    }
-                    catch (Exception e) {} //ignore exception and proceed
-                    break;
-                default:
-                    textResult = getqName(pointer,false);
-                    rr = new ResourceRecord(name, type, TTL, textResult);
+                recordOffsets[recordCount] = offset;
+                rdataOffsets[recordCount] = rdataOffset;
+                recordCount++;
+                pointer = rdataEnd;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated record, keep the records indexed so far
+        }
+        records = new ResourceRecord[recordCount];
+        decoded = new boolean[recordCount];
+        for (int i = sectionEnd(anCount + nsCount); i < recordCount && optIndex < 0; i++)
+            if (readUnsignedShort(rdataOffsets[i] - 10) == RecordType.OPT.getCode())
+                optIndex = i;
+    }
+
+    /** Add the answer and authority records returned in the response to the cache. Glue in the
+     * additional section is only cached on demand, through cacheGlue.
+     */
+    public void cacheResourceRecords(){
+        cacheRecords(0, sectionEnd(anCount + nsCount));
+    }
+
+    /** Add the address records in the additional section for one nameserver to the cache. Only
+     * the records whose owner name matches are decoded.
+     *
+     * @param nsName    Host name of the nameserver.
+     */
+    public void cacheGlue(String nsName) {
+        for (int i = sectionEnd(anCount + nsCount); i < recordCount; i++) {
+            int typeCode = readUnsignedShort(rdataOffsets[i] - 10);
+            if ((typeCode == RecordType.A.getCode() || typeCode == RecordType.AAAA.getCode())
+                    && nameEquals(recordOffsets[i], nsName)) {
+                ResourceRecord rr = getRecord(i);
+                if (rr != null)
                     cache.addResult(rr);
-                    addToLists(i, rr);
-                    break;
             }
+        }
+    }
 
+    /** Add every resource record returned in the response, including all glue, to the cache.
+     */
+    public void cacheAllResourceRecords() {
+        cacheRecords(0, recordCount);
+    }
 
+    private void cacheRecords(int from, int to) {
+        for (int i = from; i < to; i++) {
+            ResourceRecord rr = getRecord(i);
+            if (rr != null)
+                cache.addResult(rr);
         }
     }
 
-    /** Get the bytes between from and to in the rawBytes byte[].
+    /** Returns the records of the answer section, decoding them on first access.
      *
-     * @param from  Beginning of new byte[] (inclusive).
-     * @param to    End of new byte[] (exclusive).
-     * @return      A new byte[] with everything in between from and to.
+     * @return  Unmodifiable list of answer records.
      */
-    private byte[] getSubArrayFromRaw(int from, int to){
-        return Arrays.copyOfRange(rawBytes, from, to);
+    public List<ResourceRecord> getAnswers() {
+        if (answers == null)
+            answers = decodeSection(0, anCount);
+        return answers;
     }
 
-    /** Gets the QNAME in a String.
+    /** Returns the records of the authority section, decoding them on first access.
      *
-     * @param StartPosition Beginning of the QNAME.
-     * @param isRecursion   Flag for recursive call.
-     * @return              QNAME Address.
+     * @return  Unmodifiable list of authority records.
      */
-    private String getqName(int StartPosition, boolean isRecursion) {
-        int currPos = StartPosition;
-        int namePointer;
-        int currLen = 0;
-        String name = new String();
-
-        while (rawBytes[currPos] != 0) {
-            currLen = byte2int(getSubArrayFromRaw(currPos, currPos+1));
-
-            //Detect a compression and recurse on that destination
-            if (currLen >= 64) {
-                namePointer = byte2int(getSubArrayFromRaw(currPos, currPos+2)) - 0xc000;
-                name += getqName(namePointer,true);
-                if (!isRecursion)
-                    pointer += 2;
-                return name;
-            } else {
-                for (int i = 1; i <= currLen; i++) {
-                    name += (char) rawBytes[i + currPos];
+    public List<ResourceRecord> getNameServers() {
+        if (nameServers == null)
+            nameServers = decodeSection(anCount, anCount + nsCount);
+        return nameServers;
+    }
+
+    /** Returns the records of the additional section, decoding them on first access.
+     *
+     * @return  Unmodifiable list of additional records.
+     */
+    public List<ResourceRecord> getAdditional() {
+        if (addInfo == null)
+            addInfo = decodeSection(anCount + nsCount, anCount + nsCount + arCount);
+        return addInfo;
+    }
+
+    /** Returns the nameservers listed in NS records of the authority section.
+     *
+     * @return  Set of nameserver nodes.
+     */
+    public Set<DNSNode> getAuthoritativeNS() {
+        if (authoratitiveNS == null) {
+            Set<DNSNode> result = new LinkedHashSet<>();
+            for (ResourceRecord rr : getNameServers())
+                if (rr.getType() == RecordType.NS)
+                    result.add(new DNSNode(rr.getTextResult(), RecordType.NS));
+            authoratitiveNS = result;
+        }
+        return authoratitiveNS;
+    }
+
+    private List<ResourceRecord> decodeSection(int from, int to) {
+        to = sectionEnd(to);
+        if (from >= to)
+            return Collections.emptyList();
+        List<ResourceRecord> section = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            ResourceRecord rr = getRecord(i);
+            if (rr != null)
+                section.add(rr);
+        }
+        return Collections.unmodifiableList(section);
+    }
+
+    private int sectionEnd(int end) {
+        return Math.min(end, recordCount);
+    }
+
+    /** Returns the record at an index, decoding it on first access.
+     *
+     * @param i     index of resource record in the response.
+     * @return      The record, or null if it could not be decoded.
+     */
+    private ResourceRecord getRecord(int i) {
+        if (!decoded[i]) {
+            try {
+                records[i] = decodeRecord(i);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                records[i] = null; // malformed record, skip it
+            }
+            decoded[i] = true;
+        }
+        return records[i];
+    }
+
+    /** Decodes the resource record at an index.
+     *
+     * @param i     index of resource record in the response.
+     * @return      The record, or null if its data could not be decoded.
+     */
+    private ResourceRecord decodeRecord(int i) {
+        int rdataOffset = rdataOffsets[i];
+        String name = readName(recordOffsets[i]);
+        RecordType type = RecordType.getByCode(readUnsignedShort(rdataOffset - 10));
+        int TTL = rawBytes.getInt(rdataOffset - 6);
+        int DataLength = readUnsignedShort(rdataOffset - 2);
+
+        switch(type) {
+            case OPT:
+                return null;    // pseudo-record, read in place by the EDNS accessors
+            case A:
+            case AAAA:
+                try {
+                    byte[] address = new byte[DataLength];
+                    for (int b = 0; b < DataLength; b++)
+                        address[b] = rawBytes.get(rdataOffset + b);
+                    return new ResourceRecord(name, type, TTL, InetAddress.getByAddress(address));
+                }
+                catch (Exception e) {
+                    return null;
                 }
+            default:
+                return new ResourceRecord(name, type, TTL, readName(rdataOffset));
+        }
+    }
 
-                currPos += currLen + 1;
-                if (rawBytes[currPos] != 0)
-                    name += ".";
+    /** Compares the (possibly compressed) name at an offset with a host name, without regard
+     * to case and without decoding the name.
+     *
+     * @param offset    Offset of the first label of the name.
+     * @param hostName  Host name to compare with.
+     * @return          true if both names are equal.
+     */
+    private boolean nameEquals(int offset, String hostName) {
+        int nameLen = hostName.length();
+        if (nameLen > 0 && hostName.charAt(nameLen - 1) == '.')
+            nameLen--;
+        int nameIndex = 0;
+        int currPos = offset;
+        int jumps = 0;
 
-                if (!isRecursion)
-                    pointer += currLen+1;
+        while (true) {
+            int currLen = readUnsignedByte(currPos);
+            if (currLen == 0)
+                return nameIndex == nameLen;
+            if ((currLen & 0xC0) == 0xC0) {
+                int target = readUnsignedShort(currPos) & 0x3FFF;
+                if (target >= currPos || ++jumps > MAX_COMPRESSION_POINTERS)
+                    return false;
+                currPos = target;
+                continue;
+            }
+            if ((currLen & 0xC0) != 0)
+                return false;
+            if (nameIndex != 0) {
+                if (nameIndex >= nameLen || hostName.charAt(nameIndex) != '.') return false;
+                nameIndex++;
+            }
+            for (int i = 1; i <= currLen; i++) {
+                if (nameIndex >= nameLen) return false;
+                char expected = Character.toLowerCase(hostName.charAt(nameIndex++));
+                char actual = Character.toLowerCase((char) readUnsignedByte(currPos + i));
+                if (expected != actual) return false;
             }
+            currPos += currLen + 1;
         }
+    }
 
-        if (!isRecursion)
-            pointer = currPos+1;
+    /** Gets the name at the pointer in a String, and moves the pointer past it.
+     *
+     * @return              QNAME Address.
+     */
+    private String getqName() {
+        String name = readName(pointer);
+        pointer = skipName(pointer);
         return name;
     }
 
+    /** Decodes the (possibly compressed) name starting at an offset. Labels are appended to a
+     * builder reused by this response. Compression pointers must point to an earlier offset
+     * than the label they appear in, and only a bounded number of them is followed, so a
+     * malformed message cannot cause a loop.
+     *
+     * @param offset    Offset of the first label of the name.
+     * @return          The name, with labels separated by dots.
+     */
+    private String readName(int offset) {
+        StringBuilder name = nameBuilder;
+        name.setLength(0);
+        int currPos = offset;
+        int jumps = 0;
+
+        while (true) {
+            int currLen = readUnsignedByte(currPos);
+            if (currLen == 0)
+                break;
+
+            //Detect a compression and continue at that destination
+            if ((currLen & 0xC0) == 0xC0) {
+                int target = readUnsignedShort(currPos) & 0x3FFF;
+                if (target >= currPos || ++jumps > MAX_COMPRESSION_POINTERS)
+                    throw new IllegalArgumentException("Invalid compression pointer at offset " + currPos);
+                currPos = target;
+            } else if ((currLen & 0xC0) != 0) {
+                throw new IllegalArgumentException("Invalid label type at offset " + currPos);
+            } else {
+                if (name.length() != 0)
+                    name.append('.');
+                for (int i = 1; i <= currLen; i++)
+                    name.append((char) readUnsignedByte(currPos + i));
+                if (name.length() > MAX_NAME_LENGTH)
+                    throw new IllegalArgumentException("Name too long at offset " + offset);
+                currPos += currLen + 1;
+            }
+        }
+        return name.toString();
+    }
+
+    /** Returns the offset right after the name starting at an offset, without decoding it.
+     *
+     * @param offset    Offset of the first label of the name.
+     * @return          Offset of the first byte after the name.
+     */
+    private int skipName(int offset) {
+        int currPos = offset;
+        while (true) {
+            int currLen = readUnsignedByte(currPos);
+            if (currLen == 0)
+                return currPos + 1;
+            if ((currLen & 0xC0) == 0xC0)
+                return currPos + 2;
+            currPos += currLen + 1;
+        }
+    }
+
     /** Gets RecordType of the response.
      *
      * @return  RecordType associated with the response.
      */
     private RecordType getType(){
-        RecordType t = RecordType.getByCode(byte2int(getSubArrayFromRaw(pointer, pointer+2)));
+        RecordType t = RecordType.getByCode(readUnsignedShort(pointer));
         pointer += 2;
         return t;
     }
 
-    /** Gets TTL of the response.
+    private int readUnsignedByte(int offset) {
+        return rawBytes.get(offset) & 0xFF;
+    }
+
+    private int readUnsignedShort(int offset) {
+        return rawBytes.getShort(offset) & 0xFFFF;
+    }
+
+    /** Returns the opcode of the message.
      *
-     * @return  Time to Live of response.
+     * @return  kind of query, 0 for a standard query.
      */
-    private int getTTL(){
-        int TTL = byte2int(getSubArrayFromRaw(pointer, pointer+4));
-        pointer += 4;
-        return TTL;
+    public int getOpcode() {
+        return (flags >>> 11) & 0xF;
     }
 
-    /** Converts byte[] to integer.
+    /** Checks if the message is a response rather than a query.
      *
-     * @param b     byte[] to convert.
-     * @return      integer value of b.
+     * @return  true if the QR flag is set.
      */
-    private int byte2int(byte[] b){
-        int value = 0;
-        for (int i = 0; i <= b.length-1; i++)
-            value = (value << 8) + (b[i] & 0xFF);
-        return value;
+    public boolean isResponse() {
+        return (flags & FLAG_QR) != 0;
     }
 
-    /** Converts byte[] to binary string.
+    /** Returns the length of the question section of the message.
      *
-     * @param bytes     byte[] to convert.
-     * @return          converted string.
+     * @return  number of bytes between the header and the first record.
      */
-    private String toBinary( byte[] bytes ) {
-        StringBuilder sb = new StringBuilder(bytes.length * Byte.SIZE);
-        for( int i = 0; i < Byte.SIZE * bytes.length; i++ )
-            sb.append((bytes[i / Byte.SIZE] << i % Byte.SIZE & 0x80) == 0 ? '0' : '1');
-        return sb.toString();
+    public int getQuestionLength() {
+        return questionEnd - HEADER_SIZE;
     }
 
-    /** Add resource record to appropriate category.
+    /** Writes the question section of the message, exactly as received, into a buffer.
      *
-     * @param i     index of resource record in the response.
-     * @param rr    resource record.
-     */
-    private void addToLists(int i, ResourceRecord rr) {
-        if (i < anCount) {
-            answers.add(rr);
-        } else if (i >= anCount && i < nsCount+anCount){
-            nameServers.add(rr);
-        } else {
-            addInfo.add(rr);
-        }
+     * @param out   Buffer the question is written to, at its position.
+     */
+    public void writeQuestionTo(ByteBuffer out) {
+        for (int i = HEADER_SIZE; i < questionEnd; i++)
+            out.put(rawBytes.get(i));
     }
 
     /** Gets the hostname of one nameserver.
@@ -234,27 +444,129 @@ public class DNSResponse {
      * @return      hostname.
      */
     public String getNSName(){
-        if (nameServers.size() != 0)
-            return nameServers.iterator().next().getHostName();
+        if (getNameServers().size() != 0)
+            return getNameServers().get(0).getHostName();
         else
             return null;
     }
 
+    /** Checks if the response says that the name in the question does not exist.
+     *
+     * @return  true if the RCODE is NXDOMAIN (name error).
+     */
+    public boolean isNXDomain() {
+        return getRcode() == RCODE_NXDOMAIN;
+    }
+
+    /** Returns the RCODE of the response, including the upper 8 bits carried by the OPT record
+     * if there is one.
+     *
+     * @return  response code, 0 if no error.
+     */
+    public int getRcode() {
+        int rcode = flags & MASK_RCODE;
+        if (optIndex >= 0)
+            rcode |= readUnsignedByte(rdataOffsets[optIndex] - 6) << 4;
+        return rcode;
+    }
+
+    /** Checks if the message carries an EDNS0 OPT record.
+     *
+     * @return  true if the additional section has an OPT record.
+     */
+    public boolean hasOpt() {
+        return optIndex >= 0;
+    }
+
+    /** Returns the largest UDP payload the sender of the message can receive: the size in the
+     * OPT record, or 512 bytes if there is no OPT record (or it gives less).
+     *
+     * @return  UDP payload size, in bytes.
+     */
+    public int getPayloadSize() {
+        if (optIndex < 0)
+            return MIN_PAYLOAD_SIZE;
+        return Math.max(MIN_PAYLOAD_SIZE, readUnsignedShort(rdataOffsets[optIndex] - 8));
+    }
+
+    /** Returns the negative TTL of the response (RFC 2308): the smaller of the TTL of the SOA
+     * record in the authority section and its MINIMUM field. The SOA record is read in place,
+     * without being decoded.
+     *
+     * @return  negative TTL in seconds, or -1 if the authority section has no SOA record.
+     */
+    public long getNegativeTTL() {
+        for (int i = sectionEnd(anCount); i < sectionEnd(anCount + nsCount); i++) {
+            int rdataOffset = rdataOffsets[i];
+            if (readUnsignedShort(rdataOffset - 10) != RecordType.SOA.getCode())
+                continue;
+            int dataLength = readUnsignedShort(rdataOffset - 2);
+            if (dataLength < 22)
+                continue;
+            long ttl = rawBytes.getInt(rdataOffset - 6) & 0xFFFFFFFFL;
+            long minimum = rawBytes.getInt(rdataOffset + dataLength - 4) & 0xFFFFFFFFL;
+            return Math.min(ttl, minimum);
+        }
+        return -1;
+    }
+
+    /** Checks if the server truncated the response.
+     *
+     * @return  true if the TC flag is set.
+     */
+    public boolean isTruncated() {
+        return (flags & FLAG_TC) != 0;
+    }
+
     /** Checks for error in the response.
      *
      * @return  existence of error in response.
      */
     public boolean errorCheck(){
-        char[] errorStr = toBinary(Error).toCharArray();
-        //Check Z code
-        if (errorStr[1] == '1' || errorStr[2] == '1' || errorStr[3] == '1') {
-            return true;
-        }
+        //Check Z code and RCODE (with its extended bits) for non zeros
+        return (flags & MASK_Z_RCODE) != 0 || getRcode() != 0;
+    }
 
-        //check RCODE for non zeros
-        if (errorStr[4] == '1' || errorStr[5] == '1' || errorStr[6] == '1'|| errorStr[7] == '1') {
-            return true;
+    /** Checks, without decoding or allocating anything, whether a message in a buffer has a
+     * given query ID and question. Used to match replies against pending queries before they
+     * are copied out of a receive buffer.
+     *
+     * @param message   Buffer holding the message, from its position to its limit.
+     * @param queryID   Expected query ID.
+     * @param hostName  Expected host name in the question, compared without regard to case.
+     * @param typeCode  Expected record type code in the question.
+     * @return          true if the message header and question match.
+     */
+    public static boolean matchesQuestion(ByteBuffer message, int queryID, String hostName, int typeCode) {
+        int base = message.position();
+        int limit = message.limit();
+        if (limit - base < HEADER_SIZE + 5) return false;
+        if ((message.getShort(base) & 0xFFFF) != queryID) return false;
+        if ((message.getShort(base + 4) & 0xFFFF) != 1) return false;
+
+        int currPos = base + HEADER_SIZE;
+        int nameLen = hostName.length();
+        if (nameLen > 0 && hostName.charAt(nameLen - 1) == '.')
+            nameLen--;
+        int nameIndex = 0;
+        while (currPos < limit) {
+            int currLen = message.get(currPos) & 0xFF;
+            if (currLen == 0)
+                break;
+            if (currLen >= 64 || currPos + currLen >= limit) return false;
+            if (nameIndex != 0) {
+                if (nameIndex >= nameLen || hostName.charAt(nameIndex) != '.') return false;
+                nameIndex++;
+            }
+            for (int i = 1; i <= currLen; i++) {
+                if (nameIndex >= nameLen) return false;
+                char expected = Character.toLowerCase(hostName.charAt(nameIndex++));
+                char actual = Character.toLowerCase((char) (message.get(currPos + i) & 0xFF));
+                if (expected != actual) return false;
+            }
+            currPos += currLen + 1;
         }
-        return false;
+        if (nameIndex != nameLen || currPos + 3 > limit) return false;
+        return (message.getShort(currPos + 1) & 0xFFFF) == typeCode;
     }
 }
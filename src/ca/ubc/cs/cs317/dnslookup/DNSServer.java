@@ -0,0 +1,371 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/** A caching stub DNS server: it receives queries from clients on a UDP port and answers them
+ * from the cache, or with the iterative resolver when the cache cannot answer. The port is
+ * served by a non-blocking channel and a single selector thread, which parses each query and
+ * answers cache hits directly, without allocating a response buffer. Answers already encoded
+ * are kept in a packet cache, so a repeated hit only copies bytes. Queries that miss the
+ * cache are handed to an asynchronous resolver; once the resolution completes, its results are
+ * handed back to the selector thread, which encodes and sends the response, so only the
+ * selector thread ever encodes responses or fills the packet cache. At most MAX_PENDING misses
+ * are resolved at a time; the queries that miss the cache beyond that get a SERVFAIL response,
+ * so a flood of new names cannot make the server take on unbounded work.
+ *
+ * Only standard queries for A, AAAA, NS and CNAME records of class IN are answered; other
+ * queries get a NOTIMP response. A response that does not fit in the socket's send buffer is
+ * dropped, as the client will retry. A query whose handling fails unexpectedly is logged and
+ * gets a SERVFAIL response; it does not stop the server.
+ */
+public class DNSServer implements Closeable {
+
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+    private static final int MAX_UDP_RESPONSE = 512;
+    private static final int MAX_CNAME_CHAIN = 10;
+    private static final int CLASS_IN = 1;
+    private static final int PACKET_CACHE_SIZE = Integer.getInteger("dnslookup.packetCache.maxEntries", 10000);
+    private static final int MAX_PENDING = Integer.getInteger("dnslookup.server.maxPending", 256);
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final PacketCache packets = new PacketCache(cache, PACKET_CACHE_SIZE);
+    private final Function<DNSNode, CompletableFuture<Set<ResourceRecord>>> resolver;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_UDP_RESPONSE);
+    private final Thread thread;
+    private volatile boolean open = true;
+
+    /** Constructor for a DNSServer. Binds the port and starts the selector thread.
+     *
+     * @param address  Local address to listen on; the wildcard address makes the server answer
+     *                 queries from any host.
+     * @param port     UDP port to listen on.
+     * @param resolver Starts resolving a query that missed the cache, without blocking; called
+     *                 on the selector thread, and expected to add the results to the cache.
+     * @throws IOException if the port could not be bound.
+     */
+    public DNSServer(InetAddress address, int port, Function<DNSNode, CompletableFuture<Set<ResourceRecord>>> resolver) throws IOException {
+        this.resolver = resolver;
+        channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(address, port));
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        thread = new Thread(this::run, "dns-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Returns the port the server listens on.
+     *
+     * @return The local UDP port.
+     * @throws IOException if the channel is closed.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /** Waits until the server is closed.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /** Closes the port and stops the selector thread. Queries being resolved are dropped.
+     */
+    @Override
+    public void close() {
+        open = false;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore, shutting down
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore, shutting down
+        }
+    }
+
+    private void run() {
+        try {
+            while (open) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable())
+                        receiveAll();
+                }
+                flushOutbound();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // channel closed, selector thread ends
+        }
+    }
+
+    /** Reads and handles every datagram currently available on the channel.
+     */
+    private void receiveAll() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress client;
+            try {
+                client = channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                if (!channel.isOpen()) throw e;
+                continue;
+            }
+            if (client == null) return;
+            receiveBuffer.flip();
+            handle(receiveBuffer, client);
+        }
+    }
+
+    /** Handles one query: answers it from the cache if possible, or starts resolving it.
+     *
+     * @param packet Received packet, positioned at its first byte.
+     * @param client Address the packet was received from.
+     */
+    private void handle(ByteBuffer packet, SocketAddress client) throws IOException {
+        DNSResponse query;
+        try {
+            query = new DNSResponse(packet);
+        } catch (RuntimeException e) {
+            return; // too short to hold a header and a question, drop it
+        }
+        if (query.isResponse())
+            return;
+
+        sendBuffer.clear();
+        try {
+            if (!answerLocally(sendBuffer, query) && !resolve(packet, client)) {
+                sendBuffer.clear();
+                DNSAnswer.encode(sendBuffer, query, DNSAnswer.RCODE_SERVFAIL, Collections.emptyList());
+            }
+        } catch (RuntimeException e) {
+            fail(sendBuffer, query, e);
+        }
+        if (sendBuffer.position() > 0) {
+            sendBuffer.flip();
+            send(sendBuffer, client);
+        }
+    }
+
+    /** Logs an unexpected failure to answer a query, and writes a SERVFAIL response instead of
+     * whatever was written so far.
+     *
+     * @param out   Buffer the response is written to.
+     * @param query Query received.
+     * @param e     The failure.
+     */
+    private static void fail(ByteBuffer out, DNSResponse query, RuntimeException e) {
+        System.err.println("Could not answer query for " + query.qName + " (" + e + ").");
+        out.clear();
+        try {
+            DNSAnswer.encode(out, query, DNSAnswer.RCODE_SERVFAIL, Collections.emptyList());
+        } catch (RuntimeException again) {
+            out.clear();
+            DNSAnswer.encodeError(out, query, DNSAnswer.RCODE_SERVFAIL);
+        }
+    }
+
+    /** Writes the response to a query that can be answered without resolving anything: an
+     * invalid or unsupported query, or a query answered by the cache.
+     *
+     * @param out   Buffer the response is written to.
+     * @param query Query received.
+     * @return true if the response was written, false if the query must be resolved.
+     */
+    private boolean answerLocally(ByteBuffer out, DNSResponse query) {
+        if (query.getOpcode() != 0) {
+            DNSAnswer.encodeError(out, query, DNSAnswer.RCODE_NOTIMP);
+            return true;
+        }
+        if (query.qdCount != 1 || query.qName == null) {
+            DNSAnswer.encodeError(out, query, DNSAnswer.RCODE_FORMERR);
+            return true;
+        }
+        if (query.qClass != CLASS_IN || !isSupported(query.qType)) {
+            DNSAnswer.encode(out, query, DNSAnswer.RCODE_NOTIMP, Collections.emptyList());
+            return true;
+        }
+        return packets.answer(query, out) || answerFromCache(out, query, true);
+    }
+
+    /** Writes the response to a query from the cache, following CNAME records. A positive
+     * answer is also added to the packet cache.
+     *
+     * @param out        Buffer the response is written to.
+     * @param query      Query received.
+     * @param clientRead true if the reads count as client reads of the nodes, for refreshing
+     *                   them; false if the query was already counted when it arrived.
+     * @return true if the cache had the answer (possibly negative), false otherwise.
+     */
+    private boolean answerFromCache(ByteBuffer out, DNSResponse query, boolean clientRead) {
+        PacketCache.Stamp stamp = packets.newStamp();
+        List<ResourceRecord> answers = null;
+        DNSNode node = new DNSNode(query.qName, query.qType);
+        for (int i = 0; i <= MAX_CNAME_CHAIN; i++) {
+            stamp.add(node.getHostName());
+            Set<ResourceRecord> results = clientRead ? cache.getClientResults(node) : cache.getCachedResults(node);
+            if (!results.isEmpty()) {
+                if (answers == null)
+                    answers = new ArrayList<>(results);
+                else
+                    answers.addAll(results);
+                int start = out.position();
+                int[] ttlOffsets = new int[answers.size()];
+                if (DNSAnswer.encode(out, query, DNSAnswer.RCODE_NOERROR, answers, ttlOffsets)) {
+                    ByteBuffer response = out.duplicate();
+                    response.limit(out.position()).position(start);
+                    packets.put(query, response, ttlOffsets, answers, stamp);
+                }
+                return true;
+            }
+            if (cache.isNegativelyCached(node)) {
+                int rcode = cache.isNonExistent(node.getHostName()) ? DNSAnswer.RCODE_NXDOMAIN : DNSAnswer.RCODE_NOERROR;
+                DNSAnswer.encode(out, query, rcode, answers == null ? Collections.emptyList() : answers);
+                return true;
+            }
+            if (node.getType() == RecordType.CNAME)
+                return false;
+            DNSNode aliasNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+            Set<ResourceRecord> aliases = clientRead ? cache.getClientResults(aliasNode) : cache.getCachedResults(aliasNode);
+            if (aliases.isEmpty())
+                return false;
+            ResourceRecord alias = aliases.iterator().next();
+            if (answers == null)
+                answers = new ArrayList<>();
+            answers.add(alias);
+            node = new DNSNode(alias.getTextResult(), query.qType);
+        }
+        return false;
+    }
+
+    /** Starts resolving a query that missed the cache, unless MAX_PENDING queries are already
+     * being resolved. Its response is queued once the resolution completes.
+     *
+     * @param packet Received query, positioned at its first byte.
+     * @param client Address the query was received from.
+     * @return true if the resolution was started, false if the query must be refused.
+     */
+    private boolean resolve(ByteBuffer packet, SocketAddress client) {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return false;
+        }
+        byte[] copy = new byte[packet.remaining()];
+        packet.get(copy);
+        DNSResponse query = new DNSResponse(copy);
+        CompletableFuture<Set<ResourceRecord>> resolution;
+        try {
+            resolution = resolver.apply(new DNSNode(query.qName, query.qType));
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            return false;
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+        resolution.whenComplete((results, error) -> {
+            pending.decrementAndGet();
+            outbound.add(new Outbound(query, client, results));
+            selector.wakeup();
+        });
+        return true;
+    }
+
+    /** Encodes and sends the responses to the queries whose resolution completed.
+     */
+    private void flushOutbound() throws IOException {
+        Outbound resolved;
+        while ((resolved = outbound.poll()) != null) {
+            sendBuffer.clear();
+            respond(sendBuffer, resolved.query, resolved.results);
+            sendBuffer.flip();
+            send(sendBuffer, resolved.client);
+        }
+    }
+
+    /** Writes the response to a query that was resolved, from the cache if the results were
+     * added to it.
+     *
+     * @param out     Buffer the response is written to.
+     * @param query   Query received.
+     * @param results Results of the resolution, or null if it failed.
+     */
+    private void respond(ByteBuffer out, DNSResponse query, Set<ResourceRecord> results) {
+        try {
+            if (results == null || !answerFromCache(out, query, false)) {
+                out.clear();
+                // stale records served instead of an answer are not in the cache
+                int rcode = results == null || results.isEmpty() ? DNSAnswer.RCODE_SERVFAIL : DNSAnswer.RCODE_NOERROR;
+                DNSAnswer.encode(out, query, rcode, results == null ? Collections.emptyList() : new ArrayList<>(results));
+            }
+        } catch (RuntimeException e) {
+            fail(out, query, e);
+        }
+    }
+
+    /** Sends a response to a client. An error sending to one client does not stop the server.
+     */
+    private void send(ByteBuffer response, SocketAddress client) throws IOException {
+        try {
+            channel.send(response, client);
+        } catch (IOException e) {
+            if (!channel.isOpen()) throw e;
+        }
+    }
+
+    private static boolean isSupported(RecordType type) {
+        return type == RecordType.A || type == RecordType.AAAA || type == RecordType.NS || type == RecordType.CNAME;
+    }
+
+    /** A query whose resolution completed, waiting for its response to be sent.
+     */
+    private static class Outbound {
+        final DNSResponse query;
+        final SocketAddress client;
+        final Set<ResourceRecord> results;
+
+        Outbound(DNSResponse query, SocketAddress client, Set<ResourceRecord> results) {
+            this.query = query;
+            this.client = client;
+            this.results = results;
+        }
+    }
+}
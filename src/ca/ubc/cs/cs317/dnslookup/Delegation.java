@@ -0,0 +1,33 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+/** A zone cut known from the cache: the name of a zone, and the addresses of the nameservers
+ * the zone is delegated to. Iterative resolution of a name inside the zone can start at these
+ * servers instead of at the root.
+ */
+public class Delegation {
+
+    private final String zone;
+    private final List<InetAddress> servers;
+
+    public Delegation(String zone, List<InetAddress> servers) {
+        this.zone = zone;
+        this.servers = Collections.unmodifiableList(servers);
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public List<InetAddress> getServers() {
+        return servers;
+    }
+
+    @Override
+    public String toString() {
+        return zone + " " + servers;
+    }
+}
@@ -0,0 +1,67 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/** An index of keys ordered by expiration time. Keys are grouped in buckets of a fixed width, and
+ * buckets are kept in a sorted map, so scheduling a key and draining the keys due at a given
+ * time both cost time proportional to the number of keys involved, not to the size of the
+ * index. A key may be scheduled more than once; the owner of the index is expected to check,
+ * when a key is drained, whether it really expired.
+ *
+ * @param <K> Type of the keys.
+ */
+public class ExpiryIndex<K> {
+
+    private final long bucketWidth;
+    private final ConcurrentSkipListMap<Long, Set<K>> buckets = new ConcurrentSkipListMap<>();
+
+    /** Constructor for an ExpiryIndex.
+     *
+     * @param bucketWidth Width of each bucket, in milliseconds. Keys are drained at most this
+     *                    long after their expiration time.
+     */
+    public ExpiryIndex(long bucketWidth) {
+        this.bucketWidth = bucketWidth;
+    }
+
+    /** Schedules a key to be drained once a given time has passed.
+     *
+     * @param key        Key to be scheduled.
+     * @param expiration Expiration time of the key, in milliseconds since the epoch.
+     */
+    public void schedule(K key, long expiration) {
+        Long bucket = Math.floorDiv(expiration, bucketWidth);
+        while (true) {
+            Set<K> keys = buckets.computeIfAbsent(bucket, b -> ConcurrentHashMap.newKeySet());
+            keys.add(key);
+            // the bucket may have been drained while the key was added; if so, add it again
+            if (buckets.get(bucket) == keys)
+                return;
+        }
+    }
+
+    /** Removes the keys in every bucket that ended at or before a given time, and passes each
+     * of them to an action.
+     *
+     * @param now    Current time, in milliseconds since the epoch.
+     * @param action Action performed on each drained key.
+     */
+    public void drainExpired(long now, Consumer<K> action) {
+        long lastBucket = Math.floorDiv(now, bucketWidth) - 1;
+        Map.Entry<Long, Set<K>> entry;
+        while ((entry = buckets.firstEntry()) != null && entry.getKey() <= lastBucket) {
+            if (buckets.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().forEach(action);
+        }
+    }
+
+    /** Removes every key from the index.
+     */
+    public void clear() {
+        buckets.clear();
+    }
+}
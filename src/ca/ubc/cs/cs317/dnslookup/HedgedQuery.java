@@ -0,0 +1,292 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** A question sent to a list of equivalent servers (such as the nameservers of a zone) with
+ * hedging: the question is first sent to one server, and if no usable response arrives within
+ * the hedge delay of that server (a high percentile of its recent round-trip times, but no more
+ * than its retransmission timeout), it is also sent to the next server, and so on. The first
+ * usable response wins; the other queries are cancelled, so their late responses are dropped by
+ * the transport. A server that responds with an error (other than NXDOMAIN) does not count, and
+ * the next server is tried right away. A truncated response (TC set) is not used either: the
+ * question is asked again to the same server over TCP, and the response received over TCP is
+ * the reply of that server. Queries carry an EDNS0 OPT record, unless the server is known to
+ * mishandle it; a server that answers one with an error and no OPT record is asked again right
+ * away without it.
+ *
+ * A query that is not answered within the retransmission timeout of its server is recorded as a
+ * timeout of that server. Once every server has been tried, the question is retransmitted to
+ * the servers in turn, each time the retransmission timeout of the last query expires, so a
+ * retransmission goes to a different server whenever there is more than one. Each server gets
+ * the question at most a few times. Every transmission uses a new query ID, so each response
+ * matches a single transmission and its round-trip time is never ambiguous. The query itself is
+ * encoded once and reused by every transmission, with or without OPT record; the transport only
+ * writes the new ID over the encoded query.
+ *
+ * A hedged query is used by a single thread, the one waiting for its response.
+ */
+public class HedgedQuery {
+
+    private static final double HEDGE_PERCENTILE = 0.9;
+    private static final long MIN_HEDGE_DELAY = 5;
+    private static final int MAX_TRANSMISSIONS_PER_SERVER = 3;
+
+    private final UDPTransport transport;
+    private final TCPTransport tcpTransport;
+    private final ServerStatistics statistics;
+    private final DNSNode node;
+    private final List<InetAddress> servers;
+    private final List<Sent> sent = new ArrayList<>();
+    private final LinkedBlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+    private DNSQuery ednsQuery;
+    private DNSQuery plainQuery;
+
+    /** Constructor for a HedgedQuery.
+     *
+     * @param transport  Transport used to send the queries.
+     * @param tcpTransport Transport used to ask again the questions whose response was truncated.
+     * @param statistics Statistics of the servers, updated with the new measurements.
+     * @param node       Host name and record type of the question.
+     * @param servers    Equivalent servers, in the order they should be tried.
+     */
+    public HedgedQuery(UDPTransport transport, TCPTransport tcpTransport, ServerStatistics statistics,
+                       DNSNode node, List<InetAddress> servers) {
+        this.transport = transport;
+        this.tcpTransport = tcpTransport;
+        this.statistics = statistics;
+        this.node = node;
+        this.servers = servers;
+    }
+
+    /** Sends the question and waits for the first usable response from any of the servers,
+     * retransmitting it as needed. If every transmission got an error response, the last error
+     * response is returned.
+     *
+     * @param timeout Maximum time to wait for a response, in milliseconds.
+     * @return The first usable response, and the query and server it belongs to.
+     * @throws TimeoutException     If no server responded in time. All queries are cancelled.
+     * @throws InterruptedException If the thread was interrupted. All queries are cancelled.
+     */
+    public Reply get(long timeout) throws TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int maxTransmissions = servers.size() * MAX_TRANSMISSIONS_PER_SERVER;
+        int outstanding = 0;
+        Reply lastError = null;
+        long nextSend = sendNext();
+        outstanding++;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                recordTimeouts(now);
+                if (now >= deadline)
+                    throw new TimeoutException("No response from " + servers);
+                long wait = deadline - now;
+                if (sent.size() < maxTransmissions)
+                    wait = Math.min(wait, Math.max(0, nextSend - now));
+
+                Reply reply = replies.poll(wait, TimeUnit.NANOSECONDS);
+                if (reply == null) {
+                    if (sent.size() < maxTransmissions && System.nanoTime() >= nextSend) {
+                        recordTimeouts(System.nanoTime());
+                        nextSend = sendNext();
+                        outstanding++;
+                    }
+                    continue;
+                }
+                outstanding--;
+                if (reply.response != null && isUsable(reply.response))
+                    return reply;
+                if (reply.response != null)
+                    lastError = reply;
+                if (sent.size() < maxTransmissions) {
+                    nextSend = sendNext();
+                    outstanding++;
+                } else if (outstanding == 0) {
+                    if (lastError != null)
+                        return lastError;
+                    throw new TimeoutException("No response from " + servers);
+                }
+            }
+        } finally {
+            recordTimeouts(System.nanoTime());
+            cancel();
+        }
+    }
+
+    /** Returns the queries sent so far, with the servers they were sent to.
+     *
+     * @return The list of queries sent, in order.
+     */
+    public List<Sent> getSent() {
+        return sent;
+    }
+
+    /** Sends the question to the next server, going back to the first server once every server
+     * has been tried.
+     *
+     * @return The time at which the question should be sent to the following server, as given
+     *         by System.nanoTime: the hedge delay of this server during the first round, and its
+     *         retransmission timeout during the next ones.
+     */
+    private long sendNext() {
+        boolean firstRound = sent.size() < servers.size();
+        InetAddress server = servers.get(sent.size() % servers.size());
+        DNSQuery query = getQuery(statistics.isEdnsEnabled(server));
+        long rto = statistics.getRetransmissionTimeout(server);
+        long delay = firstRound ? Math.min(rto, Math.max(MIN_HEDGE_DELAY,
+                statistics.getPercentile(server, HEDGE_PERCENTILE))) : rto;
+        long start = System.nanoTime();
+        CompletableFuture<DNSResponse> future = transport.send(query, server);
+        // the ID is given to the query as it is sent, and replaced by the next transmission
+        Sent entry = new Sent(query, query.getQueryID(), server, future, start + TimeUnit.MILLISECONDS.toNanos(rto));
+        sent.add(entry);
+        future.whenComplete((response, error) -> {
+            if (response != null)
+                statistics.record(server, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            handleResponse(entry, query, response, false);
+        });
+        return start + TimeUnit.MILLISECONDS.toNanos(delay);
+    }
+
+    /** Returns the query sent to the servers, with or without an OPT record, encoding it on
+     * first use.
+     */
+    private DNSQuery getQuery(boolean edns) {
+        if (edns && transport.getPayloadSize() > 0) {
+            if (ednsQuery == null)
+                ednsQuery = new DNSQuery(node, transport.getPayloadSize());
+            return ednsQuery;
+        }
+        if (plainQuery == null)
+            plainQuery = new DNSQuery(node);
+        return plainQuery;
+    }
+
+    /** Handles the response to a query sent to the server of a transmission. A response that
+     * shows the server does not understand EDNS0 (an error without OPT record, RFC 6891) makes the
+     * question be asked again without OPT record; a truncated UDP response makes it be asked
+     * again over TCP. Any other response, or null if the query failed, is the reply of the
+     * transmission.
+     */
+    private void handleResponse(Sent entry, DNSQuery query, DNSResponse response, boolean overTcp) {
+        if (response != null && query.isEdns()) {
+            if (response.hasOpt()) {
+                statistics.recordEdnsSupport(entry.server);
+            } else if (isEdnsError(response)) {
+                statistics.recordEdnsFailure(entry.server);
+                DNSQuery plain = new DNSQuery(node);
+                followUp(entry, plain, transport.send(plain, entry.server), false);
+                return;
+            }
+        }
+        if (response != null && response.isTruncated() && !overTcp) {
+            DNSQuery tcpQuery = new DNSQuery(node);
+            followUp(entry, tcpQuery, tcpTransport.send(tcpQuery, entry.server), true);
+            return;
+        }
+        replies.add(new Reply(query, response != null ? response.qID : entry.queryID, entry.server, response));
+    }
+
+    /** Waits for the response to a query asking the question again to the server of a
+     * transmission, in place of its first response.
+     */
+    private void followUp(Sent entry, DNSQuery query, CompletableFuture<DNSResponse> future, boolean overTcp) {
+        entry.followUp = future;
+        // the hedged query may have completed while the first response was on its way
+        if (entry.cancelled)
+            future.cancel(false);
+        future.whenComplete((response, error) -> handleResponse(entry, query, response, overTcp));
+    }
+
+    /** Records a timeout for every query whose retransmission timeout has passed without a
+     * response. Each query is counted once.
+     */
+    private void recordTimeouts(long now) {
+        for (Sent entry : sent)
+            if (!entry.timedOut && !entry.future.isDone() && now >= entry.expiration) {
+                entry.timedOut = true;
+                statistics.recordTimeout(entry.server);
+            }
+    }
+
+    private void cancel() {
+        for (Sent entry : sent) {
+            entry.cancelled = true;
+            entry.future.cancel(false);
+            CompletableFuture<DNSResponse> followUp = entry.followUp;
+            if (followUp != null)
+                followUp.cancel(false);
+        }
+    }
+
+    /** Returns true if a response without OPT record to a query with one is an error that a
+     * server not supporting EDNS0 would return.
+     */
+    private static boolean isEdnsError(DNSResponse response) {
+        int rcode = response.getRcode();
+        return rcode == DNSAnswer.RCODE_FORMERR || rcode == DNSAnswer.RCODE_SERVFAIL || rcode == DNSAnswer.RCODE_NOTIMP;
+    }
+
+    /** Returns true if a response can be used: it has no error, or its only error is that the
+     * name does not exist.
+     */
+    private static boolean isUsable(DNSResponse response) {
+        return !response.errorCheck() || response.isNXDomain();
+    }
+
+    /** A query sent to one of the servers.
+     */
+    public static final class Sent {
+
+        public final DNSQuery query;
+        public final int queryID;
+        public final InetAddress server;
+        private final CompletableFuture<DNSResponse> future;
+        private final long expiration;
+        private boolean timedOut;
+        private volatile CompletableFuture<DNSResponse> followUp;
+        private volatile boolean cancelled;
+
+        Sent(DNSQuery query, int queryID, InetAddress server, CompletableFuture<DNSResponse> future, long expiration) {
+            this.query = query;
+            this.queryID = queryID;
+            this.server = server;
+            this.future = future;
+            this.expiration = expiration;
+        }
+    }
+
+    /** The outcome of one of the queries: its response, or null if it failed. If the question
+     * was asked again over TCP, the query is the one sent over TCP. The query may have been sent
+     * again since with another ID, so the ID of the transmission is kept with it.
+     */
+    public static final class Reply {
+
+        public final DNSQuery query;
+        public final int queryID;
+        public final InetAddress server;
+        public final DNSResponse response;
+
+        Reply(DNSQuery query, int queryID, InetAddress server, DNSResponse response) {
+            this.query = query;
+            this.queryID = queryID;
+            this.server = server;
+            this.response = response;
+        }
+
+        /** Returns a copy of the reply for another thread. A response is not thread-safe, so the
+         * copy has its own response, reading the same message.
+         *
+         * @return A reply with the same query and server, and a copy of the response.
+         */
+        public Reply copy() {
+            return new Reply(query, queryID, server, response == null ? null : response.copy());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A table of interned host names. Compact cache entries keep a reference to the interned copy
+ * of a name (such as the target of an NS or CNAME record) instead of their own copy, so a name
+ * held by many entries is only stored once.
+ *
+ * Names are reference counted: each holder acquires a name once and releases it when done, and
+ * the name is removed from the table once no reference is left. Holders keep a direct reference
+ * to the interned copy, so a name removed from the table stays valid for a reader that obtained
+ * it from an entry that was replaced in the meantime; it is only no longer shared with the
+ * names acquired later. Updates only lock the bin of the name being changed.
+ */
+public class NameTable {
+
+    private final ConcurrentHashMap<String, Name> names = new ConcurrentHashMap<>();
+
+    /** Returns the interned copy of a name, adding the name to the table if needed, and
+     * acquires one reference to it.
+     *
+     * @param name Name to be interned.
+     * @return The interned copy of the name, equal to it.
+     */
+    public String acquire(String name) {
+        return names.compute(name, (key, entry) -> {
+            if (entry == null)
+                return new Name(key);
+            entry.count++;
+            return entry;
+        }).value;
+    }
+
+    /** Acquires one more reference to a name already held by the caller.
+     *
+     * @param name Interned name.
+     */
+    public void retain(String name) {
+        names.computeIfPresent(name, (key, entry) -> {
+            entry.count++;
+            return entry;
+        });
+    }
+
+    /** Releases one reference to a name. The name is removed from the table once no reference
+     * is left.
+     *
+     * @param name Interned name.
+     */
+    public void release(String name) {
+        names.computeIfPresent(name, (key, entry) -> --entry.count == 0 ? null : entry);
+    }
+
+    /** Returns the interned copy of a name if the table holds it, without acquiring a
+     * reference to it. The copy stays valid, but may no longer be shared once released.
+     *
+     * @param name Name to be looked up.
+     * @return The interned copy of the name, or the name itself if it is not in the table.
+     */
+    public String share(String name) {
+        Name entry = names.get(name);
+        return entry != null ? entry.value : name;
+    }
+
+    /** Returns the number of names in the table.
+     *
+     * @return Number of interned names.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /** An interned name and its number of references; the count is only changed in the bin lock
+     * of the name.
+     */
+    private static final class Name {
+        final String value;
+        int count = 1;
+
+        Name(String value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/** An index of the nodes held in the cache, as a trie keyed on the labels of each host name in
+ * reverse order and without regard to case (www.ubc.ca is stored under ca, ubc, www). Each trie
+ * node records which record types are cached for its name. Looking up a name, its closest
+ * cached ancestor or the names below it costs time proportional to the number of labels of the
+ * name, not to the number of names in the index.
+ *
+ * Lookups do not lock. Updates lock only the trie entries they change: adding a name locks the
+ * entry that gains a child or a type, and pruning an entry locks it and its parent, so updates to
+ * different names seldom wait for each other. Updates are expected to be made while the cache
+ * holds the lock of the node being changed, so the index agrees with the cache.
+ */
+public class NameTrie {
+
+    private static final RecordType[] TYPES = RecordType.values();
+
+    private final Entry root = new Entry(null, null);
+
+    /** Adds a node to the index.
+     *
+     * @param node DNS node (host name and record type) to be added.
+     */
+    public void add(DNSNode node) {
+        List<String> labels = reversedLabels(node.getHostName());
+        int bit = 1 << node.getType().ordinal();
+        // an entry pruned while we walk past it has no children left, so we find it removed
+        // when adding below it, and start again from the root
+        while (!tryAdd(labels, bit))
+            ;
+    }
+
+    /** Adds a record type to the entry of a name, creating the entries missing on its path.
+     * Returns false if an entry on the path was pruned meanwhile, and nothing was added.
+     */
+    private boolean tryAdd(List<String> labels, int bit) {
+        Entry entry = root;
+        for (String label : labels) {
+            Entry child = entry.child(label);
+            if (child == null) {
+                synchronized (entry) {
+                    if (entry.removed)
+                        return false;
+                    if (entry.children == null)
+                        entry.children = new ConcurrentHashMap<>(4);
+                    child = entry.children.get(label);
+                    if (child == null) {
+                        child = new Entry(entry, label);
+                        entry.children.put(label, child);
+                    }
+                }
+            }
+            entry = child;
+        }
+        synchronized (entry) {
+            if (entry.removed)
+                return false;
+            entry.types |= bit;
+        }
+        return true;
+    }
+
+    /** Removes a node from the index. Trie entries left without types and children are pruned.
+     *
+     * @param node DNS node (host name and record type) to be removed.
+     */
+    public void remove(DNSNode node) {
+        Entry entry = find(node.getHostName());
+        if (entry == null)
+            return;
+        synchronized (entry) {
+            entry.types &= ~(1 << node.getType().ordinal());
+        }
+        while (entry.parent != null && entry.isEmpty()) {
+            Entry parent = entry.parent;
+            synchronized (parent) {
+                synchronized (entry) {
+                    if (entry.removed || !entry.isEmpty())
+                        return;
+                    entry.removed = true;
+                    parent.children.remove(entry.label);
+                    if (parent.children.isEmpty())
+                        parent.children = null;
+                }
+            }
+            entry = parent;
+        }
+    }
+
+    /** Returns the nodes indexed for a host name, one per cached record type.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return A potentially empty list of nodes.
+     */
+    public List<DNSNode> getNodes(String hostName) {
+        List<DNSNode> nodes = new ArrayList<>();
+        Entry entry = find(hostName);
+        if (entry != null)
+            entry.addNodes(nodes);
+        return nodes;
+    }
+
+    /** Returns the names at or above a host name that are indexed with a given record type,
+     * deepest first.
+     *
+     * @param hostName Fully qualified domain name.
+     * @param type     Record type the names must have.
+     * @return A potentially empty list of nodes, from the host name itself towards the root.
+     */
+    public List<DNSNode> getAncestors(String hostName, RecordType type) {
+        int bit = 1 << type.ordinal();
+        List<DNSNode> ancestors = new ArrayList<>();
+        Entry entry = root;
+        for (String label : reversedLabels(hostName)) {
+            entry = entry.child(label);
+            if (entry == null)
+                break;
+            if ((entry.types & bit) != 0)
+                ancestors.add(0, new DNSNode(entry.hostName, type));
+        }
+        return ancestors;
+    }
+
+    /** Performs an action for each node indexed at or below a name.
+     *
+     * @param zone     Name at the top of the subtree.
+     * @param consumer Action to be performed for each node.
+     */
+    public void forEachInSubtree(String zone, Consumer<DNSNode> consumer) {
+        Entry top = find(zone);
+        if (top == null)
+            return;
+        List<DNSNode> nodes = new ArrayList<>();
+        List<Entry> pending = new ArrayList<>();
+        pending.add(top);
+        while (!pending.isEmpty()) {
+            Entry entry = pending.remove(pending.size() - 1);
+            entry.addNodes(nodes);
+            Map<String, Entry> children = entry.children;
+            if (children != null)
+                pending.addAll(children.values());
+        }
+        nodes.forEach(consumer);
+    }
+
+    /** Returns the trie entry of a host name, or null if the name is not in the index.
+     */
+    private Entry find(String hostName) {
+        Entry entry = root;
+        for (String label : reversedLabels(hostName)) {
+            entry = entry.child(label);
+            if (entry == null)
+                return null;
+        }
+        return entry;
+    }
+
+    /** Splits a host name into lower-case labels, from the top-level label down. Empty labels
+     * (such as after a trailing dot) are left out.
+     */
+    private static List<String> reversedLabels(String hostName) {
+        String name = hostName.toLowerCase(Locale.ROOT);
+        List<String> labels = new ArrayList<>();
+        int end = name.length();
+        for (int i = end - 1; i >= -1; i--) {
+            if (i < 0 || name.charAt(i) == '.') {
+                if (end > i + 1)
+                    labels.add(name.substring(i + 1, end));
+                end = i;
+            }
+        }
+        return labels;
+    }
+
+    /** A name in the trie: its children by label, and the record types cached for the name.
+     * The name of an entry is kept in lower case. Most entries are leaves, so the map of children
+     * is only created with the first child, and dropped with the last. The children, the types
+     * and the removed flag are changed while holding the lock of the entry.
+     */
+    private static final class Entry {
+
+        final Entry parent;
+        final String label;
+        final String hostName;
+        volatile Map<String, Entry> children;
+        volatile int types;
+        volatile boolean removed;
+
+        Entry(Entry parent, String label) {
+            this.parent = parent;
+            this.label = label;
+            if (parent == null)
+                this.hostName = "";
+            else if (parent.parent == null)
+                this.hostName = label;
+            else
+                this.hostName = label + "." + parent.hostName;
+        }
+
+        Entry child(String label) {
+            Map<String, Entry> map = children;
+            return map != null ? map.get(label) : null;
+        }
+
+        /** Returns whether the entry has neither types nor children, and may be pruned.
+         */
+        boolean isEmpty() {
+            return types == 0 && children == null;
+        }
+
+        void addNodes(List<DNSNode> nodes) {
+            int mask = types;
+            for (RecordType type : TYPES)
+                if ((mask & (1 << type.ordinal())) != 0)
+                    nodes.add(new DNSNode(hostName, type));
+        }
+    }
+}
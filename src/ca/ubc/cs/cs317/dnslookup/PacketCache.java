@@ -0,0 +1,313 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A cache of encoded answers, keyed by question (host name, record type and class). Each entry
+ * holds the bytes of a response built from the DNS cache, with the offset of every TTL field in
+ * it. A hit copies the bytes into the send buffer, patches the query ID, the RD flag and the
+ * question (so the case of the name is the client's), and lowers each TTL by the time elapsed
+ * since the entry was built, without looking at any record (the read is still recorded by the
+ * DNS cache). An entry expires when its smallest TTL reaches zero.
+ *
+ * An entry is removed as soon as the DNS cache changes any node of a host name the entry was
+ * built from (see DNSCache.addChangeListener). Each host name has a version, bumped on every
+ * change, and an answer is dropped if one of the names it was read from changed while it was
+ * built, so the cache never holds an answer older than the records it came from; changes to
+ * other names do not affect it. Versions are kept in a fixed number of stripes, by hash of the
+ * name, so names without answers need no entry. Only positive answers are cached.
+ *
+ * Once the cache is full, adding an answer evicts another one, chosen by a clock: the hand moves
+ * over the entries, giving those that were hit since it last passed another chance, and evicts
+ * the first expired or unused one.
+ */
+public class PacketCache {
+
+    private static final int FLAG_RD = 0x0100;
+    private static final int VERSION_STRIPES = 4096;
+
+    private final ConcurrentHashMap<Key, Packet> packets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Packet>> dependents = new ConcurrentHashMap<>();
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+    private final DNSCache cache;
+    private final Packet[] clock;
+    private int clockHand;
+
+    /** Constructor for a PacketCache. The packet cache listens to the changes of the DNS cache.
+     *
+     * @param cache          DNS cache the answers are built from.
+     * @param maximumEntries Maximum number of answers kept.
+     */
+    public PacketCache(DNSCache cache, int maximumEntries) {
+        this.cache = cache;
+        this.clock = new Packet[Math.max(1, maximumEntries)];
+        cache.addChangeListener(this::invalidate);
+    }
+
+    /** Returns a new stamp, to which each host name is added before its records are read from
+     * the DNS cache; the stamp is then given to put with the answer.
+     *
+     * @return An empty stamp.
+     */
+    public Stamp newStamp() {
+        return new Stamp();
+    }
+
+    /** Writes the cached answer to a query into a buffer, at its position.
+     *
+     * @param query Query received; must be a standard query of class IN with one question.
+     * @param out   Buffer the answer is written to; its position is advanced past the answer.
+     * @return true if the answer was written, false if no unexpired answer is cached.
+     */
+    public boolean answer(DNSResponse query, ByteBuffer out) {
+        Key key = new Key(query.qName, query.qType.getCode(), query.qClass);
+        Packet packet = packets.get(key);
+        if (packet == null)
+            return false;
+        long now = CoarseClock.currentTimeMillis();
+        if (now >= packet.expiration) {
+            discard(packet);
+            return false;
+        }
+        if (query.getQuestionLength() != packet.questionLength || out.remaining() < packet.bytes.length)
+            return false;
+
+        int start = out.position();
+        out.put(packet.bytes);
+        out.putShort(start, (short) query.qID);
+        out.putShort(start + 2, (short) ((packet.flags & ~FLAG_RD) | (query.flags & FLAG_RD)));
+        out.position(start + 12);
+        query.writeQuestionTo(out);
+        out.position(start + packet.bytes.length);
+        int elapsed = (int) ((now - packet.created) / 1000);
+        for (int i = 0; i < packet.ttlOffsets.length; i++)
+            out.putInt(start + packet.ttlOffsets[i], packet.ttls[i] - elapsed);
+        if (!packet.referenced)
+            packet.referenced = true;
+        // the node still counts as read, for eviction and refresh-ahead
+        cache.recordHit(new DNSNode(query.qName, query.qType));
+        return true;
+    }
+
+    /** Adds an encoded answer to the cache, evicting another answer if the cache is full. The
+     * answer is not added if one of the host names of the stamp changed since it was added to
+     * the stamp.
+     *
+     * @param query      Query the answer was built for.
+     * @param response   Buffer holding the encoded answer, from its position to its limit.
+     * @param ttlOffsets Offset of the TTL field of each record, from the start of the answer.
+     * @param records    Records of the answer, in order; one per TTL offset.
+     * @param stamp      Stamp holding the host names of the records, each added before it was
+     *                   read from the DNS cache.
+     */
+    public void put(DNSResponse query, ByteBuffer response, int[] ttlOffsets, List<ResourceRecord> records, Stamp stamp) {
+        if (records.isEmpty())
+            return;
+        Key key = new Key(query.qName, query.qType.getCode(), query.qClass);
+        byte[] bytes = new byte[response.remaining()];
+        response.duplicate().get(bytes);
+        ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+        int[] offsets = new int[records.size()];
+        int[] ttls = new int[records.size()];
+        int minimumTtl = Integer.MAX_VALUE;
+        Set<String> hostNames = new LinkedHashSet<>();
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = ttlOffsets[i];
+            ttls[i] = wrapped.getInt(offsets[i]);
+            minimumTtl = Math.min(minimumTtl, ttls[i]);
+            hostNames.add(records.get(i).getHostName().toLowerCase(Locale.ROOT));
+        }
+        if (minimumTtl <= 0)
+            return;
+        long now = CoarseClock.currentTimeMillis();
+        Packet packet = new Packet(key, hostNames.toArray(new String[0]), bytes, wrapped.getShort(2) & 0xFFFF,
+                query.getQuestionLength(), offsets, ttls, now, now + minimumTtl * 1000L);
+
+        // registered before the answer is visible, so a change from now on removes it
+        for (String hostName : packet.hostNames)
+            dependents.compute(hostName, (name, set) -> {
+                if (set == null)
+                    set = ConcurrentHashMap.newKeySet();
+                set.add(packet);
+                return set;
+            });
+        insert(packet);
+        // a name the answer was read from changed in the meantime, the answer may be stale
+        if (!stamp.isCurrent())
+            discard(packet);
+    }
+
+    /** Returns the number of answers cached.
+     *
+     * @return Number of cached answers, including expired ones not removed yet.
+     */
+    public int size() {
+        return packets.size();
+    }
+
+    /** Returns the number of host names that cached answers were built from.
+     *
+     * @return Number of host names with dependent answers.
+     */
+    int getDependentNameCount() {
+        return dependents.size();
+    }
+
+    /** Adds an answer to the cache, in a free slot of the clock or in the slot of the answer
+     * the clock evicts.
+     */
+    private synchronized void insert(Packet packet) {
+        long now = CoarseClock.currentTimeMillis();
+        while (clock[clockHand] != null) {
+            Packet old = clock[clockHand];
+            // a slot whose answer was replaced or removed is free
+            if (packets.get(old.key) != old)
+                break;
+            if (now >= old.expiration || !old.referenced) {
+                discard(old);
+                break;
+            }
+            old.referenced = false;
+            clockHand = (clockHand + 1) % clock.length;
+        }
+        clock[clockHand] = packet;
+        clockHand = (clockHand + 1) % clock.length;
+        Packet replaced = packets.put(packet.key, packet);
+        if (replaced != null)
+            discard(replaced);
+    }
+
+    /** Removes an answer, if it is still cached, and forgets it in the dependents of its names.
+     */
+    private void discard(Packet packet) {
+        packets.remove(packet.key, packet);
+        for (String hostName : packet.hostNames)
+            dependents.computeIfPresent(hostName, (name, set) -> {
+                set.remove(packet);
+                return set.isEmpty() ? null : set;
+            });
+    }
+
+    /** Removes the answers built from the nodes of a host name.
+     *
+     * @param hostName Host name of the changed node.
+     */
+    private void invalidate(String hostName) {
+        versions.incrementAndGet(stripe(hostName));
+        Set<Packet> removed = dependents.remove(hostName.toLowerCase(Locale.ROOT));
+        if (removed != null)
+            for (Packet packet : removed)
+                discard(packet);
+    }
+
+    /** Returns the version stripe of a host name, without regard to case.
+     */
+    private static int stripe(String hostName) {
+        int hash = 0;
+        for (int i = 0; i < hostName.length(); i++)
+            hash = 31 * hash + Character.toLowerCase(hostName.charAt(i));
+        hash ^= hash >>> 16;
+        return hash & (VERSION_STRIPES - 1);
+    }
+
+    /** The versions of the host names an answer is read from, each taken before the records of
+     * the name are read from the DNS cache. Used by a single thread.
+     */
+    public final class Stamp {
+
+        private int[] stripes = new int[4];
+        private long[] taken = new long[4];
+        private int size;
+
+        private Stamp() {
+        }
+
+        /** Adds a host name to the stamp; must be called before the records of the name are read.
+         *
+         * @param hostName Host name whose records are about to be read.
+         */
+        public void add(String hostName) {
+            if (size == stripes.length) {
+                stripes = Arrays.copyOf(stripes, size * 2);
+                taken = Arrays.copyOf(taken, size * 2);
+            }
+            stripes[size] = stripe(hostName);
+            taken[size] = versions.get(stripes[size]);
+            size++;
+        }
+
+        /** Returns true if none of the host names changed since they were added.
+         */
+        boolean isCurrent() {
+            for (int i = 0; i < size; i++)
+                if (versions.get(stripes[i]) != taken[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /** An encoded answer, with its key, the host names of its records and the TTLs it was built
+     * with.
+     */
+    private static final class Packet {
+        final Key key;
+        final String[] hostNames;
+        final byte[] bytes;
+        final int flags;
+        final int questionLength;
+        final int[] ttlOffsets;
+        final int[] ttls;
+        final long created;
+        final long expiration;
+        // set by hits, cleared by the clock hand
+        volatile boolean referenced;
+
+        Packet(Key key, String[] hostNames, byte[] bytes, int flags, int questionLength, int[] ttlOffsets, int[] ttls,
+               long created, long expiration) {
+            this.key = key;
+            this.hostNames = hostNames;
+            this.bytes = bytes;
+            this.flags = flags;
+            this.questionLength = questionLength;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.created = created;
+            this.expiration = expiration;
+        }
+    }
+
+    /** Key of an answer: host name, without regard to case, record type code and class.
+     */
+    private static final class Key {
+        final String hostName;
+        final int type;
+        final int qClass;
+
+        Key(String hostName, int type, int qClass) {
+            this.hostName = hostName.toLowerCase(Locale.ROOT);
+            this.type = type;
+            this.qClass = qClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return type == key.type && qClass == key.qClass && hostName.equals(key.hostName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * hostName.hashCode() + type) + qClass;
+        }
+    }
+}
@@ -6,16 +6,19 @@ public class QueryLog {
 
     public InetAddress qServer;
     public DNSQuery qQuery;
+    public int qID;
     public DNSResponse dnsResp;
 
     /** Constructor for a QueryLog.
      *
      * @param qQuery        DNSQuery to print.
+     * @param qID           Query ID the query was sent with.
      * @param qServer
      * @param dnsResponse   DNSResponse of the query.
      */
-    public QueryLog(DNSQuery qQuery, InetAddress qServer, DNSResponse dnsResponse) {
+    public QueryLog(DNSQuery qQuery, int qID, InetAddress qServer, DNSResponse dnsResponse) {
         this.qQuery = qQuery;
+        this.qID = qID;
         this.qServer = qServer;
         this.dnsResp = dnsResponse;
     }
@@ -23,50 +26,48 @@ public class QueryLog {
     /** Print the QueryLog.
      */
     public void printThisLog() {
-        System.out.println("\n");
+        System.out.print(formatThisLog());
+    }
+
+    /** Formats the QueryLog the same way it is printed, so it can be added to a trace buffer.
+     *
+     * @return  The formatted query and response.
+     */
+    public String formatThisLog() {
+        StringBuilder sb = new StringBuilder("\n\n");
 
-        System.out.println("Query ID     " + byte2int(qQuery.queryID) + " " + qQuery.hostName
-                + "  " + qQuery.type.toString() + " --> " + qServer.getHostAddress());
-        System.out.println("Response ID: " + byte2int(dnsResp.qID )+ " Authoritative = " + dnsResp.isAuth);
+        sb.append("Query ID     " + qID + " " + qQuery.hostName
+                + "  " + qQuery.type.toString() + " --> " + qServer.getHostAddress()).append('\n');
+        sb.append("Response ID: " + dnsResp.qID + " Authoritative = " + dnsResp.isAuth).append('\n');
 
-        System.out.println("  Answers (" + dnsResp.answers.size() + ")");
-        for (ResourceRecord a : dnsResp.answers) {
-            printResourceRecord(a, 1);
+        sb.append("  Answers (" + dnsResp.getAnswers().size() + ")").append('\n');
+        for (ResourceRecord a : dnsResp.getAnswers()) {
+            formatResourceRecord(sb, a, 1);
         }
 
-        System.out.println("  Nameservers (" + dnsResp.nameServers.size() + ")");
-        for (ResourceRecord n : dnsResp.nameServers) {
-            printResourceRecord(n, 2);
+        sb.append("  Nameservers (" + dnsResp.getNameServers().size() + ")").append('\n');
+        for (ResourceRecord n : dnsResp.getNameServers()) {
+            formatResourceRecord(sb, n, 2);
         }
 
-        System.out.println("  Additional Information (" + dnsResp.addInfo.size() + ")");
-        for (ResourceRecord ai : dnsResp.addInfo) {
-            printResourceRecord(ai, 0);
+        sb.append("  Additional Information (" + dnsResp.getAdditional().size() + ")").append('\n');
+        for (ResourceRecord ai : dnsResp.getAdditional()) {
+            formatResourceRecord(sb, ai, 0);
         }
+        return sb.toString();
     }
 
-    /** Verbose print the resource record details.
+    /** Verbose format the resource record details.
      *
+     * @param sb        Buffer the record is appended to.
      * @param record    Resource record to print.
      * @param rtype     Type of response.
      */
-    private static void printResourceRecord(ResourceRecord record, int rtype) {
-        System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
+    private static void formatResourceRecord(StringBuilder sb, ResourceRecord record, int rtype) {
+        sb.append(String.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
                 record.getTTL(),
                 record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                record.getTextResult());
-    }
-
-    /** Converts byte[] to integer.
-     *
-     * @param b     byte[] to convert.
-     * @return      integer value of b.
-     */
-    private int byte2int(byte[] b){
-        int value = 0;
-        for (int i = 0; i <=b.length-1; i++)
-            value = (value << 8) + (b[i] & 0xFF);
-        return value;
+                record.getTextResult()));
     }
 
     @Override
@@ -77,13 +78,13 @@ public class QueryLog {
         QueryLog ql = (QueryLog) o;
 
 
-        if (!dnsResp.qID.equals(ql.dnsResp.qID)) return false;
-        return (qQuery.queryID.equals(ql.qQuery.queryID));
+        if (dnsResp.qID != ql.dnsResp.qID) return false;
+        return qID == ql.qID;
     }
 
     @Override
     public int hashCode() {
-        int result = qQuery.queryID.hashCode();
+        int result = qID;
         result = 31 * result + dnsResp.hashCode();
         return result;
     }
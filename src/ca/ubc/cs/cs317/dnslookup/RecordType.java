@@ -1,10 +1,21 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.util.Arrays;
+
 /** Record types supported by the application. Includes a few common record types that are not
  * fully supported by this application.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OPT(41), OTHER(0);
+
+    private static final RecordType[] BY_CODE = new RecordType[256];
+
+    static {
+        Arrays.fill(BY_CODE, OTHER);
+        for (RecordType type : values())
+            if (type != OTHER)
+                BY_CODE[type.code] = type;
+    }
 
     private int code;
 
@@ -23,9 +34,8 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        for (RecordType type : values())
-            if (type.code == code)
-                return type;
+        if (code >= 0 && code < BY_CODE.length)
+            return BY_CODE[code];
         return OTHER;
     }
 }
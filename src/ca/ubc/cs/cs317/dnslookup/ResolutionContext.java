@@ -0,0 +1,142 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** A resolution context holds all the state used by a single client lookup: the query budget,
+ * the deadline of the lookup, the trace buffer and the server the iteration starts at. Each
+ * lookup gets its own context, so any number of lookups may run at the same time on different
+ * threads. A context itself is not thread-safe and should only be used by the thread performing
+ * the lookup.
+ */
+public class ResolutionContext {
+
+    private final InetAddress rootServer;
+    private final boolean verboseTracing;
+    private final DNSNode refreshNode;
+    private final long deadline;
+    private final int depth;
+    private final StringBuilder trace = new StringBuilder();
+
+    public List<QueryLog> queryLogs = new LinkedList<>();
+    public boolean authFlag = false;
+    public int numberSentQuery = 0;
+    public int queryID = 0;
+
+    /** Constructor for a ResolutionContext.
+     *
+     * @param rootServer     Server the iterative resolution starts at.
+     * @param verboseTracing Whether queries and responses are recorded in the trace buffer.
+     * @param timeout        Maximum duration of the lookup, in milliseconds.
+     */
+    public ResolutionContext(InetAddress rootServer, boolean verboseTracing, long timeout) {
+        this(rootServer, verboseTracing, null, timeout);
+    }
+
+    /** Constructor for a ResolutionContext that refreshes a cached node: the records of that
+     * node already in the cache are ignored, so it is resolved again.
+     *
+     * @param rootServer     Server the iterative resolution starts at.
+     * @param verboseTracing Whether queries and responses are recorded in the trace buffer.
+     * @param refreshNode    Node to be resolved again even if it is cached, or null.
+     * @param timeout        Maximum duration of the lookup, in milliseconds.
+     */
+    public ResolutionContext(InetAddress rootServer, boolean verboseTracing, DNSNode refreshNode, long timeout) {
+        this(rootServer, verboseTracing, refreshNode, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout), 0);
+    }
+
+    private ResolutionContext(InetAddress rootServer, boolean verboseTracing, DNSNode refreshNode, long deadline, int depth) {
+        this.rootServer = rootServer;
+        this.verboseTracing = verboseTracing;
+        this.refreshNode = refreshNode;
+        this.deadline = deadline;
+        this.depth = depth;
+    }
+
+    /** Returns a new context for a lookup started on behalf of this one on another thread, such
+     * as the lookup of the address of a nameserver. The new context has the same root server,
+     * tracing and deadline, but its own query count and trace buffer.
+     *
+     * @return A context one level deeper than this one.
+     */
+    public ResolutionContext child() {
+        return new ResolutionContext(rootServer, verboseTracing, null, deadline, depth + 1);
+    }
+
+    /** Adds the query count and the trace of a child context, once its lookup is over, to this
+     * context.
+     *
+     * @param child Context returned by child() whose lookup has finished.
+     */
+    public void merge(ResolutionContext child) {
+        numberSentQuery += child.numberSentQuery;
+        trace.append(child.trace);
+    }
+
+    /** Returns the number of child contexts between this context and the client lookup.
+     *
+     * @return 0 for the context of a client lookup, 1 for one of its children, and so on.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public InetAddress getRootServer() {
+        return rootServer;
+    }
+
+    public boolean isVerboseTracing() {
+        return verboseTracing;
+    }
+
+    /** Returns the time left before the deadline of this lookup.
+     *
+     * @return The time left in milliseconds, or 0 if the deadline has passed.
+     */
+    public long getRemainingTime() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /** Returns true if the deadline of this lookup has passed, in which case no more queries
+     * should be sent.
+     *
+     * @return true if the lookup is out of time.
+     */
+    public boolean isExpired() {
+        return deadline - System.nanoTime() <= 0;
+    }
+
+    /** Returns true if a node is being refreshed by this lookup, in which case its cached
+     * records should not be used.
+     *
+     * @param node DNS node to be checked.
+     * @return true if the node is resolved again regardless of the cache.
+     */
+    public boolean isRefreshing(DNSNode node) {
+        return refreshNode != null && refreshNode.equals(node);
+    }
+
+    /** Appends a line to the trace buffer of this lookup. Lines are only recorded if verbose
+     * tracing was on when the lookup started.
+     *
+     * @param line Text to be added to the trace.
+     */
+    public void trace(String line) {
+        if (verboseTracing)
+            trace.append(line).append('\n');
+    }
+
+    /** Prints the trace buffer of this lookup on the standard output and clears it. The whole
+     * trace is printed at once, so traces from concurrent lookups are not interleaved.
+     */
+    public void flushTrace() {
+        if (trace.length() == 0) return;
+        synchronized (System.out) {
+            System.out.print(trace);
+            System.out.flush();
+        }
+        trace.setLength(0);
+    }
+}
@@ -2,7 +2,6 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
@@ -12,13 +11,13 @@ import java.util.Date;
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.expirationTime = CoarseClock.currentTimeMillis() + (ttl * 1000);
         this.textResult = result;
         this.inetResult = null;
     }
@@ -28,6 +27,21 @@ public class ResourceRecord implements Serializable {
         this.inetResult = result;
     }
 
+    /** Constructor for a record with an absolute expiration time, used to rebuild records from
+     * the compact storage of the cache.
+     *
+     * @param node           The node (host name and record type) of the record.
+     * @param expirationTime Time at which the record expires, in milliseconds since the epoch.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null.
+     */
+    ResourceRecord(DNSNode node, long expirationTime, String textResult, InetAddress inetResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +62,7 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - CoarseClock.currentTimeMillis() + 999) / 1000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +72,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > CoarseClock.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,7 +84,15 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** The time at which this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     public String getTextResult() {
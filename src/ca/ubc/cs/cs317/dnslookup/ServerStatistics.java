@@ -0,0 +1,338 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A table of statistics about each upstream server, keyed by address: the smoothed round-trip
+ * time and its variance (as in RFC 6298), the most recent round-trip times, and the number of
+ * consecutive timeouts. A server that keeps timing out is backed off for an exponentially
+ * growing time. The table is used to rank equivalent servers (such as the nameservers of a zone)
+ * before a query is sent, to decide when to hedge a query, and to decide how long to wait for a
+ * server before the query is sent again (its retransmission timeout). Safe to use from any
+ * number of threads.
+ *
+ * As in BIND, the ranking score of a server that is ranked behind another one decays a little
+ * every time, so slower servers are tried again once in a while and their statistics do not
+ * become stale. The score starts from the smoothed round-trip time at each measurement; the
+ * decay never changes the smoothed round-trip time itself, which the retransmission timeout is
+ * computed from.
+ *
+ * The table also remembers which servers mishandle EDNS0: a server that answers a query with an
+ * OPT record with an error and no OPT record is queried without EDNS0 for a while, after which
+ * EDNS0 is tried again. Timeouts alone are not taken as a sign of it, since they are far more
+ * often caused by loss or load than by the OPT record.
+ *
+ * The table holds a bounded number of servers. When it is full, the servers used least recently
+ * are dropped to make room, so that servers met once do not keep the table from learning about
+ * new ones.
+ */
+public class ServerStatistics {
+
+    private static final int SAMPLES = 32;
+    private static final int MAX_TRACKED_SERVERS = 10000;
+    private static final int EVICTION_FRACTION = 8;
+    private static final double DECAY = 0.98;
+    private static final long BACKOFF_BASE = 1000;
+    private static final long BACKOFF_MAX = 120000;
+    private static final long CLOCK_GRANULARITY = 10;
+    private static final int MAX_RTO_DOUBLINGS = 6;
+    private static final long EDNS_RETRY_INTERVAL = 3600000;
+
+    private final ConcurrentHashMap<InetAddress, Server> servers = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final int maxServers;
+    private final long defaultLatency;
+    private final long initialRto;
+    private final long minRto;
+    private final long maxRto;
+
+    /** Constructor for a ServerStatistics table.
+     *
+     * @param defaultLatency Latency assumed for a server with no measurement, in milliseconds.
+     * @param initialRto     Retransmission timeout of a server with no measurement, in milliseconds.
+     * @param minRto         Lower bound of the retransmission timeout, in milliseconds.
+     * @param maxRto         Upper bound of the retransmission timeout, in milliseconds.
+     */
+    public ServerStatistics(long defaultLatency, long initialRto, long minRto, long maxRto) {
+        this(defaultLatency, initialRto, minRto, maxRto, MAX_TRACKED_SERVERS);
+    }
+
+    /** Constructor for a ServerStatistics table holding a given number of servers at most.
+     *
+     * @param defaultLatency Latency assumed for a server with no measurement, in milliseconds.
+     * @param initialRto     Retransmission timeout of a server with no measurement, in milliseconds.
+     * @param minRto         Lower bound of the retransmission timeout, in milliseconds.
+     * @param maxRto         Upper bound of the retransmission timeout, in milliseconds.
+     * @param maxServers     Maximum number of servers kept in the table.
+     */
+    public ServerStatistics(long defaultLatency, long initialRto, long minRto, long maxRto, int maxServers) {
+        this.maxServers = Math.max(1, maxServers);
+        this.defaultLatency = defaultLatency;
+        this.initialRto = initialRto;
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+    }
+
+    /** Records a round-trip time measured for a server. The server is no longer backed off.
+     *
+     * @param server Address of the server.
+     * @param rtt    Time between sending a query and receiving its response, in milliseconds.
+     */
+    public void record(InetAddress server, long rtt) {
+        get(server).record(rtt);
+    }
+
+    /** Records that a query sent to a server was not answered in time. The server is backed off
+     * for a time that doubles with each consecutive timeout.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        get(server).recordTimeout(CoarseClock.currentTimeMillis());
+    }
+
+    /** Records that a server answered a query with an OPT record, so it supports EDNS0.
+     *
+     * @param server Address of the server.
+     */
+    public void recordEdnsSupport(InetAddress server) {
+        get(server).recordEdnsSupport();
+    }
+
+    /** Records that a server mishandled a query with an OPT record. The server is queried
+     * without EDNS0 for a while.
+     *
+     * @param server Address of the server.
+     */
+    public void recordEdnsFailure(InetAddress server) {
+        get(server).disableEdns(CoarseClock.currentTimeMillis());
+    }
+
+    /** Checks if queries to a server should carry an OPT record.
+     *
+     * @param server Address of the server.
+     * @return false if the server recently mishandled EDNS0, true otherwise.
+     */
+    public boolean isEdnsEnabled(InetAddress server) {
+        Server stats = servers.get(server);
+        return stats == null || stats.noEdnsUntil <= CoarseClock.currentTimeMillis();
+    }
+
+    /** Returns a percentile of the recent round-trip times of a server, or the default latency
+     * if no round-trip time was measured for it.
+     *
+     * @param server     Address of the server.
+     * @param percentile Percentile to be estimated, between 0 and 1 (such as 0.9).
+     * @return The estimated round-trip time, in milliseconds.
+     */
+    public long getPercentile(InetAddress server, double percentile) {
+        Server stats = servers.get(server);
+        long value = stats == null ? -1 : stats.percentile(percentile);
+        return value < 0 ? defaultLatency : value;
+    }
+
+    /** Returns the smoothed round-trip time of a server, or the default latency if no round-trip
+     * time was measured for it.
+     *
+     * @param server Address of the server.
+     * @return The smoothed round-trip time, in milliseconds.
+     */
+    public long getSmoothedRtt(InetAddress server) {
+        Server stats = servers.get(server);
+        return stats == null || !stats.measured ? defaultLatency : Math.round(stats.srtt);
+    }
+
+    /** Returns the retransmission timeout of a server, that is how long to wait for its response
+     * before the query is considered lost. As in RFC 6298, it is the smoothed round-trip time plus
+     * four times its variance (at least the clock granularity), or the initial timeout for a server
+     * never measured. The timeout doubles with each consecutive timeout of the server, and is kept
+     * backed off until a new round-trip time is measured (Karn's algorithm). It is always within
+     * the bounds given to the constructor.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout, in milliseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server) {
+        Server stats = servers.get(server);
+        long rto = stats == null ? initialRto : stats.rto(initialRto);
+        int doublings = stats == null ? 0 : Math.min(stats.timeouts, MAX_RTO_DOUBLINGS);
+        return Math.max(minRto, Math.min(maxRto, rto << doublings));
+    }
+
+    /** Returns the number of consecutive timeouts of a server.
+     *
+     * @param server Address of the server.
+     * @return Number of queries not answered in time since the last response from the server.
+     */
+    public int getTimeouts(InetAddress server) {
+        Server stats = servers.get(server);
+        return stats == null ? 0 : stats.timeouts;
+    }
+
+    /** Returns a copy of a list of equivalent servers, best first: servers that are not backed
+     * off come before servers that are, and each group is sorted by smoothed round-trip time.
+     * Servers never measured are assumed to have the default latency, and are shuffled among
+     * themselves so the load is spread. The ranking score of every server but the first decays
+     * a little. The scores are read once before sorting, since other lookups may change them
+     * while the servers are sorted.
+     *
+     * @param candidates Addresses of the equivalent servers.
+     * @return The servers, in the order they should be tried.
+     */
+    public List<InetAddress> rank(List<InetAddress> candidates) {
+        List<InetAddress> ranked = new ArrayList<>(candidates);
+        if (ranked.size() < 2)
+            return ranked;
+        long now = CoarseClock.currentTimeMillis();
+        Collections.shuffle(ranked);
+        Integer[] order = new Integer[ranked.size()];
+        double[] scores = new double[ranked.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            scores[i] = score(ranked.get(i), now);
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> scores[i]));
+        List<InetAddress> sorted = new ArrayList<>(order.length);
+        for (int i : order)
+            sorted.add(ranked.get(i));
+        for (int i = 1; i < sorted.size(); i++) {
+            Server stats = servers.get(sorted.get(i));
+            if (stats != null)
+                stats.decay();
+        }
+        return sorted;
+    }
+
+    /** Returns the ranking score of a server: its decayed smoothed round-trip time, increased
+     * beyond any possible round-trip time while the server is backed off.
+     */
+    private double score(InetAddress server, long now) {
+        Server stats = servers.get(server);
+        if (stats == null)
+            return defaultLatency;
+        return stats.score(defaultLatency, now);
+    }
+
+    /** Returns the number of servers in the table.
+     *
+     * @return Number of servers statistics are kept for.
+     */
+    public int size() {
+        return servers.size();
+    }
+
+    /** Returns the statistics of a server, adding the server to the table if needed, and marks
+     * them as used.
+     */
+    private Server get(InetAddress server) {
+        Server stats = servers.get(server);
+        if (stats == null) {
+            if (servers.size() >= maxServers)
+                evictLeastRecentlyUsed();
+            stats = servers.computeIfAbsent(server, s -> new Server());
+        }
+        stats.lastUsed = clock.incrementAndGet();
+        return stats;
+    }
+
+    /** Drops the servers used least recently, an eighth of the table at once so that the scan
+     * is not repeated for every new server.
+     */
+    private synchronized void evictLeastRecentlyUsed() {
+        if (servers.size() < maxServers)
+            return;
+        long[] uses = new long[servers.size()];
+        int count = 0;
+        for (Server stats : servers.values())
+            if (count < uses.length)
+                uses[count++] = stats.lastUsed;
+        if (count == 0)
+            return;
+        Arrays.sort(uses, 0, count);
+        long cutoff = uses[Math.min(count - 1, count / EVICTION_FRACTION)];
+        servers.values().removeIf(stats -> stats.lastUsed <= cutoff);
+    }
+
+    /** The statistics of one server.
+     */
+    private static final class Server {
+
+        private final long[] samples = new long[SAMPLES];
+        private int count;
+        private int next;
+        private volatile boolean measured;
+        private volatile double srtt;
+        private volatile double rttvar;
+        // the smoothed round-trip time as of the last measurement, decayed at each ranking
+        private volatile double rankRtt;
+        private volatile int timeouts;
+        private volatile long backoffUntil;
+        private volatile long noEdnsUntil;
+        private volatile long lastUsed;
+
+        synchronized void record(long rtt) {
+            samples[next] = rtt;
+            next = (next + 1) % SAMPLES;
+            if (count < SAMPLES)
+                count++;
+            if (!measured) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+                measured = true;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            rankRtt = srtt;
+            timeouts = 0;
+            backoffUntil = 0;
+        }
+
+        synchronized void recordTimeout(long now) {
+            timeouts++;
+            long backoff = BACKOFF_BASE << Math.min(timeouts - 1, 20);
+            backoffUntil = now + Math.min(BACKOFF_MAX, backoff);
+        }
+
+        void recordEdnsSupport() {
+            noEdnsUntil = 0;
+        }
+
+        void disableEdns(long now) {
+            noEdnsUntil = now + EDNS_RETRY_INTERVAL;
+        }
+
+        synchronized void decay() {
+            if (measured)
+                rankRtt *= DECAY;
+        }
+
+        synchronized long rto(long initialRto) {
+            if (!measured)
+                return initialRto;
+            return Math.round(srtt + Math.max(CLOCK_GRANULARITY, 4 * rttvar));
+        }
+
+        double score(long defaultLatency, long now) {
+            double score = measured ? rankRtt : defaultLatency;
+            return backoffUntil > now ? score + BACKOFF_MAX : score;
+        }
+
+        /** Returns a percentile of the recent round-trip times, or -1 if there is none yet.
+         */
+        synchronized long percentile(double percentile) {
+            if (count == 0)
+                return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
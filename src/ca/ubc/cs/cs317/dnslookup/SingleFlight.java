@@ -0,0 +1,94 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/** A table of calls in flight, keyed by what they compute, so that concurrent callers asking
+ * for the same key share a single call instead of each starting their own: the first caller
+ * starts the call, and the callers that arrive while it is in flight wait for its outcome. A
+ * call is removed from the table as soon as it completes, so a caller that arrives later starts
+ * a new one. Safe to use from any number of threads.
+ *
+ * @param <K> Type of the keys.
+ * @param <V> Type of the outcome of a call.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /** Returns the call in flight for a key, or starts one if there is none.
+     *
+     * @param key     Key of the call.
+     * @param starter Starts the call and returns its outcome; only invoked if no call is in
+     *                flight for the key.
+     * @return A future completed with the outcome of the call.
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> starter) {
+        CompletableFuture<V> call = calls.get(key);
+        if (call != null)
+            return call;
+        CompletableFuture<V> created = new CompletableFuture<>();
+        call = calls.putIfAbsent(key, created);
+        if (call != null)
+            return call;
+        try {
+            starter.get().whenComplete((value, error) -> complete(key, created, value, error));
+        } catch (RuntimeException e) {
+            complete(key, created, null, e);
+        }
+        return created;
+    }
+
+    /** Runs a call on the current thread, or waits for the call in flight for the same key if
+     * there is one.
+     *
+     * @param key     Key of the call.
+     * @param task    The call; only run if no call is in flight for the key.
+     * @param timeout Maximum time to wait for a call started by another thread, in milliseconds.
+     * @return The outcome of the call.
+     * @throws ExecutionException   If the call threw an exception, which is the cause.
+     * @throws TimeoutException     If the call started by another thread did not complete in time.
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public V call(K key, Callable<V> task, long timeout) throws ExecutionException, TimeoutException, InterruptedException {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> call = calls.putIfAbsent(key, created);
+        if (call != null)
+            return call.get(timeout, TimeUnit.MILLISECONDS);
+        V value = null;
+        Throwable error = null;
+        try {
+            value = task.call();
+            return value;
+        } catch (Exception e) {
+            error = e;
+            throw new ExecutionException(e);
+        } catch (Error e) {
+            error = e;
+            throw e;
+        } finally {
+            complete(key, created, value, error);
+        }
+    }
+
+    /** Returns the number of calls in flight.
+     *
+     * @return The number of keys with a call in flight.
+     */
+    public int size() {
+        return calls.size();
+    }
+
+    private void complete(K key, CompletableFuture<V> call, V value, Throwable error) {
+        calls.remove(key, call);
+        if (error != null)
+            call.completeExceptionally(error);
+        else
+            call.complete(value);
+    }
+}
@@ -0,0 +1,355 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** A TCP transport for DNS queries (RFC 7766), used when a UDP response is truncated. Each
+ * message is preceded by its length in 2 bytes. One persistent connection is kept to each
+ * server and reused by every query to that server: queries are pipelined on the connection
+ * without waiting for the previous responses, and responses are matched to their queries by ID
+ * and question, in whatever order they arrive. A connection with no query in flight is closed
+ * after an idle timeout (dnslookup.tcp.idleTimeout, in milliseconds). At most
+ * dnslookup.tcp.maxInFlight queries are in flight on a connection at a time; further queries to
+ * the same server wait for one of them to complete.
+ *
+ * All connections are served by a single selector thread. The transport is thread-safe: any
+ * number of lookups may send queries at the same time.
+ */
+public class TCPTransport implements Closeable {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int QUERY_ID_BOUND = 65536;
+    private static final long IDLE_TIMEOUT = Long.getLong("dnslookup.tcp.idleTimeout", 10000);
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("dnslookup.tcp.maxInFlight", 1024);
+
+    private final Selector selector;
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+    private final Map<InetAddress, Connection> connections = new HashMap<>();
+    private final int maxInFlight;
+    private volatile boolean open = true;
+
+    /** Constructor for a TCPTransport. Starts the selector thread; connections are opened when
+     * the first query to each server is sent.
+     *
+     * @throws IOException if the selector could not be opened.
+     */
+    public TCPTransport() throws IOException {
+        this(MAX_IN_FLIGHT);
+    }
+
+    /** Constructor for a TCPTransport with a given limit of queries in flight per connection.
+     * The limit is kept well below the number of query IDs, so a free ID is found quickly.
+     *
+     * @param maxInFlight Maximum number of queries in flight on one connection.
+     * @throws IOException if the selector could not be opened.
+     */
+    public TCPTransport(int maxInFlight) throws IOException {
+        this.maxInFlight = Math.max(1, Math.min(maxInFlight, QUERY_ID_BOUND / 2));
+        selector = Selector.open();
+        Thread thread = new Thread(this::run, "dns-tcp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Sends a query to a server without blocking, over the connection to that server, which is
+     * opened if needed. A query ID not used by any other query in flight on the connection is
+     * assigned to the query. Cancelling the returned future forgets the query, so its response
+     * is dropped.
+     *
+     * @param query     Query to be sent. Its query ID is overwritten by the transport.
+     * @param server    Address of the server the query is sent to.
+     * @return A future completed with the response to the query.
+     */
+    public CompletableFuture<DNSResponse> send(DNSQuery query, InetAddress server) {
+        CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        if (!open) {
+            future.completeExceptionally(new IOException("Transport is closed."));
+            return future;
+        }
+        requests.add(new Request(query, server, future));
+        selector.wakeup();
+        return future;
+    }
+
+    /** Closes all connections and stops the selector thread. Queries in flight are completed
+     * exceptionally.
+     */
+    @Override
+    public void close() {
+        open = false;
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (open) {
+                selector.select(IDLE_CHECK_INTERVAL);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable())
+                            connection.finishConnect();
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.close(e);
+                    } catch (RuntimeException e) {
+                        // for example a key cancelled under us: only this connection is dropped
+                        connection.close(new IOException("Connection to " + connection.server.getHostAddress() + " failed.", e));
+                    }
+                }
+                startRequests();
+                closeIdle();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // selector closed, selector thread ends
+        } finally {
+            IOException closed = new IOException("Transport is closed.");
+            for (Connection connection : new ArrayList<>(connections.values()))
+                connection.close(closed);
+            Request request;
+            while ((request = requests.poll()) != null)
+                request.future.completeExceptionally(closed);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore, shutting down
+            }
+        }
+    }
+
+    /** Queues the queries sent since the last iteration on the connections to their servers,
+     * and starts the queries waiting for a connection that has room for them again.
+     */
+    private void startRequests() {
+        Request request;
+        while ((request = requests.poll()) != null) {
+            if (request.future.isDone())
+                continue;
+            Connection connection = connections.get(request.server);
+            try {
+                if (connection == null)
+                    connection = new Connection(request.server);
+                connection.submit(request);
+            } catch (IOException | RuntimeException e) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        for (Connection connection : connections.values())
+            connection.startWaiting();
+    }
+
+    /** Closes the connections that have had no query in flight for longer than the idle timeout.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<>(connections.values()))
+            if (connection.isIdle(now))
+                connection.close(null);
+    }
+
+    /** A connection to one server, with its queries in flight, the queries waiting for room
+     * among them and the messages waiting to be written. Only used by the selector thread,
+     * except for the table of queries in flight, which is also updated when a query is
+     * cancelled.
+     */
+    private class Connection {
+
+        private final InetAddress server;
+        private final SocketChannel channel;
+        private final SelectionKey selectionKey;
+        private final Map<Integer, Request> inFlight = new ConcurrentHashMap<>();
+        private final Queue<Request> waiting = new ArrayDeque<>();
+        private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        private ByteBuffer messageBuffer;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(InetAddress server) throws IOException {
+            this.server = server;
+            channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress(server, DEFAULT_DNS_PORT));
+                selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            connections.put(server, this);
+        }
+
+        /** Starts a query if the connection has room for it, or queues it until a query in
+         * flight completes.
+         */
+        void submit(Request request) {
+            if (waiting.isEmpty() && inFlight.size() < maxInFlight)
+                enqueue(request);
+            else
+                waiting.add(request);
+        }
+
+        /** Starts the waiting queries the connection has room for.
+         */
+        void startWaiting() {
+            Request request;
+            while (inFlight.size() < maxInFlight && (request = waiting.poll()) != null) {
+                if (request.future.isDone())
+                    continue;
+                try {
+                    enqueue(request);
+                } catch (RuntimeException e) {
+                    request.future.completeExceptionally(e);
+                }
+            }
+        }
+
+        /** Assigns an ID to a query, and queues the query to be written. Only the selector
+         * thread adds queries in flight, so an ID found free stays free until it is used.
+         */
+        private void enqueue(Request request) {
+            int id;
+            do {
+                id = ThreadLocalRandom.current().nextInt(QUERY_ID_BOUND);
+            } while (inFlight.containsKey(id));
+
+            ByteBuffer message = ByteBuffer.allocate(2 + request.query.getLength());
+            message.putShort((short) request.query.getLength());
+            request.query.writeTo(message, id);
+            message.flip();
+            request.query.setQueryID(id);
+
+            final int registered = id;
+            inFlight.put(id, request);
+            request.future.whenComplete((response, error) -> {
+                // a query given up by its caller makes room for a waiting one
+                if (inFlight.remove(registered, request))
+                    selector.wakeup();
+            });
+            writes.add(message);
+            lastActive = System.currentTimeMillis();
+            if (channel.isConnected())
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void finishConnect() throws IOException {
+            channel.finishConnect();
+            selectionKey.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /** Writes the queued messages until the socket cannot take more.
+         */
+        void write() throws IOException {
+            ByteBuffer message;
+            while ((message = writes.peek()) != null) {
+                channel.write(message);
+                if (message.hasRemaining())
+                    return;
+                writes.poll();
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        /** Reads the available bytes, completing the query of each full response.
+         */
+        void read() throws IOException {
+            while (true) {
+                ByteBuffer target = messageBuffer != null ? messageBuffer : lengthBuffer;
+                int read = channel.read(target);
+                if (read < 0)
+                    throw new IOException("Connection closed by " + server.getHostAddress());
+                if (target.hasRemaining())
+                    return;
+                lastActive = System.currentTimeMillis();
+                if (messageBuffer == null) {
+                    lengthBuffer.flip();
+                    messageBuffer = ByteBuffer.allocate(lengthBuffer.getShort() & 0xFFFF);
+                    lengthBuffer.clear();
+                } else {
+                    messageBuffer.flip();
+                    dispatch(messageBuffer);
+                    messageBuffer = null;
+                }
+            }
+        }
+
+        private void dispatch(ByteBuffer message) {
+            if (message.remaining() < 12)
+                return;
+            int queryID = message.getShort(0) & 0xFFFF;
+            Request request = inFlight.get(queryID);
+            if (request == null || !DNSResponse.matchesQuestion(message, queryID,
+                    request.query.hostName, request.query.type.getCode()))
+                return;
+            DNSResponse response;
+            try {
+                response = new DNSResponse(message.array());
+            } catch (RuntimeException e) {
+                return; // malformed message, drop it
+            }
+            if (inFlight.remove(queryID, request))
+                request.future.complete(response);
+        }
+
+        boolean isIdle(long now) {
+            return inFlight.isEmpty() && waiting.isEmpty() && writes.isEmpty() && now - lastActive > IDLE_TIMEOUT;
+        }
+
+        /** Closes the connection, and fails its queries in flight.
+         *
+         * @param error Cause of the failure, or null if the connection was idle.
+         */
+        void close(IOException error) {
+            connections.remove(server, this);
+            selectionKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore, the connection is dropped anyway
+            }
+            IOException cause = error != null ? error : new IOException("Connection closed.");
+            for (Request request : inFlight.values())
+                request.future.completeExceptionally(cause);
+            Request request;
+            while ((request = waiting.poll()) != null)
+                request.future.completeExceptionally(cause);
+        }
+    }
+
+    /** A query to be sent, with the future completed with its response.
+     */
+    private static class Request {
+        final DNSQuery query;
+        final InetAddress server;
+        final CompletableFuture<DNSResponse> future;
+
+        Request(DNSQuery query, InetAddress server, CompletableFuture<DNSResponse> future) {
+            this.query = query;
+            this.server = server;
+            this.future = future;
+        }
+    }
+}
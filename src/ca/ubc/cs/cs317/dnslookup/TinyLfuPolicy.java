@@ -0,0 +1,400 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/** A W-TinyLFU admission and eviction policy for a bounded cache. The policy does not hold any
+ * cached data, only the keys and their weights: the cache tells the policy about every read,
+ * write and removal, and the policy tells the cache which keys to evict.
+ *
+ * New keys enter a small LRU window. Keys leaving the window become candidates for the main
+ * space, a segmented LRU made of a probation and a protected segment. When the cache is over
+ * its limits, the candidate competes with the least recently used key of the probation segment,
+ * and the one seen less often, according to a count-min sketch of recent accesses, is evicted.
+ * This keeps frequently used keys (such as TLD nameservers) in the cache when a scan of keys
+ * used only once goes through it.
+ *
+ * Reads are recorded in a lossy, striped buffer and replayed under the policy lock in batches,
+ * so concurrent readers do not contend on the lock. Writes and removals take the lock, and read
+ * the weight of the key from the cache while holding it, so the keys of the policy follow those
+ * of the cache even when threads race to change the same key.
+ *
+ * @param <K> Type of the keys.
+ */
+public class TinyLfuPolicy<K> {
+
+    private static final int READ_BUFFER_STRIPES = 16;
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int COUNTER_PADDING = 16;
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Consumer<K> evictionListener;
+    private final LinkedHashMap<K, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final AtomicReferenceArray<K> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_STRIPES * READ_BUFFER_SIZE);
+    // per stripe, on its own cache line: the number of reads, then a flag set after each read
+    private final AtomicLongArray readCounts = new AtomicLongArray(READ_BUFFER_STRIPES * COUNTER_PADDING);
+
+    private long maximumEntries;
+    private long maximumWeight;
+    private long windowMaximum;
+    private long protectedMaximum;
+    private long weightedSize;
+
+    private long evictionCount;
+    private long evictionWeight;
+
+    /** Constructor for a TinyLfuPolicy.
+     *
+     * @param maximumEntries    Maximum number of keys.
+     * @param maximumWeight     Maximum total weight of the keys.
+     * @param evictionListener  Called, with the policy lock held, for each evicted key.
+     */
+    public TinyLfuPolicy(long maximumEntries, long maximumWeight, Consumer<K> evictionListener) {
+        this.evictionListener = evictionListener;
+        setMaximum(maximumEntries, maximumWeight);
+    }
+
+    /** Changes the limits of the policy, evicting keys if needed.
+     *
+     * @param maximumEntries    Maximum number of keys.
+     * @param maximumWeight     Maximum total weight of the keys.
+     */
+    public void setMaximum(long maximumEntries, long maximumWeight) {
+        lock.lock();
+        try {
+            this.maximumEntries = Math.max(1, maximumEntries);
+            this.maximumWeight = Math.max(1, maximumWeight);
+            windowMaximum = Math.max(1, (long) (this.maximumEntries * WINDOW_FRACTION));
+            protectedMaximum = (long) ((this.maximumEntries - windowMaximum) * PROTECTED_FRACTION);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a read of a key. The read is buffered, and may be dropped if the buffer is full.
+     *
+     * @param key   Key that was read.
+     */
+    public void recordRead(K key) {
+        int stripe = (int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1);
+        long count = readCounts.getAndIncrement(stripe * COUNTER_PADDING);
+        int slot = (int) (count & (READ_BUFFER_SIZE - 1));
+        readBuffer.lazySet(stripe * READ_BUFFER_SIZE + slot, key);
+        // ordered after the slot: a drain that clears the flag before the slot is visible
+        // leaves the flag set, so the next drain sees the slot
+        readCounts.lazySet(stripe * COUNTER_PADDING + 1, 1);
+        if (slot == READ_BUFFER_SIZE - 1 && lock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Records that a key was added or written to, evicting keys if the policy is now over its
+     * limits. The weight of the key is read with the policy lock held, after the cache changed
+     * it: when several threads change the same key, the one recording its change last reads the
+     * final state, so the policy always ends up holding exactly the keys the cache holds.
+     *
+     * @param key       Key that was written.
+     * @param weigher   Returns the current weight of a key, or a negative value if the cache no
+     *                  longer holds it (the key is then removed from the policy).
+     */
+    public void recordWrite(K key, ToLongFunction<? super K> weigher) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            long weight = weigher.applyAsLong(key);
+            if (weight < 0) {
+                remove(key);
+                return;
+            }
+            sketch.increment(key);
+            put(key, weight);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a key changed without being used, for example when some of its records
+     * expired, or that it was removed from the cache for another reason than eviction. The
+     * weight is read with the policy lock held, as for recordWrite.
+     *
+     * @param key       Key that changed.
+     * @param weigher   Returns the current weight of a key, or a negative value if the cache no
+     *                  longer holds it (the key is then removed from the policy).
+     */
+    public void recordUpdate(K key, ToLongFunction<? super K> weigher) {
+        lock.lock();
+        try {
+            long weight = weigher.applyAsLong(key);
+            if (weight < 0) {
+                remove(key);
+                return;
+            }
+            put(key, weight);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Forgets every key, without notifying the eviction listener.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < readBuffer.length(); i++)
+                readBuffer.lazySet(i, null);
+            window.clear();
+            probation.clear();
+            protectedSegment.clear();
+            weightedSize = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEntryCount() {
+        lock.lock();
+        try {
+            return size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWeightedSize() {
+        lock.lock();
+        try {
+            return weightedSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictionCount() {
+        lock.lock();
+        try {
+            return evictionCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictionWeight() {
+        lock.lock();
+        try {
+            return evictionWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    /** Sets the weight of a key, adding the key to the window if the policy does not hold it.
+     * Must be called with the lock held.
+     */
+    private void put(K key, long weight) {
+        Long old = window.get(key);
+        LinkedHashMap<K, Long> segment = window;
+        if (old == null) {
+            old = probation.get(key);
+            segment = probation;
+        }
+        if (old == null) {
+            old = protectedSegment.get(key);
+            segment = protectedSegment;
+        }
+        if (old != null) {
+            segment.put(key, weight);
+            weightedSize += weight - old;
+        } else {
+            window.put(key, weight);
+            weightedSize += weight;
+        }
+    }
+
+    /** Removes a key, if the policy holds it. Must be called with the lock held.
+     */
+    private void remove(K key) {
+        Long weight = window.remove(key);
+        if (weight == null)
+            weight = probation.remove(key);
+        if (weight == null)
+            weight = protectedSegment.remove(key);
+        if (weight != null)
+            weightedSize -= weight;
+    }
+
+    /** Replays the buffered reads. Stripes whose flag was not set since they were last drained
+     * are skipped, so a write does not scan the whole buffer when there were no reads. Must be
+     * called with the lock held.
+     */
+    private void drainReadBuffer() {
+        for (int stripe = 0; stripe < READ_BUFFER_STRIPES; stripe++) {
+            int flag = stripe * COUNTER_PADDING + 1;
+            if (readCounts.get(flag) == 0)
+                continue;
+            readCounts.set(flag, 0);
+            for (int i = stripe * READ_BUFFER_SIZE; i < (stripe + 1) * READ_BUFFER_SIZE; i++) {
+                K key = readBuffer.get(i);
+                if (key != null && readBuffer.compareAndSet(i, key, null))
+                    onRead(key);
+            }
+        }
+    }
+
+    /** Updates the recency and frequency of a key that was read. Must be called with the lock
+     * held. A key read while in probation is promoted to the protected segment, and if the
+     * protected segment is full its least recently used key is demoted to probation.
+     */
+    private void onRead(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedSegment.get(key) != null)
+            return;
+        Long weight = probation.remove(key);
+        if (weight == null)
+            return;
+        protectedSegment.put(key, weight);
+        while (protectedSegment.size() > protectedMaximum) {
+            Map.Entry<K, Long> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /** Moves keys out of the window, then evicts keys until the policy is within its limits.
+     * Must be called with the lock held.
+     */
+    private void evict() {
+        K candidate = null;
+        while (window.size() > windowMaximum) {
+            Map.Entry<K, Long> entry = removeEldest(window);
+            probation.put(entry.getKey(), entry.getValue());
+            candidate = entry.getKey();
+        }
+
+        while (size() > maximumEntries || weightedSize > maximumWeight) {
+            LinkedHashMap<K, Long> segment = !probation.isEmpty() ? probation
+                    : !protectedSegment.isEmpty() ? protectedSegment : window;
+            Map.Entry<K, Long> victim = eldest(segment);
+            if (victim == null)
+                return;
+            K evicted = victim.getKey();
+            if (segment == probation && candidate != null && !candidate.equals(evicted)
+                    && probation.containsKey(candidate)
+                    && sketch.frequency(candidate) <= sketch.frequency(evicted)) {
+                evicted = candidate;
+                candidate = null;
+            }
+            Long weight = segment.remove(evicted);
+            weightedSize -= weight;
+            evictionCount++;
+            evictionWeight += weight;
+            evictionListener.accept(evicted);
+        }
+        sketch.ensureCapacity(size());
+    }
+
+    private static <K> Map.Entry<K, Long> eldest(LinkedHashMap<K, Long> segment) {
+        Iterator<Map.Entry<K, Long>> it = segment.entrySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    private static <K> Map.Entry<K, Long> removeEldest(LinkedHashMap<K, Long> segment) {
+        Iterator<Map.Entry<K, Long>> it = segment.entrySet().iterator();
+        Map.Entry<K, Long> entry = it.next();
+        Map.Entry<K, Long> copy = new AbstractMap.SimpleImmutableEntry<>(entry);
+        it.remove();
+        return copy;
+    }
+
+    /** A count-min sketch of 4-bit counters, used to estimate how often each key was seen
+     * recently. All counters are halved once the number of increments reaches ten times the
+     * number of counters per row, so the estimates follow recent popularity. Not thread-safe;
+     * only used with the policy lock held.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAXIMUM_TABLE_SIZE = 1 << 24;
+
+        private long[] table = new long[64];
+        private int additions;
+
+        /** Grows the table so that it has at least one counter word per key. Counts are lost
+         * when the table grows.
+         */
+        void ensureCapacity(long entries) {
+            if (entries <= table.length || table.length >= MAXIMUM_TABLE_SIZE)
+                return;
+            int length = Integer.highestOneBit((int) Math.min(entries, MAXIMUM_TABLE_SIZE) - 1) << 1;
+            table = new long[Math.min(length, MAXIMUM_TABLE_SIZE)];
+            additions = 0;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                int offset = counterOffset(hash, i);
+                if (((table[index] >>> offset) & 0xFL) != 0xFL) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= 10 * table.length) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long count = (table[indexOf(hash, i)] >>> counterOffset(hash, i)) & 0xFL;
+                frequency = Math.min(frequency, (int) count);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        private static int counterOffset(int hash, int i) {
+            return ((hash >>> (i * 8)) & 0xF) << 2;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
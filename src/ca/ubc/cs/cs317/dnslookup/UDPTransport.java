@@ -0,0 +1,319 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A UDP transport that multiplexes any number of outstanding DNS queries over a small, fixed
+ * set of non-blocking datagram channels. Each channel is served by its own selector thread.
+ * Queries are registered in a table of pending entries keyed by query ID and server, and each
+ * entry also records its question. A pending entry is completed when a reply with the same ID,
+ * from the same server and for the same question arrives on any channel. Replies that do not
+ * match a pending entry (late, duplicated or spoofed) are dropped without being copied out of
+ * the receive buffer. The receive buffers hold the UDP payload size advertised in queries with
+ * an EDNS0 OPT record; a reply longer than that was cut by the channel, so it is marked as
+ * truncated and asked again over TCP.
+ *
+ * The transport is thread-safe: any number of lookups may send queries at the same time.
+ */
+public class UDPTransport implements Closeable {
+
+    private static final int DEFAULT_DNS_PORT = 53;
+    private static final int QUERY_ID_BOUND = 65536;
+    private static final int MIN_PAYLOAD_SIZE = 512;
+    private static final int FLAG_TC = 0x02;   // in the third byte of the header
+    private static final int SEND_BUFFER_SIZE = 512;
+    private static final int MAX_POOLED_SEND_BUFFERS = 1024;
+
+    private final Endpoint[] endpoints;
+    private final int payloadSize;
+    private final int receiveSize;
+    private final ConcurrentHashMap<PendingKey, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextEndpoint = new AtomicInteger();
+    private final BufferPool sendBuffers = new BufferPool(SEND_BUFFER_SIZE, MAX_POOLED_SEND_BUFFERS);
+    private volatile boolean open = true;
+
+    /** Constructor for a UDPTransport. Opens the channels and starts one selector thread for
+     * each of them.
+     *
+     * @param channels    Number of datagram channels (and selector threads) to use.
+     * @param payloadSize UDP payload size to advertise with EDNS0, in bytes (at least 512), or 0
+     *                    to send queries without EDNS0, in which case replies hold 512 bytes.
+     * @throws IOException if a channel or selector could not be opened.
+     */
+    public UDPTransport(int channels, int payloadSize) throws IOException {
+        this.payloadSize = payloadSize <= 0 ? 0 : Math.max(MIN_PAYLOAD_SIZE, Math.min(65535, payloadSize));
+        receiveSize = Math.max(MIN_PAYLOAD_SIZE, this.payloadSize);
+        endpoints = new Endpoint[Math.max(1, channels)];
+        try {
+            for (int i = 0; i < endpoints.length; i++)
+                endpoints[i] = new Endpoint(i);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** Sends a query to a server without blocking. The query is given a query ID not used by
+     * any other pending query to the same server before it is encoded. The returned future is
+     * completed with the matching response; cancelling it (for example after a timeout) removes
+     * the pending entry, so a late reply is dropped.
+     *
+     * @param query     Query to be sent. Its query ID is overwritten by the transport.
+     * @param server    Address of the server the query is sent to.
+     * @return A future completed with the response to the query.
+     */
+    public CompletableFuture<DNSResponse> send(DNSQuery query, InetAddress server) {
+        CompletableFuture<DNSResponse> future = new CompletableFuture<>();
+        if (!open) {
+            future.completeExceptionally(new IOException("Transport is closed."));
+            return future;
+        }
+
+        Pending entry = new Pending(query.hostName, query.type.getCode(), future);
+        PendingKey key;
+        do {
+            key = new PendingKey(ThreadLocalRandom.current().nextInt(QUERY_ID_BOUND), server);
+        } while (pending.putIfAbsent(key, entry) != null);
+        final PendingKey registered = key;
+        future.whenComplete((response, error) -> pending.remove(registered, entry));
+
+        query.setQueryID(key.queryID);
+        ByteBuffer packet = sendBuffers.acquire();
+        query.writeTo(packet, key.queryID);
+        packet.flip();
+        Endpoint endpoint = endpoints[Math.floorMod(nextEndpoint.getAndIncrement(), endpoints.length)];
+        endpoint.enqueue(new Outbound(packet, new InetSocketAddress(server, DEFAULT_DNS_PORT), future));
+        return future;
+    }
+
+    /** Returns the largest reply that can be received, to be advertised in EDNS0 OPT records.
+     *
+     * @return The UDP payload size, in bytes, or 0 if queries are sent without EDNS0.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /** Returns the number of queries still waiting for a reply.
+     *
+     * @return Number of pending queries.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Closes all channels and stops the selector threads. Pending queries are completed
+     * exceptionally.
+     */
+    @Override
+    public void close() {
+        open = false;
+        for (Endpoint endpoint : endpoints)
+            if (endpoint != null)
+                endpoint.close();
+        IOException closed = new IOException("Transport is closed.");
+        for (Pending entry : pending.values())
+            entry.future.completeExceptionally(closed);
+    }
+
+    /** Matches a received packet against the pending table and completes the matching entry.
+     *
+     * @param packet    Received packet, positioned at its first byte.
+     * @param source    Address the packet was received from.
+     */
+    private void dispatch(ByteBuffer packet, SocketAddress source) {
+        if (packet.remaining() < 12 || !(source instanceof InetSocketAddress))
+            return;
+        int queryID = packet.getShort(packet.position()) & 0xFFFF;
+        PendingKey key = new PendingKey(queryID, ((InetSocketAddress) source).getAddress());
+        Pending entry = pending.get(key);
+        if (entry == null || !DNSResponse.matchesQuestion(packet, queryID, entry.hostName, entry.typeCode))
+            return;
+
+        boolean cut = packet.remaining() > receiveSize;
+        byte[] rawBytes = new byte[Math.min(packet.remaining(), receiveSize)];
+        packet.get(rawBytes);
+        if (cut)
+            rawBytes[2] |= FLAG_TC;
+        DNSResponse response;
+        try {
+            response = new DNSResponse(rawBytes);
+        } catch (RuntimeException e) {
+            return; // malformed packet, drop it
+        }
+        if (pending.remove(key, entry))
+            entry.future.complete(response);
+    }
+
+    /** A datagram channel with its selector thread and queue of packets waiting to be sent.
+     */
+    private class Endpoint implements Runnable {
+
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SelectionKey selectionKey;
+        private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+        // one byte more than the largest reply, so a longer reply is noticed
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(receiveSize + 1);
+
+        Endpoint(int index) throws IOException {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            selector = Selector.open();
+            selectionKey = channel.register(selector, SelectionKey.OP_READ);
+
+            Thread thread = new Thread(this, "dns-udp-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void enqueue(Outbound packet) {
+            outbound.add(packet);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable())
+                            receiveAll();
+                    }
+                    flushOutbound();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                // channel closed, selector thread ends
+            }
+        }
+
+        /** Sends queued packets until the queue is empty or the channel cannot accept more, in
+         * which case the selector is asked to report when the channel becomes writable.
+         */
+        private void flushOutbound() throws IOException {
+            Outbound packet;
+            while ((packet = outbound.peek()) != null) {
+                if (!packet.future.isDone()) {
+                    try {
+                        if (channel.send(packet.buffer, packet.target) == 0) {
+                            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    } catch (IOException e) {
+                        packet.future.completeExceptionally(e);
+                    }
+                }
+                outbound.poll();
+                sendBuffers.release(packet.buffer);
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        /** Reads every datagram currently available on the channel.
+         */
+        private void receiveAll() throws IOException {
+            SocketAddress source;
+            while (true) {
+                receiveBuffer.clear();
+                try {
+                    source = channel.receive(receiveBuffer);
+                } catch (IOException e) {
+                    if (!channel.isOpen()) throw e;
+                    continue; // e.g. ICMP port unreachable reported on the channel
+                }
+                if (source == null) return;
+                receiveBuffer.flip();
+                dispatch(receiveBuffer, source);
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore, shutting down
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore, shutting down
+            }
+        }
+    }
+
+    /** A packet waiting to be sent, together with the pending entry it belongs to.
+     */
+    private static class Outbound {
+        final ByteBuffer buffer;
+        final SocketAddress target;
+        final CompletableFuture<DNSResponse> future;
+
+        Outbound(ByteBuffer buffer, SocketAddress target, CompletableFuture<DNSResponse> future) {
+            this.buffer = buffer;
+            this.target = target;
+            this.future = future;
+        }
+    }
+
+    /** A pending query: the question it asked and the future completed with its response.
+     */
+    private static class Pending {
+        final String hostName;
+        final int typeCode;
+        final CompletableFuture<DNSResponse> future;
+
+        Pending(String hostName, int typeCode, CompletableFuture<DNSResponse> future) {
+            this.hostName = hostName;
+            this.typeCode = typeCode;
+            this.future = future;
+        }
+    }
+
+    /** Key of a pending query: query ID and server address.
+     */
+    private static class PendingKey {
+        final int queryID;
+        final InetAddress server;
+
+        PendingKey(int queryID, InetAddress server) {
+            this.queryID = queryID;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PendingKey key = (PendingKey) o;
+
+            if (queryID != key.queryID) return false;
+            return server.equals(key.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + queryID;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReusedCleared() {
+        BufferPool pool = new BufferPool(512, 1);
+        ByteBuffer first = pool.acquire();
+        first.putInt(42).flip();
+        pool.release(first);
+        ByteBuffer again = pool.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.position());
+        assertEquals(512, again.limit());
+    }
+
+    @Test
+    public void poolKeepsAtMostItsBound() {
+        BufferPool pool = new BufferPool(512, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        pool.release(first);
+        pool.release(second);
+        pool.release(ByteBuffer.allocateDirect(64));
+        assertSame(first, pool.acquire());
+        assertNotSame(second, pool.acquire());
+    }
+}
@@ -0,0 +1,101 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    @After
+    public void tearDown() {
+        cache.setMissHandler(null);
+        cache.flushCache();
+    }
+
+    private static ResourceRecord address(String hostName, long ttlMillis, String address) throws Exception {
+        return new ResourceRecord(new DNSNode(hostName, RecordType.A), CoarseClock.currentTimeMillis() + ttlMillis,
+                address, InetAddress.getByName(address));
+    }
+
+    private CacheSnapshot saveAndFlush(Path file) throws IOException {
+        CacheSnapshot snapshot = new CacheSnapshot(cache, file);
+        snapshot.save();
+        cache.flushCache();
+        return new CacheSnapshot(cache, file);
+    }
+
+    @Test
+    public void nodesAreRestoredWhenRead() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            cache.addResult(address("host" + i + ".snapshot.test", 60000, "10.0.0." + i));
+            cache.addResult(address("host" + i + ".snapshot.test", 60000, "10.0.1." + i));
+        }
+        cache.addResult(new ResourceRecord("snapshot.test", RecordType.NS, 3600, "ns.snapshot.test"));
+        cache.addResult(address("ns.snapshot.test", 60000, "10.0.2.1"));
+        Set<ResourceRecord> saved = new HashSet<>(cache.getCachedResults(new DNSNode("host7.snapshot.test", RecordType.A)));
+
+        CacheSnapshot snapshot = saveAndFlush(folder.getRoot().toPath().resolve("cache.snap"));
+        assertEquals(102, snapshot.load());
+        assertEquals(0, cache.getEntryCount());
+
+        assertEquals(saved, cache.getCachedResults(new DNSNode("HOST7.Snapshot.Test", RecordType.A)));
+        assertEquals(1, cache.getEntryCount());
+        assertTrue(cache.getCachedResults(new DNSNode("host7.snapshot.test", RecordType.AAAA)).isEmpty());
+        Delegation delegation = cache.findClosestDelegation("www.snapshot.test");
+        assertNotNull(delegation);
+        assertEquals("10.0.2.1", delegation.getServers().get(0).getHostAddress());
+
+        snapshot.restoreRemaining();
+        assertEquals(102, cache.getEntryCount());
+        assertEquals(2, cache.getCachedResults(new DNSNode("host99.snapshot.test", RecordType.A)).size());
+    }
+
+    @Test
+    public void expiredRecordsAreSkipped() throws Exception {
+        cache.addResult(address("short.snapshot.test", 1000, "10.0.0.1"));
+        cache.addResult(address("short.snapshot.test", 60000, "10.0.0.2"));
+        cache.addResult(address("gone.snapshot.test", 1000, "10.0.0.3"));
+        CacheSnapshot snapshot = saveAndFlush(folder.getRoot().toPath().resolve("cache.snap"));
+        Thread.sleep(1500);
+
+        snapshot.load();
+        Set<ResourceRecord> left = cache.getCachedResults(new DNSNode("short.snapshot.test", RecordType.A));
+        assertEquals(1, left.size());
+        assertEquals("10.0.0.2", left.iterator().next().getTextResult());
+        assertTrue(cache.getCachedResults(new DNSNode("gone.snapshot.test", RecordType.A)).isEmpty());
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() throws Exception {
+        cache.addResult(address("www.snapshot.test", 60000, "10.0.0.1"));
+        Path file = folder.getRoot().toPath().resolve("cache.snap");
+        CacheSnapshot snapshot = saveAndFlush(file);
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.setLength(raw.length() - 3);
+        }
+        try {
+            snapshot.load();
+            fail("truncated snapshot loaded");
+        } catch (IOException e) {
+            assertTrue(cache.getCachedResults(new DNSNode("www.snapshot.test", RecordType.A)).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DNSAnswerTest {
+
+    private static DNSResponse query(String hostName, RecordType type) {
+        return new DNSResponse(new DNSQuery(new DNSNode(hostName, type)).getQueryInBytes());
+    }
+
+    private static DNSResponse encode(DNSResponse query, int rcode, List<ResourceRecord> answers) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DNSAnswer.encode(out, query, rcode, answers);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return new DNSResponse(bytes);
+    }
+
+    @Test
+    public void questionIsEchoedAndOwnerNamesCompressed() throws Exception {
+        DNSResponse query = query("www.answer.test", RecordType.A);
+        ResourceRecord record = new ResourceRecord("www.answer.test", RecordType.A, 60, InetAddress.getByName("10.0.0.1"));
+        ByteBuffer out = ByteBuffer.allocate(512);
+        DNSAnswer.encode(out, query, DNSAnswer.RCODE_NOERROR, Collections.singletonList(record));
+        int questionEnd = 12 + "www.answer.test".length() + 2 + 4;
+        assertEquals((short) 0xC00C, out.getShort(questionEnd));
+        assertEquals(questionEnd + 2 + 10 + 4, out.position());
+
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        DNSResponse response = new DNSResponse(bytes);
+        assertEquals(query.qID, response.qID);
+        assertEquals("www.answer.test", response.qName);
+        assertEquals(record.getTextResult(), response.getAnswers().get(0).getTextResult());
+        assertFalse(response.isTruncated());
+    }
+
+    @Test
+    public void recordNamesKeepTheirCase() throws Exception {
+        DNSResponse query = query("alias.answer.test", RecordType.CNAME);
+        ResourceRecord alias = new ResourceRecord("Alias.Answer.Test", RecordType.CNAME, 60, "Target.Answer.Test");
+        ResourceRecord address = new ResourceRecord("Target.Answer.Test", RecordType.A, 60, InetAddress.getByName("10.0.0.1"));
+        DNSResponse response = encode(query, DNSAnswer.RCODE_NOERROR, Arrays.asList(alias, address));
+        assertEquals(2, response.getAnswers().size());
+        assertEquals("Target.Answer.Test", response.getAnswers().get(0).getTextResult());
+        assertEquals("Target.Answer.Test", response.getAnswers().get(1).getHostName());
+    }
+
+    @Test
+    public void oversizedAnswerIsTruncated() throws Exception {
+        DNSResponse query = query("pool.answer.test", RecordType.A);
+        List<ResourceRecord> answers = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            answers.add(new ResourceRecord("pool.answer.test", RecordType.A, 60, InetAddress.getByName("10.0.0." + i)));
+        DNSResponse response = encode(query, DNSAnswer.RCODE_NOERROR, answers);
+        assertTrue(response.isTruncated());
+        assertTrue(response.getAnswers().isEmpty());
+        assertEquals("pool.answer.test", response.qName);
+    }
+}
@@ -0,0 +1,323 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DNSCacheTest {
+
+    private static final int THREADS = 8;
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    @After
+    public void tearDown() {
+        cache.setRefreshHandler(null);
+        cache.flushCache();
+        cache.setMaximumSize(1000000, 256L << 20);
+    }
+
+    private static ResourceRecord address(String hostName, long ttl, String address) throws Exception {
+        return new ResourceRecord(hostName, RecordType.A, ttl, InetAddress.getByName(address));
+    }
+
+    @Test
+    public void nodesAreFoundWithoutRegardToCase() throws Exception {
+        cache.addResult(address("WWW.Cache.Test", 60, "10.0.0.1"));
+        Set<ResourceRecord> cached = cache.getCachedResults(new DNSNode("www.cache.test", RecordType.A));
+        assertEquals(1, cached.size());
+        assertEquals("10.0.0.1", cached.iterator().next().getTextResult());
+        assertTrue(cache.getCachedResults(new DNSNode("www.cache.test", RecordType.AAAA)).isEmpty());
+    }
+
+    @Test
+    public void laterExpirationReplacesARecord() throws Exception {
+        cache.addResult(address("www.cache.test", 60, "10.0.0.1"));
+        cache.addResult(address("www.cache.test", 600, "10.0.0.1"));
+        cache.addResult(address("www.cache.test", 30, "10.0.0.1"));
+        Set<ResourceRecord> cached = cache.getCachedResults(new DNSNode("www.cache.test", RecordType.A));
+        assertEquals(1, cached.size());
+        assertTrue(cached.iterator().next().getTTL() > 500);
+    }
+
+    @Test
+    public void expiredRecordsAreLeftOut() throws Exception {
+        cache.addResult(address("short.cache.test", 1, "10.0.0.1"));
+        cache.addResult(address("short.cache.test", 60, "10.0.0.2"));
+        Thread.sleep(1100);
+        Set<ResourceRecord> cached = cache.getCachedResults(new DNSNode("short.cache.test", RecordType.A));
+        assertEquals(1, cached.size());
+        assertEquals("10.0.0.2", cached.iterator().next().getTextResult());
+    }
+
+    @Test
+    public void dumpVisitsNodesInOrder() throws Exception {
+        cache.addResult(address("b.cache.test", 60, "10.0.0.2"));
+        cache.addResult(address("a.cache.test", 60, "10.0.0.1"));
+        cache.addResult(new ResourceRecord("a.cache.test", RecordType.NS, 60, "ns.cache.test"));
+        List<DNSNode> visited = new ArrayList<>();
+        cache.forEachNode((node, records) -> visited.add(node));
+        List<DNSNode> sorted = new ArrayList<>(visited);
+        sorted.sort(null);
+        assertEquals(3, visited.size());
+        assertEquals(sorted, visited);
+    }
+
+    /** Threads adding records to the same nodes while others read them lose no record, and
+     * readers never see a set being changed.
+     */
+    @Test
+    public void concurrentUpdatesKeepEveryRecord() throws Exception {
+        DNSNode node = new DNSNode("shared.cache.test", RecordType.A);
+        CountDownLatch start = new CountDownLatch(1);
+        Throwable[] failures = new Throwable[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < 200; i++) {
+                        cache.addResult(address("shared.cache.test", 60, "10." + thread + "." + (i >> 8) + "." + (i & 0xFF)));
+                        cache.addResult(address("host" + i + ".cache.test", 60, "10.1." + thread + "." + i));
+                        int seen = 0;
+                        for (ResourceRecord record : cache.getCachedResults(node))
+                            seen++;
+                        assertTrue(seen > i);
+                    }
+                } catch (Throwable e) {
+                    failures[thread] = e;
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        for (Throwable failure : failures)
+            assertNull(failure);
+        assertEquals(THREADS * 200, cache.getCachedResults(node).size());
+        for (int i = 0; i < 200; i++)
+            assertEquals(THREADS, cache.getCachedResults(new DNSNode("host" + i + ".cache.test", RecordType.A)).size());
+    }
+
+    @Test
+    public void cacheIsBoundedByEntries() throws Exception {
+        cache.setMaximumSize(100, Long.MAX_VALUE);
+        long evicted = cache.getEvictionCount();
+        for (int i = 0; i < 1000; i++)
+            cache.addResult(address("host" + i + ".bounded.test", 60, "10.0.0.1"));
+        assertEquals(100, cache.getEntryCount());
+        assertEquals(900, cache.getEvictionCount() - evicted);
+        int cached = 0;
+        for (int i = 0; i < 1000; i++)
+            if (!cache.getCachedResults(new DNSNode("host" + i + ".bounded.test", RecordType.A)).isEmpty())
+                cached++;
+        assertEquals(100, cached);
+    }
+
+    @Test
+    public void cacheIsBoundedByBytes() throws Exception {
+        cache.setMaximumSize(Long.MAX_VALUE, 100000);
+        long evicted = cache.getEvictionCount();
+        for (int i = 0; i < 10000; i++)
+            cache.addResult(address("host" + i + ".bounded.test", 60, "10.0.0.1"));
+        assertTrue(cache.getWeightedSize() <= 100000);
+        assertTrue(cache.getEntryCount() < 10000);
+        assertEquals(10000 - cache.getEntryCount(), cache.getEvictionCount() - evicted);
+    }
+
+    @Test
+    public void nxDomainCoversEveryType() {
+        cache.addNegativeResult(new DNSNode("nope.negative.test", RecordType.A), true, 60);
+        assertTrue(cache.isNegativelyCached(new DNSNode("NOPE.negative.test", RecordType.A)));
+        assertTrue(cache.isNegativelyCached(new DNSNode("nope.negative.test", RecordType.MX)));
+        assertFalse(cache.isNegativelyCached(new DNSNode("other.negative.test", RecordType.A)));
+    }
+
+    @Test
+    public void noDataCoversOneType() throws Exception {
+        cache.addNegativeResult(new DNSNode("www.negative.test", RecordType.AAAA), false, 60);
+        assertTrue(cache.isNegativelyCached(new DNSNode("www.negative.test", RecordType.AAAA)));
+        assertFalse(cache.isNegativelyCached(new DNSNode("www.negative.test", RecordType.A)));
+
+        cache.addResult(new ResourceRecord("www.negative.test", RecordType.AAAA, 60, InetAddress.getByName("::1")));
+        assertFalse(cache.isNegativelyCached(new DNSNode("www.negative.test", RecordType.AAAA)));
+    }
+
+    @Test
+    public void negativeResultsExpire() throws Exception {
+        cache.addNegativeResult(new DNSNode("short.negative.test", RecordType.A), true, 1);
+        cache.addNegativeResult(new DNSNode("never.negative.test", RecordType.A), true, 0);
+        assertTrue(cache.isNegativelyCached(new DNSNode("short.negative.test", RecordType.A)));
+        assertFalse(cache.isNegativelyCached(new DNSNode("never.negative.test", RecordType.A)));
+        Thread.sleep(1100);
+        assertFalse(cache.isNegativelyCached(new DNSNode("short.negative.test", RecordType.A)));
+    }
+
+    @Test
+    public void closestDelegationNeedsANameserverAddress() throws Exception {
+        cache.addResult(new ResourceRecord("zone.test", RecordType.NS, 60, "ns.zone.test"));
+        cache.addResult(new ResourceRecord("sub.zone.test", RecordType.NS, 60, "ns.elsewhere.test"));
+        cache.addResult(address("ns.zone.test", 60, "192.0.2.53"));
+
+        Delegation delegation = cache.findClosestDelegation("www.sub.zone.test");
+        assertEquals("zone.test", delegation.getZone());
+        assertEquals(InetAddress.getByName("192.0.2.53"), delegation.getServers().get(0));
+
+        cache.addResult(address("ns.elsewhere.test", 60, "192.0.2.54"));
+        assertEquals("sub.zone.test", cache.findClosestDelegation("www.sub.zone.test").getZone());
+        assertNull(cache.findClosestDelegation("www.other.test"));
+    }
+
+    @Test
+    public void compactRecordsReadBack() throws Exception {
+        long now = CoarseClock.currentTimeMillis();
+        DNSNode node = new DNSNode("pool.compact.test", RecordType.A);
+        List<ResourceRecord> added = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            String address = "10.0.1." + i;
+            added.add(new ResourceRecord(node, now + 60000 + i, address, InetAddress.getByName(address)));
+        }
+        added.forEach(cache::addResult);
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        assertEquals(new HashSet<>(added), cached);
+        assertEquals(cached, new HashSet<>(added));
+        assertEquals(new HashSet<>(added).hashCode(), cached.hashCode());
+        for (ResourceRecord record : added)
+            assertTrue(cached.contains(record));
+        assertFalse(cached.contains(new ResourceRecord(node, now + 60000, "10.0.1.9", InetAddress.getByName("10.0.1.9"))));
+        assertTrue(cache.hasResults(node));
+
+        DNSNode v6 = new DNSNode("pool.compact.test", RecordType.AAAA);
+        assertFalse(cache.hasResults(v6));
+        InetAddress address = InetAddress.getByName("2001:db8::1");
+        ResourceRecord aaaa = new ResourceRecord(v6, now + 60000, address.getHostAddress(), address);
+        cache.addResult(aaaa);
+        assertEquals(Collections.singleton(aaaa), cache.getCachedResults(v6));
+    }
+
+    @Test
+    public void expiredCompactRecordsAreLeftOut() throws Exception {
+        long now = CoarseClock.currentTimeMillis();
+        DNSNode node = new DNSNode("short.compact.test", RecordType.NS);
+        ResourceRecord shortLived = new ResourceRecord(node, now + 100, "ns1.short.compact.test", null);
+        ResourceRecord longLived = new ResourceRecord(node, now + 60000, "ns2.short.compact.test", null);
+        cache.addResult(shortLived);
+        cache.addResult(longLived);
+        assertEquals(2, cache.getCachedResults(node).size());
+        Thread.sleep(150);
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        assertEquals(Collections.singleton(longLived), cached);
+        assertFalse(cached.contains(shortLived));
+    }
+
+    /** The address node of a nameserver shares the host name of the NS record pointing to it.
+     */
+    @Test
+    public void nameserverHostNameIsShared() throws Exception {
+        long now = CoarseClock.currentTimeMillis();
+        cache.addResult(new ResourceRecord(new DNSNode("shared.test", RecordType.NS), now + 60000, new String("ns1.shared.test"), null));
+        cache.addResult(new ResourceRecord(new DNSNode(new String("ns1.shared.test"), RecordType.A), now + 60000,
+                "10.0.2.1", InetAddress.getByName("10.0.2.1")));
+        String target = cache.getCachedResults(new DNSNode("shared.test", RecordType.NS)).iterator().next().getTextResult();
+        String hostName = cache.getCachedResults(new DNSNode("ns1.shared.test", RecordType.A)).iterator().next().getHostName();
+        assertSame(target, hostName);
+    }
+
+    /** Once a record of a node has expired, the set of the remaining records is built once
+     * and shared by the following reads, until another record expires.
+     */
+    @Test
+    public void partiallyExpiredRecordsAreShared() throws Exception {
+        long now = CoarseClock.currentTimeMillis();
+        DNSNode node = new DNSNode("short.object.test", RecordType.MX);
+        ResourceRecord shortLived = new ResourceRecord(node, now + 100, "mx1.short.object.test", null);
+        ResourceRecord longLived = new ResourceRecord(node, now + 60000, "mx2.short.object.test", null);
+        cache.addResult(shortLived);
+        cache.addResult(longLived);
+        Thread.sleep(150);
+        Set<ResourceRecord> first = cache.getCachedResults(node);
+        assertEquals(Collections.singleton(longLived), first);
+        assertSame(first, cache.getCachedResults(node));
+    }
+
+    /** Adds an A record that expires after a given time and waits until it is due for a
+     * refresh, at the default fraction of its TTL.
+     */
+    private DNSNode addRecordDueForRefresh(String hostName, long ttlMillis) throws Exception {
+        DNSNode node = new DNSNode(hostName, RecordType.A);
+        long now = CoarseClock.currentTimeMillis();
+        cache.addResult(new ResourceRecord(node, now + ttlMillis, "10.0.0.1", InetAddress.getByName("10.0.0.1")));
+        Thread.sleep(ttlMillis * 95 / 100);
+        return node;
+    }
+
+    @Test
+    public void resolverReadsDoNotRefresh() throws Exception {
+        List<DNSNode> refreshed = new ArrayList<>();
+        cache.setRefreshHandler(node -> refreshed.add(node));
+        DNSNode node = addRecordDueForRefresh("internal.refresh.test", 2000);
+        for (int i = 0; i < 20; i++)
+            assertEquals(1, cache.getCachedResults(node).size());
+        assertTrue(refreshed.isEmpty());
+    }
+
+    @Test
+    public void clientReadsRefresh() throws Exception {
+        List<DNSNode> refreshed = new ArrayList<>();
+        cache.setRefreshHandler(node -> refreshed.add(node));
+        DNSNode node = addRecordDueForRefresh("client.refresh.test", 2000);
+        for (int i = 0; i < 3; i++) {
+            cache.getCachedResults(node);
+            assertEquals(1, cache.getClientResults(node).size());
+        }
+        assertTrue(refreshed.isEmpty());
+        cache.recordHit(node);
+        assertEquals(1, refreshed.size());
+        assertEquals(node, refreshed.get(0));
+        // a refresh is only asked for once per entry
+        cache.getClientResults(node);
+        assertEquals(1, refreshed.size());
+    }
+
+    @Test
+    public void declinedRefreshIsAskedForAgain() throws Exception {
+        List<DNSNode> asked = new ArrayList<>();
+        cache.setRefreshHandler(node -> asked.add(node) && asked.size() > 1);
+        DNSNode node = addRecordDueForRefresh("busy.refresh.test", 2000);
+        for (int i = 0; i < 6; i++)
+            cache.getClientResults(node);
+        assertEquals(2, asked.size());
+    }
+
+    @Test
+    public void expiredRecordsAreServedStale() throws Exception {
+        DNSNode node = new DNSNode("old.stale.test", RecordType.A);
+        long now = CoarseClock.currentTimeMillis();
+        cache.addResult(new ResourceRecord(node, now + 100, "10.0.0.1", InetAddress.getByName("10.0.0.1")));
+        assertTrue(cache.getStaleResults(node).isEmpty());
+        Thread.sleep(150);
+        assertTrue(cache.getCachedResults(node).isEmpty());
+        Set<ResourceRecord> stale = cache.getStaleResults(node);
+        assertEquals(1, stale.size());
+        assertEquals("10.0.0.1", stale.iterator().next().getTextResult());
+        assertEquals(30, stale.iterator().next().getTTL());
+
+        cache.addResult(address("old.stale.test", 60, "10.0.0.2"));
+        assertTrue(cache.getStaleResults(node).isEmpty());
+    }
+}
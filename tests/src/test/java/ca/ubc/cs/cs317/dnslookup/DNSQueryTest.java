@@ -0,0 +1,130 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DNSQueryTest {
+
+    private static final byte[] WWW_UBC_CA = {3, 'w', 'w', 'w', 3, 'u', 'b', 'c', 2, 'c', 'a', 0};
+
+    @Test
+    public void encodesTheQuestion() {
+        DNSQuery query = new DNSQuery(new DNSNode("www.ubc.ca", RecordType.AAAA));
+        query.setQueryID(0x1234);
+        byte[] bytes = query.getQueryInBytes();
+        assertEquals(query.getLength(), bytes.length);
+        assertArrayEquals(new byte[]{0x12, 0x34, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0}, Arrays.copyOf(bytes, 12));
+        assertArrayEquals(WWW_UBC_CA, Arrays.copyOfRange(bytes, 12, 24));
+        assertArrayEquals(new byte[]{0, 28, 0, 1}, Arrays.copyOfRange(bytes, 24, 28));
+    }
+
+    @Test
+    public void emptyLabelsAreLeftOut() {
+        DNSQuery query = new DNSQuery(new DNSNode("www.ubc.ca.", RecordType.A));
+        assertArrayEquals(WWW_UBC_CA, Arrays.copyOfRange(query.getQueryInBytes(), 12, 24));
+    }
+
+    @Test
+    public void settingTheIdOnlyPatchesIt() {
+        DNSQuery query = new DNSQuery(new DNSNode("www.ubc.ca", RecordType.A));
+        query.setQueryID(1);
+        byte[] first = query.getQueryInBytes();
+        assertArrayEquals(first, query.getQueryInBytes());
+        query.setQueryID(0xBEEF);
+        byte[] second = query.getQueryInBytes();
+        assertEquals((byte) 0xBE, second[0]);
+        assertEquals((byte) 0xEF, second[1]);
+        assertArrayEquals(Arrays.copyOfRange(first, 2, first.length), Arrays.copyOfRange(second, 2, second.length));
+    }
+
+    /** The same query may be written with several IDs, for example to several servers.
+     */
+    @Test
+    public void writeToUsesTheGivenId() {
+        DNSQuery query = new DNSQuery(new DNSNode("www.ubc.ca", RecordType.A));
+        query.setQueryID(7);
+        ByteBuffer out = ByteBuffer.allocate(512);
+        out.put((byte) 0x55);
+        query.writeTo(out, 0x0102);
+        query.writeTo(out, 0x0304);
+        assertEquals(1 + 2 * query.getLength(), out.position());
+        assertEquals(0x0102, out.getShort(1));
+        assertEquals(0x0304, out.getShort(1 + query.getLength()));
+        assertEquals(7, query.getQueryID());
+
+        DNSResponse parsed = new DNSResponse(Arrays.copyOfRange(out.array(), 1, 1 + query.getLength()));
+        assertEquals(0x0102, parsed.qID);
+        assertEquals("www.ubc.ca", parsed.qName);
+        assertEquals(RecordType.A, parsed.qType);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void labelLongerThan63IsRejected() {
+        char[] label = new char[64];
+        Arrays.fill(label, 'a');
+        new DNSQuery(new DNSNode(new String(label) + ".ubc.ca", RecordType.A));
+    }
+
+    private static String label(int length) {
+        char[] label = new char[length];
+        Arrays.fill(label, 'a');
+        return new String(label);
+    }
+
+    @Test
+    public void namesBeyondTheWireLimitsAreInvalid() {
+        assertTrue(DNSQuery.isValidName(label(63) + ".ubc.ca"));
+        assertFalse(DNSQuery.isValidName(label(64) + ".ubc.ca"));
+        // three 63-octet labels and a 61-octet one take exactly 255 octets
+        String longest = label(63) + "." + label(63) + "." + label(63) + "." + label(61);
+        assertTrue(DNSQuery.isValidName(longest));
+        assertTrue(DNSQuery.isValidName(longest + "."));
+        assertFalse(DNSQuery.isValidName(longest + "a"));
+        assertFalse(DNSQuery.isValidName("caf\u00e9.ubc.ca"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameLongerThan255IsRejected() {
+        new DNSQuery(new DNSNode(label(63) + "." + label(63) + "." + label(63) + "." + label(63), RecordType.A));
+    }
+
+    @Test
+    public void ednsQueryCarriesAnOptRecord() {
+        DNSQuery query = new DNSQuery(new DNSNode("www.ubc.ca", RecordType.A), 1232);
+        assertTrue(query.isEdns());
+        byte[] bytes = query.getQueryInBytes();
+        assertEquals(28 + 11, bytes.length);
+        assertEquals(query.getLength(), bytes.length);
+        assertEquals(1, bytes[11]);
+        // root name, type OPT, payload size 1232 in the class, no extended RCODE, flags or options
+        assertArrayEquals(new byte[]{0, 0, 41, 0x04, (byte) 0xD0, 0, 0, 0, 0, 0, 0}, Arrays.copyOfRange(bytes, 28, 39));
+        assertFalse(new DNSQuery(new DNSNode("www.ubc.ca", RecordType.A), 0).isEdns());
+    }
+
+    @Test
+    public void wireNamesAreCachedInLowerCase() {
+        byte[] name = DNSQuery.getWireName("WWW.UBC.CA");
+        assertArrayEquals(WWW_UBC_CA, name);
+        assertSame(name, DNSQuery.getWireName("www.ubc.ca"));
+    }
+
+    /** A name in use keeps its cache entry while many more names than the cache holds go
+     * through it once each.
+     */
+    @Test
+    public void hotWireNameSurvivesAChurnOfColdNames() {
+        byte[] hot = DNSQuery.getWireName("hot.wire.test");
+        for (int i = 0; i < 200000; i++) {
+            DNSQuery.getWireName("cold" + i + ".wire.test");
+            assertSame(hot, DNSQuery.getWireName("hot.wire.test"));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DNSResponseTest {
+
+    private static final int ZONES = 40;
+    private static final int THREADS = 8;
+
+    @After
+    public void tearDown() {
+        DNSCache.getInstance().flushCache();
+    }
+
+    /** A referral with many nameservers and their glue, whose names all point into each other.
+     */
+    private static byte[] referral() {
+        Packets p = new Packets(7, 0, "www.example.com", RecordType.A).counts(0, ZONES, ZONES);
+        for (int i = 0; i < ZONES; i++)
+            p.name("example.com", RecordType.NS, 3600, "ns" + i + ".zone" + i + ".example.net");
+        for (int i = 0; i < ZONES; i++)
+            p.address("ns" + i + ".zone" + i + ".example.net", 3600, 10, 0, 0, i);
+        return p.bytes();
+    }
+
+    @Test
+    public void decodesCompressedNames() {
+        DNSResponse response = new DNSResponse(referral());
+        assertEquals(7, response.qID);
+        assertEquals("www.example.com", response.qName);
+        List<ResourceRecord> nameServers = response.getNameServers();
+        List<ResourceRecord> additional = response.getAdditional();
+        assertEquals(ZONES, nameServers.size());
+        assertEquals(ZONES, additional.size());
+        for (int i = 0; i < ZONES; i++) {
+            assertEquals("example.com", nameServers.get(i).getHostName());
+            assertEquals("ns" + i + ".zone" + i + ".example.net", nameServers.get(i).getTextResult());
+            assertEquals("ns" + i + ".zone" + i + ".example.net", additional.get(i).getHostName());
+            assertEquals("10.0.0." + i, additional.get(i).getInetResult().getHostAddress());
+        }
+        assertEquals(ZONES, response.getAuthoritativeNS().size());
+        assertTrue(response.getAnswers().isEmpty());
+    }
+
+    /** Caching a referral leaves its glue out, until the glue of one nameserver is asked for.
+     */
+    @Test
+    public void glueIsCachedPerNameserver() {
+        DNSCache cache = DNSCache.getInstance();
+        DNSResponse response = new DNSResponse(referral());
+        response.cacheResourceRecords();
+        assertEquals(ZONES, cache.getCachedResults(new DNSNode("example.com", RecordType.NS)).size());
+        assertTrue(cache.getCachedResults(new DNSNode("ns3.zone3.example.net", RecordType.A)).isEmpty());
+
+        response.cacheGlue("NS3.zone3.example.net");
+        Set<ResourceRecord> glue = cache.getCachedResults(new DNSNode("ns3.zone3.example.net", RecordType.A));
+        assertEquals(1, glue.size());
+        assertEquals("10.0.0.3", glue.iterator().next().getTextResult());
+        assertTrue(cache.getCachedResults(new DNSNode("ns4.zone4.example.net", RecordType.A)).isEmpty());
+    }
+
+    @Test
+    public void flagsAreReadWithMasks() {
+        DNSResponse response = new DNSResponse(new Packets(1, Packets.FLAG_AA | 0x0200 | 3, "nope.example.com", RecordType.A).bytes());
+        assertTrue(response.isAuth);
+        assertTrue(response.isTruncated());
+        assertEquals(3, response.getRcode());
+        assertTrue(response.errorCheck());
+
+        DNSResponse clean = new DNSResponse(new Packets(1, 0, "www.example.com", RecordType.A).bytes());
+        assertFalse(clean.isAuth);
+        assertFalse(clean.isTruncated());
+        assertFalse(clean.errorCheck());
+    }
+
+    /** A name pointing to itself ends parsing at that record, keeping the records before it.
+     */
+    @Test
+    public void compressionLoopEndsParsing() {
+        byte[] head = new Packets(1, 0, "loop.example.com", RecordType.A).counts(2, 0, 0)
+                .address("loop.example.com", 60, 10, 0, 0, 1).bytes();
+        byte[] packet = Arrays.copyOf(head, head.length + 12);
+        int offset = head.length;
+        packet[offset] = (byte) 0xC0;
+        packet[offset + 1] = (byte) offset;
+        packet[offset + 3] = 1;     // type A
+        packet[offset + 5] = 1;     // class IN
+        packet[offset + 9] = 60;    // TTL
+        List<ResourceRecord> answers = new DNSResponse(packet).getAnswers();
+        assertEquals(1, answers.size());
+        assertEquals("10.0.0.1", answers.get(0).getTextResult());
+    }
+
+    @Test
+    public void truncatedRecordEndsParsing() {
+        byte[] packet = new Packets(1, 0, "cut.example.com", RecordType.A).counts(2, 0, 0)
+                .address("cut.example.com", 60, 10, 0, 0, 1)
+                .address("cut.example.com", 60, 10, 0, 0, 2).bytes();
+        assertEquals(1, new DNSResponse(Arrays.copyOf(packet, packet.length - 3)).getAnswers().size());
+    }
+
+    @Test
+    public void questionIsMatchedInPlace() {
+        ByteBuffer message = ByteBuffer.wrap(new Packets(4242, 0, "WWW.Example.com", RecordType.AAAA).bytes());
+        assertTrue(DNSResponse.matchesQuestion(message, 4242, "www.example.com", RecordType.AAAA.getCode()));
+        assertTrue(DNSResponse.matchesQuestion(message, 4242, "www.example.com.", RecordType.AAAA.getCode()));
+        assertFalse(DNSResponse.matchesQuestion(message, 4243, "www.example.com", RecordType.AAAA.getCode()));
+        assertFalse(DNSResponse.matchesQuestion(message, 4242, "www.example.com", RecordType.A.getCode()));
+        assertFalse(DNSResponse.matchesQuestion(message, 4242, "ww.example.com", RecordType.AAAA.getCode()));
+        assertFalse(DNSResponse.matchesQuestion(message, 4242, "www.example.co", RecordType.AAAA.getCode()));
+    }
+
+    @Test
+    public void negativeTtlIsTheSmallerOfSoaTtlAndMinimum() {
+        byte[] nxDomain = new Packets(1, Packets.FLAG_AA | 3, "nope.example.com", RecordType.A).counts(0, 1, 0)
+                .soa("example.com", 900, "ns1.example.com", 300).bytes();
+        DNSResponse response = new DNSResponse(nxDomain);
+        assertTrue(response.isNXDomain());
+        assertEquals(300, response.getNegativeTTL());
+
+        byte[] noData = new Packets(1, Packets.FLAG_AA, "www.example.com", RecordType.AAAA).counts(0, 1, 0)
+                .soa("example.com", 60, "ns1.example.com", 300).bytes();
+        assertFalse(new DNSResponse(noData).isNXDomain());
+        assertEquals(60, new DNSResponse(noData).getNegativeTTL());
+
+        assertEquals(-1, new DNSResponse(referral()).getNegativeTTL());
+    }
+
+    @Test
+    public void optRecordIsReadInPlace() {
+        byte[] bytes = new Packets(1, Packets.FLAG_AA, "www.example.com", RecordType.A).counts(1, 0, 2)
+                .address("www.example.com", 60, 10, 0, 0, 1)
+                .address("ns1.example.com", 60, 10, 0, 0, 2)
+                .opt(4096, 0).bytes();
+        DNSResponse response = new DNSResponse(bytes);
+        assertTrue(response.hasOpt());
+        assertEquals(4096, response.getPayloadSize());
+        assertEquals(1, response.getAdditional().size());
+        assertFalse(response.errorCheck());
+
+        DNSResponse badVersion = new DNSResponse(new Packets(1, 0, "www.example.com", RecordType.A)
+                .counts(0, 0, 1).opt(512, 1).bytes());
+        assertEquals(16, badVersion.getRcode());
+        assertTrue(badVersion.errorCheck());
+
+        DNSResponse plain = new DNSResponse(new Packets(1, 0, "www.example.com", RecordType.A).bytes());
+        assertFalse(plain.hasOpt());
+        assertEquals(512, plain.getPayloadSize());
+    }
+
+    @Test
+    public void copyDecodesIndependently() {
+        DNSResponse response = new DNSResponse(referral());
+        response.getNameServers();
+        DNSResponse copy = response.copy();
+        assertNotSame(response, copy);
+        assertEquals(response.qID, copy.qID);
+        assertEquals(response.getNameServers(), copy.getNameServers());
+        assertEquals(response.getAdditional(), copy.getAdditional());
+        assertEquals(response.getAuthoritativeNS(), copy.getAuthoritativeNS());
+    }
+
+    /** Copies of one response, as handed to the threads sharing a query, decoded at the same
+     * time must each see every record intact.
+     */
+    @Test
+    public void copiesDecodeConcurrently() throws Exception {
+        DNSResponse shared = new DNSResponse(referral());
+        List<ResourceRecord> expected = new DNSResponse(referral()).getAdditional();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        Throwable[] failures = new Throwable[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int round = 0; round < 200; round++) {
+                        DNSResponse copy = shared.copy();
+                        assertEquals(expected, copy.getAdditional());
+                        assertEquals(ZONES, copy.getAuthoritativeNS().size());
+                    }
+                } catch (Throwable e) {
+                    failures[index] = e;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        for (Throwable failure : failures)
+            assertNull(failure);
+    }
+}
@@ -0,0 +1,161 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DNSServerTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final AtomicInteger resolutions = new AtomicInteger();
+    private ExecutorService executor;
+    private Function<DNSNode, Set<ResourceRecord>> resolver = node -> Collections.emptySet();
+    private volatile boolean hang;
+    private volatile boolean broken;
+    private DNSServer server;
+    private DatagramSocket client;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        server = new DNSServer(InetAddress.getLoopbackAddress(), 0, node -> {
+            resolutions.incrementAndGet();
+            if (broken)
+                throw new IllegalStateException("resolver bug");
+            return hang ? new CompletableFuture<>() : CompletableFuture.supplyAsync(() -> resolver.apply(node), executor);
+        });
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+        executor.shutdownNow();
+        cache.flushCache();
+    }
+
+    private byte[] send(String hostName, RecordType type) throws Exception {
+        byte[] query = new DNSQuery(new DNSNode(hostName, type)).getQueryInBytes();
+        client.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), server.getPort()));
+        return query;
+    }
+
+    private DNSResponse ask(String hostName, RecordType type) throws Exception {
+        byte[] query = send(hostName, type);
+        byte[] buffer = new byte[512];
+        DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+        client.receive(reply);
+        byte[] bytes = new byte[reply.getLength()];
+        System.arraycopy(buffer, 0, bytes, 0, bytes.length);
+        DNSResponse response = new DNSResponse(bytes);
+        assertEquals(((query[0] & 0xFF) << 8) | (query[1] & 0xFF), response.qID);
+        assertTrue(response.isResponse());
+        return response;
+    }
+
+    @Test
+    public void cacheHitIsAnsweredWithoutResolving() throws Exception {
+        cache.addResult(new ResourceRecord("www.server.test", RecordType.A, 60, InetAddress.getByName("10.0.0.1")));
+        DNSResponse response = ask("WWW.server.test", RecordType.A);
+        assertEquals(DNSAnswer.RCODE_NOERROR, response.getRcode());
+        assertEquals(1, response.getAnswers().size());
+        assertEquals("10.0.0.1", response.getAnswers().get(0).getTextResult());
+        assertEquals(0, resolutions.get());
+    }
+
+    @Test
+    public void cachedAliasesAreFollowed() throws Exception {
+        cache.addResult(new ResourceRecord("alias.server.test", RecordType.CNAME, 60, "www.server.test"));
+        cache.addResult(new ResourceRecord("www.server.test", RecordType.A, 60, InetAddress.getByName("10.0.0.1")));
+        DNSResponse response = ask("alias.server.test", RecordType.A);
+        assertEquals(2, response.getAnswers().size());
+        assertEquals(RecordType.CNAME, response.getAnswers().get(0).getType());
+        assertEquals("www.server.test", response.getAnswers().get(0).getTextResult());
+        assertEquals("10.0.0.1", response.getAnswers().get(1).getTextResult());
+        assertEquals(0, resolutions.get());
+    }
+
+    @Test
+    public void missIsResolved() throws Exception {
+        resolver = node -> {
+            try {
+                ResourceRecord record = new ResourceRecord(node.getHostName(), node.getType(), 60,
+                        InetAddress.getByName("10.0.0.2"));
+                cache.addResult(record);
+                return Collections.singleton(record);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        DNSResponse response = ask("cold.server.test", RecordType.A);
+        assertEquals(DNSAnswer.RCODE_NOERROR, response.getRcode());
+        assertEquals("10.0.0.2", response.getAnswers().get(0).getTextResult());
+        assertEquals(1, resolutions.get());
+    }
+
+    @Test
+    public void failedResolutionIsServfail() throws Exception {
+        assertEquals(DNSAnswer.RCODE_SERVFAIL, ask("broken.server.test", RecordType.A).getRcode());
+        resolver = node -> {
+            throw new IllegalStateException("resolver failed");
+        };
+        assertEquals(DNSAnswer.RCODE_SERVFAIL, ask("broken.server.test", RecordType.A).getRcode());
+    }
+
+    @Test
+    public void negativeAnswersComeFromTheCache() throws Exception {
+        cache.addNegativeResult(new DNSNode("nope.server.test", RecordType.A), true, 60);
+        cache.addNegativeResult(new DNSNode("www.server.test", RecordType.AAAA), false, 60);
+        assertEquals(DNSAnswer.RCODE_NXDOMAIN, ask("nope.server.test", RecordType.A).getRcode());
+        DNSResponse noData = ask("www.server.test", RecordType.AAAA);
+        assertEquals(DNSAnswer.RCODE_NOERROR, noData.getRcode());
+        assertTrue(noData.getAnswers().isEmpty());
+        assertEquals(0, resolutions.get());
+    }
+
+    @Test
+    public void unsupportedTypeIsNotImplemented() throws Exception {
+        assertEquals(DNSAnswer.RCODE_NOTIMP, ask("www.server.test", RecordType.MX).getRcode());
+        assertEquals(0, resolutions.get());
+    }
+
+    /** Misses beyond the limit of resolutions in progress are refused right away.
+     */
+    @Test
+    public void missesBeyondTheLimitGetServfail() throws Exception {
+        hang = true;
+        int limit = Integer.getInteger("dnslookup.server.maxPending", 256);
+        for (int i = 0; i < limit; i++)
+            send("slow" + i + ".server.test", RecordType.A);
+        DNSResponse refused = ask("one.more.server.test", RecordType.A);
+        assertEquals(DNSAnswer.RCODE_SERVFAIL, refused.getRcode());
+        assertEquals(limit, resolutions.get());
+    }
+
+    /** A query whose handling throws gets a SERVFAIL response, and the server goes on answering.
+     */
+    @Test
+    public void unexpectedFailureIsServfail() throws Exception {
+        broken = true;
+        assertEquals(DNSAnswer.RCODE_SERVFAIL, ask("bug.server.test", RecordType.A).getRcode());
+        broken = false;
+        cache.addResult(new ResourceRecord("www.server.test", RecordType.A, 60, InetAddress.getByName("10.0.0.1")));
+        assertEquals(DNSAnswer.RCODE_NOERROR, ask("www.server.test", RecordType.A).getRcode());
+    }
+}
@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryIndexTest {
+
+    private static List<String> drain(ExpiryIndex<String> index, long now) {
+        List<String> drained = new ArrayList<>();
+        index.drainExpired(now, drained::add);
+        return drained;
+    }
+
+    /** Keys are drained once the whole bucket of their expiration time has passed.
+     */
+    @Test
+    public void keysAreDrainedAfterTheirBucket() {
+        ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+        index.schedule("early", 10500);
+        index.schedule("same bucket", 10999);
+        index.schedule("late", 12000);
+
+        assertTrue(drain(index, 10999).isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("early", "same bucket")), new HashSet<>(drain(index, 11000)));
+        assertTrue(drain(index, 12999).isEmpty());
+        assertEquals(Arrays.asList("late"), drain(index, 13000));
+        assertTrue(drain(index, 60000).isEmpty());
+    }
+
+    @Test
+    public void keyScheduledTwiceIsDrainedFromEachBucket() {
+        ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+        index.schedule("key", 1000);
+        index.schedule("key", 1200);
+        index.schedule("key", 5000);
+        assertEquals(Arrays.asList("key"), drain(index, 2000));
+        assertEquals(Arrays.asList("key"), drain(index, 6000));
+    }
+
+    @Test
+    public void clearForgetsEveryKey() {
+        ExpiryIndex<String> index = new ExpiryIndex<>(1000);
+        index.schedule("key", 1000);
+        index.clear();
+        assertTrue(drain(index, 6000).isEmpty());
+    }
+
+    @Test
+    public void coarseClockFollowsTheSystemClock() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            long before = System.currentTimeMillis();
+            long coarse = CoarseClock.currentTimeMillis();
+            assertTrue(coarse <= System.currentTimeMillis());
+            assertTrue(before - coarse < 100);
+            Thread.sleep(20);
+        }
+    }
+}
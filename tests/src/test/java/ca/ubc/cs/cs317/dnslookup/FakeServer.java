@@ -0,0 +1,117 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Assume;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/** A DNS server for the tests, answering on UDP port 53 of a loopback address with the replies
+ * a handler builds for each query. Each test picks its own addresses in 127.0.1.0/24, so the
+ * servers of different tests never share a socket. Binding port 53 needs privileges the tests
+ * may not have, in which case the test using the server is skipped.
+ */
+final class FakeServer implements Closeable {
+
+    private final DatagramSocket socket;
+    private final Function<byte[], List<byte[]>> handler;
+    private final AtomicInteger received = new AtomicInteger();
+
+    /** Starts a server.
+     *
+     * @param address Loopback address to listen on, such as "127.0.1.1".
+     * @param handler Builds the replies to a query; an empty list leaves the query unanswered.
+     */
+    FakeServer(String address, Function<byte[], List<byte[]>> handler) throws UnknownHostException {
+        this.handler = handler;
+        DatagramSocket bound = null;
+        try {
+            bound = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(address), 53));
+        } catch (SocketException e) {
+            Assume.assumeNoException("cannot bind port 53 of " + address, e);
+        }
+        socket = bound;
+        Thread thread = new Thread(this::serve, "fake-dns-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Starts a server answering every query with one reply.
+     */
+    static FakeServer answering(String address, Function<byte[], byte[]> reply) throws UnknownHostException {
+        return new FakeServer(address, query -> {
+            byte[] bytes = reply.apply(query);
+            return bytes == null ? Collections.emptyList() : Collections.singletonList(bytes);
+        });
+    }
+
+    InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    /** Returns the number of queries received so far.
+     */
+    int getReceived() {
+        return received.get();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[65535];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                received.incrementAndGet();
+                for (byte[] reply : handler.apply(Arrays.copyOf(buffer, packet.getLength())))
+                    socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    /** Returns the ID of a query.
+     */
+    static int id(byte[] query) {
+        return ((query[0] & 0xFF) << 8) | (query[1] & 0xFF);
+    }
+
+    /** Returns the name asked in a query, without compression.
+     */
+    static String name(byte[] query) {
+        StringBuilder name = new StringBuilder();
+        int offset = 12;
+        while (query[offset] != 0) {
+            if (name.length() > 0)
+                name.append('.');
+            name.append(new String(query, offset + 1, query[offset], StandardCharsets.US_ASCII));
+            offset += query[offset] + 1;
+        }
+        return name.toString();
+    }
+
+    /** Returns the record type asked in a query.
+     */
+    static RecordType type(byte[] query) {
+        int offset = 12;
+        while (query[offset] != 0)
+            offset += query[offset] + 1;
+        return RecordType.getByCode(((query[offset + 1] & 0xFF) << 8) | (query[offset + 2] & 0xFF));
+    }
+}
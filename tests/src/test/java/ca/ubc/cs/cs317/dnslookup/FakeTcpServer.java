@@ -0,0 +1,120 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Assume;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/** A DNS server for the tests over TCP, on port 53 of a loopback address, with the 2-byte length
+ * framing of RFC 7766. It reads the queries of a connection in batches and answers each batch in
+ * reverse order, so the replies of pipelined queries come back out of order. As with FakeServer,
+ * the test using the server is skipped if port 53 cannot be bound.
+ */
+final class FakeTcpServer implements Closeable {
+
+    private final ServerSocket socket;
+    private final int batch;
+    private final Function<byte[], byte[]> handler;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger received = new AtomicInteger();
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+
+    /** Starts a server.
+     *
+     * @param address Loopback address to listen on, such as "127.0.1.7".
+     * @param batch   Number of queries read before the replies to them are written.
+     * @param handler Builds the reply to a query; null closes the connection instead.
+     */
+    FakeTcpServer(String address, int batch, Function<byte[], byte[]> handler) throws IOException {
+        this.batch = batch;
+        this.handler = handler;
+        ServerSocket bound = new ServerSocket();
+        try {
+            bound.bind(new InetSocketAddress(InetAddress.getByName(address), 53));
+        } catch (IOException e) {
+            bound.close();
+            Assume.assumeNoException("cannot bind port 53 of " + address, e);
+        }
+        socket = bound;
+        Thread thread = new Thread(this::accept, "fake-dns-tcp-" + address);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetAddress getAddress() {
+        return socket.getInetAddress();
+    }
+
+    /** Returns the number of connections accepted so far.
+     */
+    int getConnections() {
+        return connections.get();
+    }
+
+    /** Returns the number of queries received so far.
+     */
+    int getReceived() {
+        return received.get();
+    }
+
+    private void accept() {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                connections.incrementAndGet();
+                accepted.add(connection);
+                Thread thread = new Thread(() -> serve(connection), "fake-dns-tcp-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        try (Socket s = connection) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            while (true) {
+                List<byte[]> replies = new ArrayList<>();
+                for (int i = 0; i < batch; i++) {
+                    byte[] query = new byte[in.readUnsignedShort()];
+                    in.readFully(query);
+                    received.incrementAndGet();
+                    byte[] reply = handler.apply(query);
+                    if (reply == null)
+                        return;
+                    replies.add(0, reply);
+                }
+                for (byte[] reply : replies) {
+                    out.writeShort(reply.length);
+                    out.write(reply);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // connection closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        synchronized (accepted) {
+            for (Socket connection : accepted)
+                connection.close();
+        }
+    }
+}
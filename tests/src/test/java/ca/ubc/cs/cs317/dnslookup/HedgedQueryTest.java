@@ -0,0 +1,166 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HedgedQueryTest {
+
+    private static final DNSNode NODE = new DNSNode("www.hedge.test", RecordType.A);
+
+    private UDPTransport transport;
+    private TCPTransport tcpTransport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new UDPTransport(2, 1232);
+        tcpTransport = new TCPTransport();
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        tcpTransport.close();
+    }
+
+    private static byte[] reply(byte[] query, int rcode) {
+        return new Packets(FakeServer.id(query), Packets.FLAG_AA | rcode, FakeServer.name(query), FakeServer.type(query))
+                .counts(rcode == 0 ? 1 : 0, 0, 0).address(FakeServer.name(query), 60, 10, 0, 0, 1).bytes();
+    }
+
+    /** A silent server is hedged to the next one after its hedge delay, not after the timeout.
+     */
+    @Test
+    public void silentServerIsHedged() throws Exception {
+        try (FakeServer silent = new FakeServer("127.0.1.4", query -> Collections.emptyList());
+             FakeServer live = FakeServer.answering("127.0.1.5", query -> reply(query, 0))) {
+            ServerStatistics statistics = new ServerStatistics(100, 1000, 50, 5000);
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, statistics, NODE,
+                    Arrays.asList(silent.getAddress(), live.getAddress()));
+            long start = System.nanoTime();
+            HedgedQuery.Reply reply = hedged.get(5000);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            assertEquals(live.getAddress(), reply.server);
+            assertEquals(1, reply.response.getAnswers().size());
+            assertTrue("took " + elapsed + " ms", elapsed >= 90 && elapsed < 2000);
+            assertEquals(2, hedged.getSent().size());
+        }
+    }
+
+    @Test
+    public void errorReplyMovesOnAtOnce() throws Exception {
+        try (FakeServer failing = FakeServer.answering("127.0.1.6", query -> reply(query, 2));
+             FakeServer live = FakeServer.answering("127.0.1.5", query -> reply(query, 0))) {
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, new ServerStatistics(5000, 1000, 50, 5000), NODE,
+                    Arrays.asList(failing.getAddress(), live.getAddress()));
+            long start = System.nanoTime();
+            HedgedQuery.Reply reply = hedged.get(4000);
+            assertEquals(live.getAddress(), reply.server);
+            assertTrue((System.nanoTime() - start) / 1000000 < 2000);
+        }
+    }
+
+    @Test
+    public void lastErrorIsReturnedWhenEveryServerFails() throws Exception {
+        try (FakeServer failing = FakeServer.answering("127.0.1.6", query -> reply(query, 2))) {
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, new ServerStatistics(100, 1000, 50, 5000), NODE,
+                    Collections.singletonList(failing.getAddress()));
+            assertEquals(2, hedged.get(2000).response.getRcode());
+        }
+    }
+
+    @Test
+    public void silentServersTimeOut() throws Exception {
+        try (FakeServer silent = new FakeServer("127.0.1.4", query -> Collections.emptyList())) {
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, new ServerStatistics(100, 1000, 50, 5000), NODE,
+                    Collections.singletonList(silent.getAddress()));
+            try {
+                hedged.get(300);
+                fail("no reply expected");
+            } catch (TimeoutException e) {
+                // expected
+            }
+        }
+    }
+
+    /** A silent server gets three transmissions, each with its own ID, spaced by its
+     * retransmission timeout, which doubles with each timeout.
+     */
+    @Test
+    public void silentServerIsRetransmittedToWithBackoff() throws Exception {
+        Set<Integer> ids = ConcurrentHashMap.newKeySet();
+        try (FakeServer silent = new FakeServer("127.0.1.4", query -> {
+            ids.add(FakeServer.id(query));
+            return Collections.emptyList();
+        })) {
+            ServerStatistics statistics = new ServerStatistics(100, 100, 50, 5000);
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, statistics, NODE,
+                    Collections.singletonList(silent.getAddress()));
+            long start = System.nanoTime();
+            try {
+                hedged.get(3000);
+                fail("no reply expected");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertEquals(3, hedged.getSent().size());
+            assertEquals(3, statistics.getTimeouts(silent.getAddress()));
+            assertEquals(3, ids.size());
+            // one query, written with the ID of each transmission
+            Set<Integer> sentIds = new HashSet<>();
+            for (HedgedQuery.Sent sent : hedged.getSent()) {
+                assertSame(hedged.getSent().get(0).query, sent.query);
+                sentIds.add(sent.queryID);
+            }
+            assertEquals(ids, sentIds);
+            // 100 ms, then 200 ms, before the third transmission
+            assertTrue((System.nanoTime() - start) / 1000000 >= 300);
+            assertEquals(800, statistics.getRetransmissionTimeout(silent.getAddress()));
+        }
+    }
+
+    /** A truncated reply is retried over TCP with the same server, whose reply is used.
+     */
+    @Test
+    public void truncatedReplyIsRetriedOverTcp() throws Exception {
+        try (FakeServer udp = FakeServer.answering("127.0.1.8", query ->
+                new Packets(FakeServer.id(query), Packets.FLAG_AA | 0x0200, FakeServer.name(query), FakeServer.type(query)).bytes());
+             FakeTcpServer tcp = new FakeTcpServer("127.0.1.8", 1, query -> reply(query, 0))) {
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, new ServerStatistics(100, 1000, 50, 5000), NODE,
+                    Collections.singletonList(udp.getAddress()));
+            HedgedQuery.Reply reply = hedged.get(5000);
+            assertEquals(1, reply.response.getAnswers().size());
+            assertEquals(1, tcp.getReceived());
+        }
+    }
+
+    /** A server that answers a query with an OPT record with FORMERR and no OPT record is asked
+     * again at once without one, and is remembered as not supporting EDNS0.
+     */
+    @Test
+    public void formErrWithoutOptFallsBackToPlainDns() throws Exception {
+        try (FakeServer old = FakeServer.answering("127.0.1.10", query -> reply(query, query[11] == 1 ? 1 : 0))) {
+            ServerStatistics statistics = new ServerStatistics(100, 1000, 50, 5000);
+            HedgedQuery hedged = new HedgedQuery(transport, tcpTransport, statistics, NODE,
+                    Collections.singletonList(old.getAddress()));
+            HedgedQuery.Reply reply = hedged.get(5000);
+            assertEquals(0, reply.response.getRcode());
+            assertFalse(reply.query.isEdns());
+            assertEquals(2, old.getReceived());
+            assertFalse(statistics.isEdnsEnabled(old.getAddress()));
+        }
+    }
+}
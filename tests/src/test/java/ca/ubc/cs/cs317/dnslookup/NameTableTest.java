@@ -0,0 +1,48 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class NameTableTest {
+
+    @Test
+    public void acquiredNamesAreShared() {
+        NameTable table = new NameTable();
+        String first = table.acquire(new String("ns1.example.com"));
+        String second = table.acquire(new String("ns1.example.com"));
+        assertSame(first, second);
+        assertSame(first, table.share(new String("ns1.example.com")));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void nameIsRemovedWithItsLastReference() {
+        NameTable table = new NameTable();
+        String name = table.acquire("ns1.example.com");
+        table.retain(name);
+        table.release(name);
+        assertEquals(1, table.size());
+        table.release(name);
+        assertEquals(0, table.size());
+        String other = new String("ns1.example.com");
+        assertSame(other, table.share(other));
+    }
+
+    /** A holder keeps its copy of a released name, whatever names are added afterwards.
+     */
+    @Test
+    public void releasedNameStaysValidForHolders() {
+        NameTable table = new NameTable();
+        String held = table.acquire("ns1.example.com");
+        table.release(held);
+        for (int i = 0; i < 1000; i++)
+            table.acquire("ns" + i + ".example.org");
+        assertEquals("ns1.example.com", held);
+        String again = table.acquire(new String("ns1.example.com"));
+        assertNotSame(held, again);
+        assertEquals(held, again);
+    }
+}
@@ -0,0 +1,103 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NameTrieTest {
+
+    @Test
+    public void emptyEntriesArePruned() {
+        NameTrie trie = new NameTrie();
+        DNSNode www = new DNSNode("www.ubc.ca", RecordType.A);
+        trie.add(www);
+        trie.add(new DNSNode("ubc.ca", RecordType.NS));
+        trie.remove(www);
+        assertTrue(trie.getNodes("www.ubc.ca").isEmpty());
+        assertEquals(1, trie.getNodes("UBC.CA").size());
+        trie.remove(new DNSNode("ubc.ca", RecordType.NS));
+        List<DNSNode> left = new ArrayList<>();
+        trie.forEachInSubtree("", left::add);
+        assertTrue(left.isEmpty());
+    }
+
+    @Test
+    public void ancestorsAreListedDeepestFirst() {
+        NameTrie trie = new NameTrie();
+        trie.add(new DNSNode("ca", RecordType.NS));
+        trie.add(new DNSNode("ubc.ca", RecordType.NS));
+        trie.add(new DNSNode("cs.ubc.ca", RecordType.A));
+        assertEquals(Arrays.asList(new DNSNode("ubc.ca", RecordType.NS), new DNSNode("ca", RecordType.NS)),
+                trie.getAncestors("www.cs.ubc.ca", RecordType.NS));
+        assertTrue(trie.getAncestors("www.cs.ubc.ca", RecordType.MX).isEmpty());
+    }
+
+    @Test
+    public void subtreeHoldsOnlyNamesUnderTheZone() {
+        NameTrie trie = new NameTrie();
+        trie.add(new DNSNode("a.zone.test", RecordType.A));
+        trie.add(new DNSNode("b.a.zone.test", RecordType.AAAA));
+        trie.add(new DNSNode("other.test", RecordType.A));
+        List<DNSNode> nodes = new ArrayList<>();
+        trie.forEachInSubtree("zone.test", nodes::add);
+        assertEquals(2, nodes.size());
+        assertTrue(nodes.contains(new DNSNode("b.a.zone.test", RecordType.AAAA)));
+    }
+
+    /** Threads adding and removing names that share their ancestors must leave the trie holding
+     * exactly the names last added, even as the entries above them are pruned and re-created.
+     */
+    @Test
+    public void concurrentUpdatesKeepTheIndexConsistent() throws Exception {
+        int threads = 8;
+        int namesPerThread = 16;
+        NameTrie trie = new NameTrie();
+        boolean[][] present = new boolean[threads][namesPerThread];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                // each thread owns its names, as the cache serializes the updates of a node
+                for (int i = 0; i < 100000; i++) {
+                    int n = random.nextInt(namesPerThread);
+                    DNSNode node = new DNSNode("h" + thread + ".z" + n % 2 + ".trie.test", RecordType.values()[n / 2]);
+                    if (present[thread][n])
+                        trie.remove(node);
+                    else
+                        trie.add(node);
+                    present[thread][n] = !present[thread][n];
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        int expected = 0;
+        for (int t = 0; t < threads; t++)
+            for (int n = 0; n < namesPerThread; n++)
+                if (present[t][n]) {
+                    expected++;
+                    DNSNode node = new DNSNode("h" + t + ".z" + n % 2 + ".trie.test", RecordType.values()[n / 2]);
+                    assertTrue(node + " lost", trie.getNodes(node.getHostName()).contains(node));
+                }
+        List<DNSNode> indexed = new ArrayList<>();
+        trie.forEachInSubtree("trie.test", indexed::add);
+        assertEquals(expected, indexed.size());
+    }
+}
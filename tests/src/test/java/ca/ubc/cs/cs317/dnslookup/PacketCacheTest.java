@@ -0,0 +1,165 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketCacheTest {
+
+    private final DNSCache cache = DNSCache.getInstance();
+
+    @After
+    public void tearDown() {
+        cache.flushCache();
+    }
+
+    private static DNSResponse query(int id, String hostName) {
+        return new DNSResponse(new Packets(id, 0, hostName, RecordType.A).bytes());
+    }
+
+    private static ResourceRecord address(String hostName) throws Exception {
+        DNSNode node = new DNSNode(hostName, RecordType.A);
+        return new ResourceRecord(node, CoarseClock.currentTimeMillis() + 60000, "10.0.0.1",
+                InetAddress.getByName("10.0.0.1"));
+    }
+
+    /** Encodes the answer to a query for a host name and adds it to the packet cache.
+     */
+    private static void put(PacketCache packets, PacketCache.Stamp stamp, String hostName) throws Exception {
+        DNSResponse query = query(1, hostName);
+        List<ResourceRecord> answers = Collections.singletonList(address(hostName));
+        ByteBuffer out = ByteBuffer.allocate(512);
+        int[] ttlOffsets = new int[1];
+        assertTrue(DNSAnswer.encode(out, query, DNSAnswer.RCODE_NOERROR, answers, ttlOffsets));
+        out.flip();
+        packets.put(query, out, ttlOffsets, answers, stamp);
+    }
+
+    private static void put(PacketCache packets, String hostName) throws Exception {
+        PacketCache.Stamp stamp = packets.newStamp();
+        stamp.add(hostName);
+        put(packets, stamp, hostName);
+    }
+
+    private static boolean answers(PacketCache packets, int id, String hostName) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        if (!packets.answer(query(id, hostName), out))
+            return false;
+        assertEquals(id, out.getShort(0) & 0xFFFF);
+        return true;
+    }
+
+    @Test
+    public void answersWithTheQueryId() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        put(packets, "www.packet.test");
+        assertTrue(answers(packets, 4242, "www.packet.test"));
+        assertTrue(answers(packets, 17, "WWW.Packet.Test"));
+        assertFalse(answers(packets, 1, "other.packet.test"));
+    }
+
+    @Test
+    public void ttlsCountDown() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        put(packets, "ttl.packet.test");
+        int ttlOffset = 12 + "ttl.packet.test".length() + 2 + 4 + 2 + 4;
+        ByteBuffer out = ByteBuffer.allocate(512);
+        assertTrue(packets.answer(query(1, "ttl.packet.test"), out));
+        assertEquals(60, out.getInt(ttlOffset));
+        Thread.sleep(1100);
+        out.clear();
+        assertTrue(packets.answer(query(1, "ttl.packet.test"), out));
+        assertEquals(59, out.getInt(ttlOffset));
+    }
+
+    @Test
+    public void changeToAnotherNameKeepsTheAnswer() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        PacketCache.Stamp stamp = packets.newStamp();
+        stamp.add("kept.packet.test");
+        cache.addResult(address("unrelated.packet.test"));
+        put(packets, stamp, "kept.packet.test");
+        assertTrue(answers(packets, 1, "kept.packet.test"));
+    }
+
+    @Test
+    public void changeWhileBuildingDropsTheAnswer() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        PacketCache.Stamp stamp = packets.newStamp();
+        stamp.add("racy.packet.test");
+        cache.addResult(address("racy.packet.test"));
+        put(packets, stamp, "racy.packet.test");
+        assertFalse(answers(packets, 1, "racy.packet.test"));
+        assertEquals(0, packets.size());
+        assertEquals(0, packets.getDependentNameCount());
+    }
+
+    @Test
+    public void changeRemovesTheAnswer() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        put(packets, "changed.packet.test");
+        put(packets, "other.packet.test");
+        cache.addResult(address("Changed.Packet.Test"));
+        assertFalse(answers(packets, 1, "changed.packet.test"));
+        assertTrue(answers(packets, 1, "other.packet.test"));
+        assertEquals(1, packets.getDependentNameCount());
+    }
+
+    /** Adding a record the cache already holds changes nothing, so the answer is kept.
+     */
+    @Test
+    public void sameRecordAgainKeepsTheAnswer() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        ResourceRecord record = address("same.packet.test");
+        cache.addResult(record);
+        put(packets, "same.packet.test");
+        cache.addResult(record);
+        assertTrue(answers(packets, 1, "same.packet.test"));
+    }
+
+    @Test
+    public void namesMatchWhateverTheDefaultLocale() throws Exception {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            PacketCache packets = new PacketCache(cache, 10);
+            put(packets, "index.packet.test");
+            assertTrue(answers(packets, 1, "INDEX.PACKET.TEST"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void replacedAnswersAreForgotten() throws Exception {
+        PacketCache packets = new PacketCache(cache, 10);
+        for (int i = 0; i < 100; i++)
+            put(packets, "replaced.packet.test");
+        assertEquals(1, packets.size());
+        assertEquals(1, packets.getDependentNameCount());
+    }
+
+    @Test
+    public void fullCacheEvictsUnusedAnswers() throws Exception {
+        PacketCache packets = new PacketCache(cache, 4);
+        put(packets, "hot.packet.test");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(answers(packets, i, "hot.packet.test"));
+            put(packets, "cold" + i + ".packet.test");
+            assertTrue(packets.size() <= 4);
+        }
+        assertTrue(answers(packets, 1, "hot.packet.test"));
+        assertTrue(answers(packets, 1, "cold99.packet.test"));
+        assertFalse(answers(packets, 1, "cold0.packet.test"));
+        assertEquals(packets.size(), packets.getDependentNameCount());
+    }
+}
@@ -0,0 +1,121 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Builds the responses the tests feed to the resolver, in wire format. Names are compressed
+ * the way servers compress them: each name ends with a pointer to the longest suffix already
+ * written, so decoding a packet follows pointers.
+ */
+final class Packets {
+
+    static final int FLAG_QR = 0x8000;
+    static final int FLAG_AA = 0x0400;
+    private static final int CLASS_IN = 1;
+
+    private final ByteBuffer out = ByteBuffer.allocate(65535);
+    private final Map<String, Integer> suffixes = new HashMap<>();
+
+    /** Starts a response to a question, with no records.
+     *
+     * @param id    ID of the response.
+     * @param flags Flags of the header, including the response code.
+     * @param qName Name of the question.
+     * @param qType Type of the question.
+     */
+    Packets(int id, int flags, String qName, RecordType qType) {
+        out.putShort((short) id);
+        out.putShort((short) (FLAG_QR | flags));
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        writeName(qName);
+        out.putShort((short) qType.getCode());
+        out.putShort((short) CLASS_IN);
+    }
+
+    /** Sets the number of records of each section; records must be added in section order.
+     */
+    Packets counts(int anCount, int nsCount, int arCount) {
+        out.putShort(6, (short) anCount);
+        out.putShort(8, (short) nsCount);
+        out.putShort(10, (short) arCount);
+        return this;
+    }
+
+    Packets address(String owner, int ttl, int a, int b, int c, int d) {
+        int rdata = header(owner, RecordType.A, ttl);
+        out.put((byte) a).put((byte) b).put((byte) c).put((byte) d);
+        endRecord(rdata);
+        return this;
+    }
+
+    Packets name(String owner, RecordType type, int ttl, String target) {
+        int rdata = header(owner, type, ttl);
+        writeName(target);
+        endRecord(rdata);
+        return this;
+    }
+
+    /** Adds a SOA record whose MINIMUM field (the negative TTL) is given.
+     */
+    Packets soa(String owner, int ttl, String primary, int minimum) {
+        int rdata = header(owner, RecordType.SOA, ttl);
+        writeName(primary);
+        writeName("hostmaster." + owner);
+        out.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(minimum);
+        endRecord(rdata);
+        return this;
+    }
+
+    /** Adds an EDNS0 OPT pseudo-record with a UDP payload size and the upper bits of the RCODE.
+     */
+    Packets opt(int payloadSize, int extendedRcode) {
+        out.put((byte) 0);
+        out.putShort((short) RecordType.OPT.getCode());
+        out.putShort((short) payloadSize);
+        out.putInt(extendedRcode << 24);
+        out.putShort((short) 0);
+        return this;
+    }
+
+    byte[] bytes() {
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private int header(String owner, RecordType type, int ttl) {
+        writeName(owner);
+        out.putShort((short) type.getCode());
+        out.putShort((short) CLASS_IN);
+        out.putInt(ttl);
+        int rdata = out.position();
+        out.putShort((short) 0);
+        return rdata;
+    }
+
+    private void endRecord(int rdLengthOffset) {
+        out.putShort(rdLengthOffset, (short) (out.position() - rdLengthOffset - 2));
+    }
+
+    private void writeName(String name) {
+        String rest = name;
+        while (!rest.isEmpty()) {
+            Integer offset = suffixes.get(rest.toLowerCase());
+            if (offset != null) {
+                out.putShort((short) (0xC000 | offset));
+                return;
+            }
+            suffixes.put(rest.toLowerCase(), out.position());
+            int dot = rest.indexOf('.');
+            String label = dot < 0 ? rest : rest.substring(0, dot);
+            out.put((byte) label.length());
+            for (int i = 0; i < label.length(); i++)
+                out.put((byte) label.charAt(i));
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+        out.put((byte) 0);
+    }
+}
@@ -0,0 +1,131 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResolutionContextTest {
+
+    private static final int THREADS = 8;
+    private static final int LINES = 50;
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private PrintStream standardOutput;
+
+    @Before
+    public void captureOutput() {
+        standardOutput = System.out;
+        System.setOut(new PrintStream(output, true));
+    }
+
+    @After
+    public void restoreOutput() {
+        System.setOut(standardOutput);
+    }
+
+    private static ResolutionContext newContext(boolean verboseTracing) {
+        return new ResolutionContext(InetAddress.getLoopbackAddress(), verboseTracing, 10000);
+    }
+
+    @Test
+    public void traceIsOnlyKeptWhenVerbose() {
+        ResolutionContext quiet = newContext(false);
+        quiet.trace("not shown");
+        quiet.flushTrace();
+        assertEquals("", output.toString());
+
+        ResolutionContext verbose = newContext(true);
+        verbose.trace("first");
+        verbose.trace("second");
+        assertEquals("", output.toString());
+        verbose.flushTrace();
+        assertEquals("first\nsecond\n", output.toString());
+        verbose.flushTrace();
+        assertEquals("first\nsecond\n", output.toString());
+    }
+
+    /** Lookups tracing on several threads at once print each of their traces in one piece.
+     */
+    @Test
+    public void concurrentTracesAreNotInterleaved() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int lookup = t;
+            threads[t] = new Thread(() -> {
+                ResolutionContext context = newContext(true);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int line = 0; line < LINES; line++) {
+                    context.trace("lookup " + lookup + " line " + line);
+                    Thread.yield();
+                }
+                context.flushTrace();
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        String[] lines = output.toString().split("\n");
+        assertEquals(THREADS * LINES, lines.length);
+        for (int i = 0; i < lines.length; i += LINES) {
+            String lookup = lines[i].substring(0, lines[i].indexOf(" line "));
+            for (int line = 0; line < LINES; line++)
+                assertEquals(lookup + " line " + line, lines[i + line]);
+        }
+    }
+
+    @Test
+    public void eachContextHasItsOwnState() {
+        ResolutionContext first = newContext(false);
+        ResolutionContext second = newContext(false);
+        first.numberSentQuery = 3;
+        first.authFlag = true;
+        assertEquals(0, second.numberSentQuery);
+        assertFalse(second.authFlag);
+    }
+
+    @Test
+    public void lookupExpiresAtItsDeadline() throws Exception {
+        ResolutionContext context = new ResolutionContext(InetAddress.getLoopbackAddress(), false, 100);
+        assertFalse(context.isExpired());
+        assertTrue(context.getRemainingTime() > 0 && context.getRemainingTime() <= 100);
+        Thread.sleep(150);
+        assertTrue(context.isExpired());
+        assertEquals(0, context.getRemainingTime());
+    }
+
+    @Test
+    public void childIsMergedIntoItsParent() {
+        ResolutionContext parent = newContext(true);
+        parent.trace("parent");
+        parent.numberSentQuery = 2;
+        ResolutionContext child = parent.child();
+        assertEquals(1, child.getDepth());
+        assertEquals(2, child.child().getDepth());
+        assertEquals(0, child.numberSentQuery);
+        assertTrue(child.isVerboseTracing());
+        assertEquals(parent.getRootServer(), child.getRootServer());
+        child.trace("child");
+        child.numberSentQuery = 3;
+
+        parent.merge(child);
+        assertEquals(5, parent.numberSentQuery);
+        parent.flushTrace();
+        assertEquals("parent\nchild\n", output.toString());
+    }
+}
@@ -0,0 +1,172 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerStatisticsTest {
+
+    @Test
+    public void unknownServerHasTheDefaultLatency() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        assertEquals(400, statistics.getPercentile(server, 0.9));
+        assertEquals(400, statistics.getSmoothedRtt(server));
+    }
+
+    @Test
+    public void percentileKeepsOnlyRecentSamples() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        for (int i = 1; i <= 10; i++)
+            statistics.record(server, i * 10);
+        assertEquals(90, statistics.getPercentile(server, 0.9));
+        assertEquals(10, statistics.getPercentile(server, 0));
+        for (int i = 0; i < 32; i++)
+            statistics.record(server, 5);
+        assertEquals(5, statistics.getPercentile(server, 0.9));
+    }
+
+    @Test
+    public void smoothedRttFollowsRfc6298() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        statistics.record(server, 100);
+        assertEquals(100, statistics.getSmoothedRtt(server));
+        statistics.record(server, 180);
+        assertEquals(110, statistics.getSmoothedRtt(server));
+    }
+
+    @Test
+    public void fasterAndResponsiveServersRankFirst() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress slow = InetAddress.getByName("192.0.2.1");
+        InetAddress fast = InetAddress.getByName("192.0.2.2");
+        InetAddress unknown = InetAddress.getByName("192.0.2.3");
+        InetAddress dead = InetAddress.getByName("192.0.2.4");
+        statistics.record(slow, 300);
+        statistics.record(fast, 20);
+        statistics.record(dead, 1);
+        statistics.recordTimeout(dead);
+        assertEquals(1, statistics.getTimeouts(dead));
+        List<InetAddress> ranked = statistics.rank(Arrays.asList(dead, unknown, slow, fast));
+        assertEquals(Arrays.asList(fast, slow, unknown, dead), ranked);
+
+        statistics.record(dead, 1);
+        assertEquals(0, statistics.getTimeouts(dead));
+        assertEquals(dead, statistics.rank(Arrays.asList(fast, dead)).get(0));
+    }
+
+    /** Ranking a server behind another one decays its score, not the round-trip time its
+     * retransmission timeout is computed from.
+     */
+    @Test
+    public void rankingLeavesTheRetransmissionTimeoutAlone() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress fast = InetAddress.getByName("192.0.2.1");
+        InetAddress slow = InetAddress.getByName("192.0.2.2");
+        statistics.record(fast, 20);
+        statistics.record(slow, 200);
+        long rto = statistics.getRetransmissionTimeout(slow);
+        int slowFirst = 0;
+        for (int i = 0; i < 200; i++)
+            if (statistics.rank(Arrays.asList(fast, slow)).get(0).equals(slow))
+                slowFirst++;
+        // the decayed score still brings the slow server to the front once in a while
+        assertTrue(slowFirst > 0);
+        assertEquals(200, statistics.getSmoothedRtt(slow));
+        assertEquals(rto, statistics.getRetransmissionTimeout(slow));
+    }
+
+    @Test
+    public void retransmissionTimeoutBacksOffWithinItsBounds() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        assertEquals(1000, statistics.getRetransmissionTimeout(server));
+        statistics.record(server, 100);
+        // srtt + 4 * rttvar, with rttvar = rtt / 2 after the first sample
+        assertEquals(300, statistics.getRetransmissionTimeout(server));
+        statistics.recordTimeout(server);
+        assertEquals(600, statistics.getRetransmissionTimeout(server));
+        for (int i = 0; i < 10; i++)
+            statistics.recordTimeout(server);
+        assertEquals(5000, statistics.getRetransmissionTimeout(server));
+
+        InetAddress fast = InetAddress.getByName("192.0.2.2");
+        for (int i = 0; i < 50; i++)
+            statistics.record(fast, 1);
+        assertEquals(50, statistics.getRetransmissionTimeout(fast));
+    }
+
+    @Test
+    public void ednsIsTurnedOffForServersThatMishandleIt() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress broken = InetAddress.getByName("192.0.2.1");
+        assertTrue(statistics.isEdnsEnabled(broken));
+        statistics.recordEdnsFailure(broken);
+        assertFalse(statistics.isEdnsEnabled(broken));
+        statistics.recordEdnsSupport(broken);
+        assertTrue(statistics.isEdnsEnabled(broken));
+    }
+
+    @Test
+    public void timeoutsAloneDoNotTurnOffEdns() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        InetAddress silent = InetAddress.getByName("192.0.2.1");
+        for (int i = 0; i < 10; i++)
+            statistics.recordTimeout(silent);
+        assertTrue(statistics.isEdnsEnabled(silent));
+    }
+
+    /** Ranking must not trip the sort while other threads change the scores being compared.
+     */
+    @Test
+    public void rankingWhileScoresChange() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000);
+        List<InetAddress> servers = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            InetAddress server = InetAddress.getByName("192.0.2." + (i + 1));
+            statistics.record(server, 100);
+            servers.add(server);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (!done.get())
+                statistics.record(servers.get(random.nextInt(servers.size())), random.nextInt(1, 200));
+        });
+        writer.start();
+        try {
+            for (int i = 0; i < 20000; i++)
+                assertEquals(servers.size(), new HashSet<>(statistics.rank(servers)).size());
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedServersAreEvicted() throws Exception {
+        ServerStatistics statistics = new ServerStatistics(400, 1000, 50, 5000, 16);
+        InetAddress kept = InetAddress.getByName("192.0.2.1");
+        statistics.record(kept, 1);
+        for (int i = 2; i <= 100; i++) {
+            statistics.record(InetAddress.getByName("192.0.2." + i), 10);
+            statistics.record(kept, 1);
+        }
+        assertTrue(statistics.size() <= 16);
+        assertEquals(1, statistics.getSmoothedRtt(kept));
+        assertEquals(10, statistics.getSmoothedRtt(InetAddress.getByName("192.0.2.100")));
+        assertEquals(400, statistics.getSmoothedRtt(InetAddress.getByName("192.0.2.2")));
+    }
+}
@@ -0,0 +1,171 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void concurrentCallsShareOneExecution() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object value = new Object();
+        Object[] results = new Object[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    results[index] = flight.call("key", () -> {
+                        executions.incrementAndGet();
+                        started.countDown();
+                        release.await();
+                        return value;
+                    }, 5000);
+                } catch (Exception e) {
+                    results[index] = e;
+                }
+            });
+        }
+        threads[0].start();
+        started.await();
+        for (int i = 1; i < THREADS; i++)
+            threads[i].start();
+        awaitBlocked(threads);
+        release.countDown();
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join(5000);
+            assertSame(value, results[i]);
+        }
+        assertEquals(1, executions.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void callAfterCompletionStartsNewCall() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        assertEquals(Integer.valueOf(1), flight.call("key", () -> 1, 1000));
+        assertEquals(Integer.valueOf(2), flight.call("key", () -> 2, 1000));
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void distinctKeysDoNotShare() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CompletableFuture<String> first = new CompletableFuture<>();
+        CompletableFuture<String> a = flight.execute("a", () -> first);
+        CompletableFuture<String> b = flight.execute("b", () -> CompletableFuture.completedFuture("b"));
+        assertEquals("b", b.get());
+        assertEquals(1, flight.size());
+        first.complete("a");
+        assertEquals("a", a.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void executeSharesTheCallInFlight() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        CompletableFuture<String> call = new CompletableFuture<>();
+        AtomicInteger starts = new AtomicInteger();
+        CompletableFuture<String> first = flight.execute("key", () -> {
+            starts.incrementAndGet();
+            return call;
+        });
+        CompletableFuture<String> second = flight.execute("key", () -> {
+            starts.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        assertSame(first, second);
+        call.complete("value");
+        assertEquals("value", second.get());
+        assertEquals(1, starts.get());
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void failureReachesLeaderAndFollowers() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object[] results = new Object[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            int index = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    results[index] = flight.call("key", () -> {
+                        started.countDown();
+                        release.await();
+                        throw new IOException("failed");
+                    }, 5000);
+                } catch (Exception e) {
+                    results[index] = e;
+                }
+            });
+        }
+        threads[0].start();
+        started.await();
+        threads[1].start();
+        awaitBlocked(threads);
+        release.countDown();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(5000);
+            assertTrue(results[i] instanceof ExecutionException);
+            assertTrue(((ExecutionException) results[i]).getCause() instanceof IOException);
+        }
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void followerTimesOut() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> leader = executor.submit(() -> flight.call("key", () -> {
+                started.countDown();
+                release.await();
+                return "done";
+            }, 5000));
+            started.await();
+            try {
+                flight.call("key", Object::new, 50);
+                fail("the follower should have timed out");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            release.countDown();
+            assertEquals("done", leader.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Waits until every thread is blocked, the first on the call and the others on its outcome.
+     */
+    private static void awaitBlocked(Thread[] threads) throws InterruptedException {
+        for (Thread thread : threads)
+            while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING)
+                Thread.sleep(1);
+    }
+}
@@ -0,0 +1,145 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TCPTransportTest {
+
+    private TCPTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new TCPTransport();
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    private static byte[] answer(byte[] query) {
+        return new Packets(FakeServer.id(query), Packets.FLAG_AA, FakeServer.name(query), FakeServer.type(query))
+                .counts(1, 0, 0).address(FakeServer.name(query), 60, 10, 0, 0, 1).bytes();
+    }
+
+    /** Queries pipelined on one connection are each completed with their own response, whatever
+     * the order the responses arrive in.
+     */
+    @Test
+    public void pipelinedQueriesShareOneConnection() throws Exception {
+        try (FakeTcpServer server = new FakeTcpServer("127.0.1.7", 10, TCPTransportTest::answer)) {
+            List<CompletableFuture<DNSResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(transport.send(new DNSQuery(new DNSNode("host" + i + ".tcp.test", RecordType.A)), server.getAddress()));
+            for (int i = 0; i < 10; i++) {
+                DNSResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("host" + i + ".tcp.test", response.qName);
+                assertEquals(1, response.getAnswers().size());
+            }
+            assertEquals(1, server.getConnections());
+        }
+    }
+
+    @Test
+    public void closedConnectionFailsItsQueries() throws Exception {
+        try (FakeTcpServer server = new FakeTcpServer("127.0.1.7", 1, query -> null)) {
+            CompletableFuture<DNSResponse> future = transport.send(new DNSQuery(new DNSNode("www.tcp.test", RecordType.A)), server.getAddress());
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("the connection was closed without a response");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test
+    public void closeFailsPendingQueries() throws Exception {
+        try (FakeTcpServer server = new FakeTcpServer("127.0.1.7", 2, TCPTransportTest::answer)) {
+            CompletableFuture<DNSResponse> future = transport.send(new DNSQuery(new DNSNode("www.tcp.test", RecordType.A)), server.getAddress());
+            transport.close();
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("the transport was closed");
+            } catch (ExecutionException e) {
+                // expected
+            }
+        }
+    }
+
+    private static void awaitReceived(FakeTcpServer server, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getReceived() < count; i++)
+            Thread.sleep(10);
+        assertEquals(count, server.getReceived());
+    }
+
+    /** Queries beyond the limit of a connection wait for a query in flight to complete instead
+     * of being written.
+     */
+    @Test
+    public void queriesBeyondTheLimitWait() throws Exception {
+        transport.close();
+        transport = new TCPTransport(4);
+        // the server never answers: it waits for more queries than it gets
+        try (FakeTcpServer server = new FakeTcpServer("127.0.1.7", 100, TCPTransportTest::answer)) {
+            List<CompletableFuture<DNSResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                futures.add(transport.send(new DNSQuery(new DNSNode("host" + i + ".tcp.test", RecordType.A)), server.getAddress()));
+            awaitReceived(server, 4);
+            Thread.sleep(200);
+            assertEquals(4, server.getReceived());
+
+            futures.get(0).cancel(false);
+            awaitReceived(server, 5);
+            transport.close();
+            for (int i = 1; i < 10; i++) {
+                try {
+                    futures.get(i).get(5, TimeUnit.SECONDS);
+                    fail("the transport was closed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        }
+    }
+
+    /** A query that fails on the selector thread fails alone; the transport keeps serving the
+     * other queries.
+     */
+    @Test
+    public void brokenQueryDoesNotStopTheTransport() throws Exception {
+        try (FakeTcpServer server = new FakeTcpServer("127.0.1.7", 1, TCPTransportTest::answer)) {
+            DNSQuery broken = new DNSQuery(new DNSNode("broken.tcp.test", RecordType.A)) {
+                @Override
+                public void writeTo(ByteBuffer out, int id) {
+                    throw new IllegalStateException("cannot encode");
+                }
+            };
+            CompletableFuture<DNSResponse> failed = transport.send(broken, server.getAddress());
+            try {
+                failed.get(5, TimeUnit.SECONDS);
+                fail("the query could not be encoded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            DNSResponse response = transport.send(new DNSQuery(new DNSNode("www.tcp.test", RecordType.A)), server.getAddress())
+                    .get(5, TimeUnit.SECONDS);
+            assertEquals("www.tcp.test", response.qName);
+            assertFalse(response.getAnswers().isEmpty());
+        }
+    }
+}
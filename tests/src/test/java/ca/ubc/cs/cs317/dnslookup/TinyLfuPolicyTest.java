@@ -0,0 +1,158 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuPolicyTest {
+
+    /** A cache holding only keys, kept in the policy the way DNSCache keeps its nodes.
+     */
+    private static final class KeyCache {
+        final ConcurrentHashMap<Integer, Long> entries = new ConcurrentHashMap<>();
+        final TinyLfuPolicy<Integer> policy;
+
+        KeyCache(long maximumEntries) {
+            this(maximumEntries, Long.MAX_VALUE);
+        }
+
+        KeyCache(long maximumEntries, long maximumWeight) {
+            policy = new TinyLfuPolicy<>(maximumEntries, maximumWeight, entries::remove);
+        }
+
+        long weight(Integer key) {
+            Long weight = entries.get(key);
+            return weight != null ? weight : -1;
+        }
+
+        void add(int key) {
+            entries.compute(key, (k, weight) -> weight == null ? 1L : weight + 1);
+            policy.recordWrite(key, this::weight);
+        }
+
+        void put(int key, long weight) {
+            entries.put(key, weight);
+            policy.recordWrite(key, this::weight);
+        }
+
+        void update(int key, long weight) {
+            entries.computeIfPresent(key, (k, w) -> weight);
+            policy.recordUpdate(key, this::weight);
+        }
+
+        void expire(int key) {
+            entries.remove(key);
+            policy.recordUpdate(key, this::weight);
+        }
+
+        boolean read(int key) {
+            if (!entries.containsKey(key))
+                return false;
+            policy.recordRead(key);
+            return true;
+        }
+    }
+
+    @Test
+    public void frequentKeysSurviveAScan() {
+        KeyCache cache = new KeyCache(100);
+        for (int key = 0; key < 50; key++)
+            cache.add(key);
+        for (int round = 0; round < 20; round++)
+            for (int key = 0; key < 50; key++)
+                assertTrue(cache.read(key));
+        for (int key = 1000; key < 100000; key++)
+            cache.add(key);
+
+        int kept = 0;
+        for (int key = 0; key < 50; key++)
+            if (cache.entries.containsKey(key))
+                kept++;
+        assertTrue("only " + kept + " of 50 frequent keys kept", kept >= 45);
+        assertEquals(100, cache.entries.size());
+        assertEquals(100, cache.policy.getEntryCount());
+    }
+
+    @Test
+    public void weightIsBounded() {
+        KeyCache cache = new KeyCache(Long.MAX_VALUE, 1000);
+        for (int key = 0; key < 100; key++)
+            cache.put(key, 30);
+        assertTrue(cache.policy.getWeightedSize() <= 1000);
+        assertEquals(cache.entries.size() * 30L, cache.policy.getWeightedSize());
+        assertEquals(100 * 30L, cache.policy.getWeightedSize() + cache.policy.getEvictionWeight());
+    }
+
+    @Test
+    public void lowerLimitEvictsRightAway() {
+        KeyCache cache = new KeyCache(100);
+        for (int key = 0; key < 100; key++)
+            cache.add(key);
+        cache.policy.setMaximum(10, Long.MAX_VALUE);
+        assertEquals(10, cache.entries.size());
+        assertEquals(10, cache.policy.getEntryCount());
+    }
+
+    @Test
+    public void updatesChangeTheWeight() {
+        KeyCache cache = new KeyCache(100);
+        cache.put(1, 10);
+        cache.put(2, 10);
+        cache.update(1, 4);
+        assertEquals(14, cache.policy.getWeightedSize());
+        cache.update(3, 100);
+        assertEquals(14, cache.policy.getWeightedSize());
+        cache.expire(2);
+        assertEquals(4, cache.policy.getWeightedSize());
+        assertEquals(1, cache.policy.getEntryCount());
+        assertEquals(0, cache.policy.getEvictionCount());
+    }
+
+    /** Threads adding, expiring and reading the same keys at once must leave the policy holding
+     * exactly the keys of the cache, within its bound.
+     */
+    @Test
+    public void boundHoldsUnderConcurrentAddAndExpire() throws Exception {
+        int maximum = 64;
+        int threads = 8;
+        KeyCache cache = new KeyCache(maximum);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 200000; i++) {
+                    int key = random.nextInt(256);
+                    int action = random.nextInt(4);
+                    if (action == 0)
+                        cache.expire(key);
+                    else if (action == 1)
+                        cache.read(key);
+                    else
+                        cache.add(key);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+
+        assertTrue(cache.entries.size() <= maximum);
+        assertEquals(cache.entries.size(), cache.policy.getEntryCount());
+        long weight = 0;
+        for (long w : cache.entries.values())
+            weight += w;
+        assertEquals(weight, cache.policy.getWeightedSize());
+    }
+}
@@ -0,0 +1,128 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UDPTransportTest {
+
+    private UDPTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new UDPTransport(2, 1232);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    private static byte[] answer(byte[] query, int id) {
+        return new Packets(id, Packets.FLAG_AA, FakeServer.name(query), FakeServer.type(query))
+                .counts(1, 0, 0).address(FakeServer.name(query), 60, 10, 0, 0, 1).bytes();
+    }
+
+    /** Queries sent at once are each completed with their own reply, whatever the order the
+     * replies arrive in.
+     */
+    @Test
+    public void repliesAreMatchedToTheirQueries() throws Exception {
+        int count = 50;
+        List<byte[]> queries = new ArrayList<>();
+        try (FakeServer server = new FakeServer("127.0.1.1", query -> {
+            // holds the queries back, then answers them all in reverse order
+            synchronized (queries) {
+                queries.add(0, query);
+                if (queries.size() < count)
+                    return new ArrayList<>();
+                List<byte[]> replies = new ArrayList<>();
+                for (byte[] held : queries)
+                    replies.add(answer(held, FakeServer.id(held)));
+                return replies;
+            }
+        })) {
+            List<DNSQuery> sent = new ArrayList<>();
+            List<CompletableFuture<DNSResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                DNSQuery query = new DNSQuery(new DNSNode("host" + i + ".transport.test", RecordType.A));
+                sent.add(query);
+                futures.add(transport.send(query, server.getAddress()));
+            }
+            for (int i = 0; i < count; i++) {
+                DNSResponse response = futures.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("host" + i + ".transport.test", response.qName);
+                assertEquals(sent.get(i).getQueryID(), response.qID);
+            }
+            assertEquals(0, transport.getPendingCount());
+        }
+    }
+
+    /** A reply with another ID, or to another question, does not complete the query.
+     */
+    @Test
+    public void mismatchedRepliesAreDropped() throws Exception {
+        try (FakeServer server = new FakeServer("127.0.1.2", query -> Arrays.asList(
+                answer(query, FakeServer.id(query) ^ 1),
+                new Packets(FakeServer.id(query), Packets.FLAG_AA, "other.transport.test", RecordType.A).bytes()))) {
+            CompletableFuture<DNSResponse> future = transport.send(
+                    new DNSQuery(new DNSNode("www.transport.test", RecordType.A)), server.getAddress());
+            Thread.sleep(300);
+            assertEquals(1, server.getReceived());
+            assertFalse(future.isDone());
+            assertEquals(1, transport.getPendingCount());
+            future.cancel(false);
+            assertEquals(0, transport.getPendingCount());
+        }
+    }
+
+    @Test
+    public void closeFailsPendingQueries() throws Exception {
+        try (FakeServer server = new FakeServer("127.0.1.3", query -> new ArrayList<>())) {
+            CompletableFuture<DNSResponse> future = transport.send(
+                    new DNSQuery(new DNSNode("www.transport.test", RecordType.A)), server.getAddress());
+            transport.close();
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("the query should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(future.isCompletedExceptionally());
+            }
+            assertTrue(transport.send(new DNSQuery(new DNSNode("www.transport.test", RecordType.A)),
+                    server.getAddress()).isCompletedExceptionally());
+        }
+    }
+
+    /** A reply longer than the advertised payload size is cut by the channel, and marked as
+     * truncated so it is asked again over TCP.
+     */
+    @Test
+    public void oversizedReplyIsMarkedTruncated() throws Exception {
+        UDPTransport small = new UDPTransport(1, 512);
+        try (FakeServer server = FakeServer.answering("127.0.1.9", query -> {
+            Packets reply = new Packets(FakeServer.id(query), Packets.FLAG_AA, FakeServer.name(query), FakeServer.type(query))
+                    .counts(40, 0, 0);
+            for (int i = 0; i < 40; i++)
+                reply.address(FakeServer.name(query), 60, 10, 0, 0, i);
+            return reply.bytes();
+        })) {
+            DNSQuery query = new DNSQuery(new DNSNode("big.transport.test", RecordType.A), small.getPayloadSize());
+            DNSResponse response = small.send(query, server.getAddress()).get(5, TimeUnit.SECONDS);
+            assertTrue(response.isTruncated());
+        } finally {
+            small.close();
+        }
+    }
+}